@@ -0,0 +1,117 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ * 
+ * Reference: DeepImageJ: A user-friendly environment to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, W. Ouyang, L. Donati, M. Unser, E. Lundberg, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2021.
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ * Science for Life Laboratory, School of Engineering Sciences in Chemistry, Biotechnology and Health, KTH - Royal Institute of Technology, Sweden
+ * 
+ * Authors: Carlos Garcia-Lopez-de-Haro and Estibaliz Gomez-de-Mariscal
+ *
+ */
+
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2019-2021, DeepImageJ
+ * All rights reserved.
+ *	
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *	  this list of conditions and the following disclaimer in the documentation
+ *	  and/or other materials provided with the distribution.
+ *	
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+import java.awt.GraphicsEnvironment;
+
+import deepimagej.processing.HeadlessProcessing;
+import deepimagej.tools.ModelCache;
+import ij.IJ;
+import ij.Macro;
+import ij.gui.GenericDialog;
+import ij.plugin.PlugIn;
+
+/*
+ * Control the models that DeepImageJ Run keeps open between executions.
+ * Macro example:
+ * run("DeepImageJ Model Cache", "action=pin model=[my model folder]");
+ * The available actions are pin, release, clear and status. 'budget' sets
+ * the memory (MB) that the open models can use.
+ */
+public class DeepImageJ_ModelCache implements PlugIn {
+	
+	private static final String[] ACTIONS = new String[] {"status", "pin", "release", "clear"};
+
+	@Override
+	public void run(String arg) {
+		String action;
+		String model;
+		String budget;
+		if (IJ.isMacro() || GraphicsEnvironment.isHeadless()) {
+			String macroArg = Macro.getOptions();
+			action = HeadlessProcessing.retrieveOptionalArgument(macroArg, "action", "status");
+			model = HeadlessProcessing.retrieveOptionalArgument(macroArg, "model", "");
+			budget = HeadlessProcessing.retrieveOptionalArgument(macroArg, "budget", null);
+		} else {
+			GenericDialog dlg = new GenericDialog("DeepImageJ Model Cache");
+			dlg.addChoice("Action", ACTIONS, ACTIONS[0]);
+			dlg.addStringField("Model", "", 30);
+			dlg.addNumericField("Budget (MB)", ModelCache.getBudget(), 0);
+			dlg.showDialog();
+			if (dlg.wasCanceled())
+				return;
+			action = dlg.getNextChoice();
+			model = dlg.getNextString();
+			budget = "" + (long) dlg.getNextNumber();
+		}
+		
+		if (budget != null) {
+			try {
+				ModelCache.setBudget(Long.parseLong(budget.trim()));
+			} catch (NumberFormatException ex) {
+				IJ.error("Invalid Macro call: 'budget' should be a positive integer.");
+				return;
+			}
+		}
+		
+		action = action.trim().toLowerCase();
+		model = model.trim();
+		if ((action.equals("pin") || action.equals("release")) && model.equals("")) {
+			IJ.error("The action '" + action + "' requires the folder of a model in the 'model' argument.");
+			return;
+		}
+		if (action.equals("pin")) {
+			ModelCache.pin(model);
+		} else if (action.equals("release")) {
+			ModelCache.release(model);
+		} else if (action.equals("clear")) {
+			ModelCache.clear();
+		} else if (!action.equals("status")) {
+			IJ.error("Unknown action '" + action + "'. Use one of: status, pin, release or clear.");
+			return;
+		}
+		for (String line : ModelCache.status())
+			IJ.log(line);
+	}
+}
@@ -47,6 +47,7 @@ import java.awt.Choice;
 import java.awt.Color;
 import java.awt.Component;
 import java.awt.Dimension;
+import java.awt.EventQueue;
 import java.awt.Font;
 import java.awt.GraphicsEnvironment;
 import java.awt.Label;
@@ -63,33 +64,43 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Set;
 
 import deepimagej.Constants;
 import deepimagej.DeepImageJ;
-import deepimagej.RunnerTf;
+import deepimagej.InferenceSession;
 import deepimagej.RunnerProgress;
-import deepimagej.RunnerPt;
+import deepimagej.TileTuner;
 import deepimagej.DeepLearningModel;
 import deepimagej.components.BorderPanel;
 import deepimagej.exceptions.MacrosError;
 import deepimagej.processing.HeadlessProcessing;
 import deepimagej.tools.ArrayOperations;
-import deepimagej.tools.DijRunnerPostprocessing;
-import deepimagej.tools.DijRunnerPreprocessing;
+import deepimagej.tools.BatchFolder;
+import deepimagej.tools.BufferPool;
+import deepimagej.tools.BundleStore;
 import deepimagej.tools.DijTensor;
+import deepimagej.tools.EnvironmentProbe;
 import deepimagej.tools.Index;
 import deepimagej.tools.Log;
+import deepimagej.tools.ModelCache;
 import deepimagej.tools.ModelLoader;
+import deepimagej.tools.ModelPreloader;
 import deepimagej.tools.StartTensorflowService;
 import deepimagej.tools.SystemUsage;
+import deepimagej.tools.TileSkip;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.Macro;
 import ij.WindowManager;
 import ij.gui.GenericDialog;
+import ij.gui.Roi;
 import ij.plugin.PlugIn;
+import ij.plugin.frame.RoiManager;
+import ij.text.TextWindow;
 
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -122,12 +133,22 @@ public class DeepImageJ_Run implements PlugIn, ItemListener, Runnable {
 	private ArrayList<Integer>			incorrectSha256IndexList;
 	// Array that contains the index of all the models whose yaml is missing 
 	private ArrayList<Integer>			missingYamlList;
+	// Array that contains the index of all the models whose sha256 is being computed
+	private ArrayList<Integer>			verifyingIndexList;
 	// Array containing all the models loaded by the plugin
 	private String[] 					items;
 	// Check if the plugin is being run from a macro or not
 	private boolean 					isMacro = false;
 	// Check if the plugin is being run in headless mode or nor
 	private boolean 					headless = false;
+	// Optional arguments of the macro call and their values, null if not given
+	private static final String[]		OPTIONAL_ARGS = new String[] {"batch_size", "workers", "intra_op_threads", "inter_op_threads", "out_of_core_dir", "zarr_dir", "zarr_levels",
+																	"skip_tiles", "skip_fill", "tile_cache", "roi", "roi_output", "input_dir", "output_dir",
+																	"output_format"};
+	private HashMap<String, String>		optionalArgs = new HashMap<String, String>();
+	// Whether the images of a folder are processed instead of the image open ("DeepImageJ Batch")
+	private boolean						folderMode = false;
+	private BatchFolder					folder;
 	
 	
 	static public void main(String args[]) {
@@ -149,6 +170,8 @@ public class DeepImageJ_Run implements PlugIn, ItemListener, Runnable {
 		headless = GraphicsEnvironment.isHeadless();
 
 		isMacro = IJ.isMacro();
+		
+		folderMode = "batch".equals(arg);
 
 		ImagePlus imp = WindowManager.getTempCurrentImage();
 		
@@ -157,7 +180,7 @@ public class DeepImageJ_Run implements PlugIn, ItemListener, Runnable {
 			imp = WindowManager.getCurrentImage();
 		}
 		
-		if (WindowManager.getCurrentImage() == null) {
+		if (WindowManager.getCurrentImage() == null && !folderMode) {
 			IJ.error("There should be an image open.");
 			return;
 		}
@@ -169,6 +192,11 @@ public class DeepImageJ_Run implements PlugIn, ItemListener, Runnable {
 			// Names of the variables needed to run DIJ
 			String[] varNames = new String[] {"model", "format", "preprocessing", "postprocessing",
 												"axes", "tile", "logging"};
+			// Optional arguments have to be removed before parsing the required ones
+			for (String name : OPTIONAL_ARGS) {
+				optionalArgs.put(name, HeadlessProcessing.retrieveOptionalArgument(macroArg, name, null));
+				macroArg = HeadlessProcessing.removeOptionalArgument(macroArg, name);
+			}
 			try {
 				args = HeadlessProcessing.retrieveArguments(macroArg, varNames);
 			} catch (MacrosError e) {
@@ -192,9 +220,36 @@ public class DeepImageJ_Run implements PlugIn, ItemListener, Runnable {
 			IJ.error("Incorrect Macro call");
 			return;
 		} else if (args == null) {
+			ModelPreloader.cancel();
 			return;
 		}
 		
+		// The first image of the folder is used to choose the tile size
+		if (folderMode) {
+			imp = openFolder();
+			if (imp == null)
+				return;
+			batch = true;
+			// The folder is released on every exit, also when the arguments are
+			// not valid or the model cannot be loaded
+			BatchFolder opened = folder;
+			try {
+				runModel(args, imp);
+			} finally {
+				opened.finish();
+				if (folder == opened)
+					folder = null;
+			}
+		} else {
+			runModel(args, imp);
+		}
+	}
+	
+	/*
+	 * Check the arguments, load the model and apply it to the image or, in folder
+	 * mode, to every image of the folder
+	 */
+	private void runModel(String[] args, ImagePlus imp) {
 		String dirname = args[0]; String format = args[1]; processingFile[0] = args[2];
 		processingFile[1] = args[3]; String patchString = args[5]; String debugMode = args[6];
 		
@@ -212,11 +267,51 @@ public class DeepImageJ_Run implements PlugIn, ItemListener, Runnable {
 		}
 		
 		dp = dps.get(dirname);
+		// The checksum of the weights might still be being computed
+		dp.waitVerification();
 		
 		if (log.getLevel() >= 1)
 			log.print("Load model: " + dp.getName() + "(" + dirname + ")");
 		
 		dp.params.framework = format.contains("pytorch") ? "pytorch" : "tensorflow";
+		// The batch size of the macro call overrides the one in the model.yaml
+		dp.params.batchSize = getOptionalIntArgument("batch_size", dp.params.batchSize, 1);
+		// Number of concurrent model calls and threads used by each of them
+		dp.params.inferenceWorkers = getOptionalIntArgument("workers", dp.params.inferenceWorkers, 1);
+		dp.params.intraOpThreads = getOptionalIntArgument("intra_op_threads", dp.params.intraOpThreads, 0);
+		dp.params.interOpThreads = getOptionalIntArgument("inter_op_threads", dp.params.interOpThreads, 0);
+		// Folder where the outputs are written instead of keeping them in memory
+		if (optionalArgs.get("out_of_core_dir") != null)
+			dp.params.outOfCoreDir = optionalArgs.get("out_of_core_dir").trim();
+		// Folder and number of resolutions of the chunked copy of the outputs
+		if (optionalArgs.get("zarr_dir") != null)
+			dp.params.zarrDir = optionalArgs.get("zarr_dir").trim();
+		dp.params.zarrLevels = getOptionalIntArgument("zarr_levels", dp.params.zarrLevels, 0);
+		// Condition to skip background tiles and value written in their place
+		if (optionalArgs.get("skip_tiles") != null) {
+			dp.params.tileSkip = TileSkip.parse(optionalArgs.get("skip_tiles"));
+			if (dp.params.tileSkip == null)
+				return;
+		}
+		if (optionalArgs.get("tile_cache") != null)
+			dp.params.tileCache = optionalArgs.get("tile_cache").trim().equalsIgnoreCase("true");
+		String skipFill = optionalArgs.get("skip_fill");
+		if (skipFill != null && !skipFill.trim().equals("background")) {
+			try {
+				dp.params.tileSkipFill = Float.parseFloat(skipFill.trim());
+			} catch (NumberFormatException ex) {
+				IJ.error("Invalid Macro call: 'skip_fill' should be a number or 'background'.");
+				return;
+			}
+		}
+		// Only the tiles that cover the selection are processed
+		dp.params.selection = folderMode ? null : getSelection(imp, optionalArgs.get("roi"));
+		dp.params.selectionCrop = optionalArgs.get("roi_output") != null && optionalArgs.get("roi_output").trim().equals("crop");
+		if (dp.params.selection != null && log.getLevel() >= 1)
+			log.print("Processing only the tiles that cover " + dp.params.selection.length + " selected region(s)");
+		if (dp.params.batchSize < 0 || dp.params.inferenceWorkers < 0 || dp.params.intraOpThreads < 0 || dp.params.interOpThreads < 0
+				|| dp.params.zarrLevels < 0)
+			return;
 		// Select the needed attachments for the version used
 		if (dp.params.framework.toLowerCase().contentEquals("pytorch")) {
 			dp.params.attachments = dp.params.ptAttachments;
@@ -274,6 +369,13 @@ public class DeepImageJ_Run implements PlugIn, ItemListener, Runnable {
 
 		int[] haloSize = ArrayOperations.findTotalPadding(dp.params.inputList.get(0), dp.params.outputList, dp.params.pyramidalNetwork);
 		
+		// With the tile size 'tune' the fastest tile is measured once the model is loaded.
+		// Until then, and if the tuning is not possible, the default tile is used
+		boolean tuneTile = patchString.trim().toLowerCase().equals("tune");
+		if (tuneTile)
+			patchString = ArrayOperations.optimalPatch(imp, DijTensor.getWorkingDimValues(tensorForm, dp.params.inputList.get(0).recommended_patch),
+													DijTensor.getWorkingDimValues(tensorForm, haloSize), dims, step, min, dp.params.allowPatching);
+		
 		patch = ArrayOperations.getPatchSize(dims, dp.params.inputList.get(0).form, patchString, patchEditable);
 		patch = ArrayOperations.getPatchSize(dims, dp.params.inputList.get(0).form, patchString, patchEditable);
 		if (patch == null) {
@@ -325,12 +427,14 @@ public class DeepImageJ_Run implements PlugIn, ItemListener, Runnable {
 		else
 			System.out.println("[DEBUG] Loading model");
 
-		if (rp!= null && dp.params.framework.contains("tensorflow") && !(new File(dp.getPath() + File.separator + "variables").exists())) {
+		if (rp!= null && dp.params.framework.contains("tensorflow") && BundleStore.needsUnpacking(dp)) {
 			info.append("Unzipping Tensorflow model. Please wait...\n");
 			rp.setUnzipping(true);
 		}
 		
 		boolean iscuda = DeepLearningModel.TensorflowCUDACompatibility(loadInfo, cudaVersion).equals("");
+		// The model might already be being loaded since it was selected in the dialog
+		ModelPreloader.await(dp.dirname, dp.params.framework);
 		ModelLoader loadModel = new ModelLoader(dp, rp, loadInfo.contains("GPU"), iscuda, log.getLevel() >= 1, SystemUsage.checkFiji());
 
 		Future<Boolean> f1 = service.submit(loadModel);
@@ -368,8 +472,19 @@ public class DeepImageJ_Run implements PlugIn, ItemListener, Runnable {
 		
 		if (rp != null)
 			rp.setService(null);
+		
+		if (tuneTile) {
+			int[] tunedPatch = TileTuner.tune(dp, imp, patch, haloSize);
+			if (tunedPatch != null) {
+				patch = tunedPatch;
+				dp.params.inputList.get(0).recommended_patch = patch;
+			}
+		}
 
-		calculateImage(imp, rp, service);
+		if (folderMode)
+			runFolder(imp, rp, service);
+		else
+			calculateImage(imp, rp, service);
 		service.shutdown();
 		
 		// Free memory allocated by the plugin 
@@ -418,7 +533,8 @@ public String[] createAndShowDialog() {
 		for (Component c : dlg.getComponents()) {
 			if (c instanceof Choice) {
 				Choice choice = (Choice) c;
-				if (countChoice == 0)
+				// The model and its format are loaded in the background when they are selected
+				if (countChoice <= 1)
 					choice.addItemListener(this);
 				choices[countChoice++] = choice;
 				choices[countChoice - 1].setPreferredSize(new Dimension(234, 20));
@@ -529,6 +645,9 @@ public String[] createAndShowDialog() {
 			} else if (missingYamlList.contains(ind)) {
 				setMissingYamlText();
 				return;
+			} else if (verifyingIndexList.contains(ind)) {
+				setVerifyingText();
+				return;
 			}
 			if (dp.params.framework.equals("tensorflow/pytorch")) {
 				choices[1].removeAll();
@@ -639,6 +758,8 @@ public String[] createAndShowDialog() {
 			info.append("\n");
 			info.append("Each dimension is calculated as:\n");
 			info.append("  - tile_size = minimum_size + step * n, where n is any positive integer\n");
+			if (dp.params.allowPatching && !dp.params.pyramidalNetwork)
+				info.append("  - tile_size = tune, to measure several tile sizes on this computer and use the fastest\n");
 			String optimalPatch = ArrayOperations.optimalPatch(dimValue, haloVals, dim, step, min, dp.params.allowPatching);
 			info.append("\n");
 			info.append("Default tile_size for this model: " + optimalPatch + "\n");
@@ -663,9 +784,30 @@ public String[] createAndShowDialog() {
 				texts[1].setEditable(false);
 			}
 			dlg.getButtons()[0].setEnabled(true);
+			preloadSelectedModel(dp);
+		} else if (e.getSource() == choices[1]) {
+			String dirname = fullnames.get(Integer.toString(choices[0].getSelectedIndex()));
+			if (dirname != null && dps.get(dirname) != null)
+				preloadSelectedModel(dps.get(dirname));
 		}
 		
 	}
+	
+	/*
+	 * Load the model selected in the dialog in the background, so it is ready
+	 * when the user presses OK
+	 */
+	private void preloadSelectedModel(DeepImageJ dp) {
+		String format = (String) choices[1].getSelectedItem();
+		if (!loadedEngine || format == null || (!format.equals("Tensorflow") && !format.equals("Pytorch"))) {
+			ModelPreloader.cancel();
+			return;
+		}
+		String tensorForm = dp.params.inputList.get(0).form;
+		int[] tile = ArrayOperations.getPatchSize(DijTensor.getWorkingDims(tensorForm), tensorForm, texts[1].getText(), false);
+		boolean iscuda = DeepLearningModel.TensorflowCUDACompatibility(loadInfo, cudaVersion).equals("");
+		ModelPreloader.preload(path, dp.dirname, format.toLowerCase(), tile, loadInfo.contains("GPU"), iscuda);
+	}
 
 	@Override
 	public void itemStateChanged(ItemEvent e) {
@@ -682,8 +824,9 @@ public String[] createAndShowDialog() {
 		}
 	}
 
-	public void calculateImage(ImagePlus inp, RunnerProgress rp, ExecutorService service) {
+	public HashMap<String, Object> calculateImage(ImagePlus inp, RunnerProgress rp, ExecutorService service) {
 		
+		HashMap<String, Object> result = null;
 		int runStage = 0;
 		try {
 			if (log.getLevel() >= 1)
@@ -691,17 +834,21 @@ public String[] createAndShowDialog() {
 			if (headless)
 				System.out.println("[DEBUG] Pre-processing the images");
 			System.out.println("[DEBUG] Image name: " + inp.getTitle());
-			DijRunnerPreprocessing preprocess = new DijRunnerPreprocessing(dp, rp, inp, batch, log.getLevel() >= 1);
-			Future<HashMap<String, Object>> f0 = service.submit(preprocess);
-			HashMap<String, Object> inputsMap = f0.get();
+			if (rp != null && !rp.isVisible())
+				rp.setVisible(log.getLevel() >= 1);
+			// Same pre-processing, inference and post-processing as the folders and
+			// the API, the images of the user are not modified
+			InferenceSession session = new InferenceSession(dp, rp, log, true);
+			HashMap<String, Object> inputs = inputsFromWindows(inp);
+			HashMap<String, Object> inputsMap = session.preprocess(inputs);
 			
 			if ((rp != null && rp.isStopped()) || inputsMap == null) {
 				// Remove possible hidden images from IJ workspace
-				ArrayOperations.removeProcessedInputsFromMemory(inputsMap);
+				closeProcessedInputs(inputsMap, inputs);
 			    service.shutdown();
 			    if (rp != null)
 			    	rp.dispose();
-				return;
+				return null;
 			}
 			
 			if (log.getLevel() >= 1)
@@ -713,41 +860,33 @@ public String[] createAndShowDialog() {
 			if (log.getLevel() >= 1)
 				log.print("start runner");
 			HashMap<String, Object> output = null;
-			if (dp.params.framework.equals("tensorflow")) {
-				RunnerTf runner = new RunnerTf(dp, rp, inputsMap, log);
-				if (rp != null)
-					rp.setRunner(runner);
+			Callable<HashMap<String, Object>> runner = session.createRunner(inputsMap);
+			if (runner != null) {
 				Future<HashMap<String, Object>> f1 = service.submit(runner);
-				output = f1.get();
-			} else {
-				RunnerPt runner = new RunnerPt(dp, rp, inputsMap, log);
-				if (rp != null)
-					rp.setRunner(runner);
-				Future<HashMap<String, Object>> f1 = service.submit(runner);
-				output = f1.get();
+				try {
+					output = f1.get();
+				} finally {
+					session.closeInputs();
+				}
 			}
 			
-			inp.changes = false;
-			inp.close();
-			
 			if (output == null || (rp != null && rp.isStopped())) {
 				// Remove possible hidden images from IJ workspace
-				ArrayOperations.removeProcessedInputsFromMemory(inputsMap);
+				closeProcessedInputs(inputsMap, inputs);
 				if (rp != null) {
 					rp.allowStopping(true);
 					rp.stop();
 					rp.dispose();
 				}
 			    service.shutdown();
-				return;
+				return null;
 			}
 			runStage ++;
 			
 			if (headless)
 				System.out.println("[DEBUG] Post-processing the outputs");
 
-			Future<HashMap<String, Object>> f2 = service.submit(new DijRunnerPostprocessing(dp, rp, output));
-			output = f2.get();
+			output = session.postprocess(output);
 			
 			if (rp != null) {
 				rp.allowStopping(true);
@@ -766,7 +905,8 @@ public String[] createAndShowDialog() {
 				ArrayOperations.displayMissingOutputs(finalImages, finalFrames, output);
 
 			// Remove possible hidden images from IJ workspace
-			ArrayOperations.removeProcessedInputsFromMemory(inputsMap);
+			closeProcessedInputs(inputsMap, inputs);
+			result = output;
 			
 		} catch (IllegalStateException ex) {
 			IJ.error("Error during the aplication of the model.\n"
@@ -796,6 +936,146 @@ public String[] createAndShowDialog() {
 			rp.stop();
 			rp.dispose();
 	    }
+	    return result;
+	}
+	
+	/*
+	 * Inputs of the model: the image selected and, for the rest of the inputs, the
+	 * images and tables shown in ImageJ with the name of the input
+	 */
+	private HashMap<String, Object> inputsFromWindows(ImagePlus inp) {
+		HashMap<String, Object> inputs = new HashMap<String, Object>();
+		int imageInd = DijTensor.getImageTensorInd(dp.params.inputList);
+		for (int i = 0; i < dp.params.inputList.size(); i ++) {
+			DijTensor tensor = dp.params.inputList.get(i);
+			Object value = null;
+			if (i == imageInd)
+				value = inp;
+			else if (tensor.tensorType.contains("image"))
+				value = WindowManager.getImage(tensor.name);
+			else if (WindowManager.getFrame(tensor.name) instanceof TextWindow)
+				value = ((TextWindow) WindowManager.getFrame(tensor.name)).getResultsTable();
+			if (value != null)
+				inputs.put(tensor.name, value);
+		}
+		return inputs;
+	}
+	
+	/*
+	 * Close the images created by the pre-processing, the images given as inputs are kept
+	 */
+	private static void closeProcessedInputs(HashMap<String, Object> inputsMap, HashMap<String, Object> inputs) {
+		if (inputsMap == null)
+			return;
+		HashMap<String, Object> processed = new HashMap<String, Object>(inputsMap);
+		processed.values().removeAll(inputs.values());
+		ArrayOperations.removeProcessedInputsFromMemory(processed);
+	}
+	
+	/*
+	 * Start reading the images of the folder and return the first one. The folders are
+	 * given with 'input_dir' and 'output_dir' in a macro or chosen by the user
+	 */
+	private ImagePlus openFolder() {
+		String input = optionalArgs.get("input_dir");
+		String output = optionalArgs.get("output_dir");
+		String format = optionalArgs.get("output_format");
+		if (!isMacro && !headless) {
+			input = IJ.getDirectory("Folder with the images to process");
+			output = input == null ? null : IJ.getDirectory("Folder where the outputs are saved");
+		} else if (input == null || output == null) {
+			IJ.error("Invalid Macro call: 'input_dir' and 'output_dir' are needed to process a folder.");
+			return null;
+		}
+		if (input == null || output == null)
+			return null;
+		format = format == null ? "tif" : format.trim().toLowerCase();
+		if (Index.indexOf(BatchFolder.FORMATS, format) == -1) {
+			IJ.error("Invalid Macro call: 'output_format' should be one of " + Arrays.toString(BatchFolder.FORMATS) + ".");
+			return null;
+		}
+		List<File> files = BatchFolder.listImages(input.trim());
+		if (files == null)
+			return null;
+		new File(output.trim()).mkdirs();
+		folder = new BatchFolder(files, output.trim(), format);
+		ImagePlus imp = folder.next();
+		if (imp == null) {
+			IJ.error("No image could be opened from:\n" + input);
+			folder.finish();
+		}
+		return imp;
+	}
+	
+	/*
+	 * Process every image of the folder with the model already loaded. The next
+	 * images are read and the previous outputs saved meanwhile, see BatchFolder
+	 */
+	private void runFolder(ImagePlus imp, RunnerProgress rp, ExecutorService service) {
+		// The progress window is only used while the model is loaded
+		if (rp != null) {
+			rp.allowStopping(true);
+			rp.stop();
+			rp.dispose();
+		}
+		// The images of the folder are never shown
+		InferenceSession session = new InferenceSession(dp, null, log, false);
+		String inputName = dp.params.inputList.get(DijTensor.getImageTensorInd(dp.params.inputList)).name;
+		int n = 0;
+		while (imp != null && !IJ.escapePressed()) {
+			IJ.showStatus("DeepImageJ: processing " + imp.getTitle());
+			IJ.showProgress(n ++, folder.size());
+			long start = System.nanoTime();
+			HashMap<String, Object> inputs = new HashMap<String, Object>();
+			inputs.put(inputName, imp);
+			HashMap<String, Object> output = session.run(inputs);
+			imp.changes = false;
+			imp.close();
+			folder.save(output, System.nanoTime() - start);
+			imp = folder.next();
+		}
+		IJ.showProgress(1.0);
+	}
+	
+	/*
+	 * Regions of the image that have to be processed: the area selection of the image
+	 * or, with 'roi=manager', the regions of the ROI Manager. 'roi=none' or an image
+	 * without an area selection return null, the whole image is processed
+	 */
+	private static Roi[] getSelection(ImagePlus imp, String mode) {
+		mode = mode == null ? "selection" : mode.trim();
+		if (imp == null || mode.equals("none"))
+			return null;
+		if (mode.equals("manager")) {
+			RoiManager rm = RoiManager.getInstance();
+			if (rm == null || rm.getCount() == 0) {
+				IJ.log("The ROI Manager is empty, the whole image is processed.");
+				return null;
+			}
+			return rm.getRoisAsArray();
+		}
+		Roi roi = imp.getRoi();
+		if (roi == null || !roi.isArea())
+			return null;
+		return new Roi[] {roi};
+	}
+	
+	/*
+	 * Value of an optional integer argument of the macro call. Returns 'defaultValue'
+	 * if the argument was not given and -1 if it is not an integer bigger or equal than 'min'
+	 */
+	private int getOptionalIntArgument(String name, int defaultValue, int min) {
+		String value = optionalArgs.get(name);
+		if (value == null)
+			return defaultValue;
+		try {
+			int intValue = Integer.parseInt(value.trim());
+			if (intValue >= min)
+				return intValue;
+		} catch (NumberFormatException ex) {
+		}
+		IJ.error("Invalid Macro call: '" + name + "' should be an integer bigger or equal than " + min + ".");
+		return -1;
 	}
 	
 	/*
@@ -805,12 +1085,11 @@ public String[] createAndShowDialog() {
 		// Free memory allocated by the plugin 
 		if (!headless && !isMacro)
 			dlg.dispose();
-		if (dp.params.framework.equals("tensorflow")) {
-			dp.getTfModel().session().close();
-			dp.getTfModel().close();
-		} else if (dp.params.framework.equals("pytorch")) {
-			dp.getTorchModel().close();
-		}
+		// The model is kept open for the next executions, it is only closed
+		// when the memory budget of the cache is exceeded
+		ModelCache.release(dp);
+		// The tiles of the next image might have other shapes
+		BufferPool.clear();
 		this.dp = null;
 		this.dps = null;
 		imp = null;
@@ -831,7 +1110,9 @@ public String[] createAndShowDialog() {
 		ignoreModelsIndexList = new ArrayList<Integer>();
 		incorrectSha256IndexList = new ArrayList<Integer>();
 		missingYamlList = new ArrayList<Integer>();
-		dps = DeepImageJ.list(path, false, info);
+		verifyingIndexList = new ArrayList<Integer>();
+		// In the dialog the weights that have to be read are verified in the background
+		dps = DeepImageJ.list(path, false, info, !headless && !isMacro);
 		int k = 1;
 		items = new String[dps.size() + 1];
 		items[0] = "<Select a model from this list>";
@@ -848,6 +1129,9 @@ public String[] createAndShowDialog() {
 				} else if (!dp.presentYaml) {
 					fullname += " (missing yaml)";
 					missingYamlList.add(k);
+				} else if (dp.isVerifying()) {
+					fullname += " (verifying...)";
+					verifyingIndexList.add(k);
 				}
 				items[k++] = fullname;
 				int index = k - 1;
@@ -859,9 +1143,51 @@ public String[] createAndShowDialog() {
 			for (String item : items)
 				choices[0].addItem(item);
 			info.append(" - " + new SimpleDateFormat("HH:mm:ss").format(now) + " -- FINISHED LOADING MODELS");
+			if (verifyingIndexList.size() > 0)
+				updateVerifiedModels();
 		}
 	}
 	
+	/*
+	 * Wait in another thread for the checksums computed in the background and
+	 * update the names of the models in the list when each of them is known
+	 */
+	private void updateVerifiedModels() {
+		final HashMap<String, DeepImageJ> models = dps;
+		final ArrayList<Integer> indices = new ArrayList<Integer>(verifyingIndexList);
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				for (final int k : indices) {
+					final DeepImageJ dp = models.get(fullnames.get(Integer.toString(k)));
+					dp.waitVerification();
+					// The list of models is only modified by the AWT thread
+					EventQueue.invokeLater(new Runnable() {
+						@Override
+						public void run() {
+							String fullname = dp.getName();
+							if (dp.params.incorrectSha256) {
+								fullname += " (wrong sha256)";
+								incorrectSha256IndexList.add(k);
+							}
+							verifyingIndexList.remove((Integer) k);
+							if (dps != models || k >= choices[0].getItemCount())
+								return;
+							items[k] = fullname;
+							int selected = choices[0].getSelectedIndex();
+							choices[0].remove(k);
+							choices[0].insert(fullname, k);
+							choices[0].select(selected);
+							// Show the information of the model if it is the one selected
+							if (selected == k)
+								itemStateChanged(new ItemEvent(choices[0], ItemEvent.ITEM_STATE_CHANGED, fullname, ItemEvent.SELECTED));
+						}
+					});
+				}
+			}
+		}).start();
+	}
+	
 	/*
 	 * Loading Tensorflow with the ImageJ-Tensorflow Manager and Pytorch with
 	 * the DJL takes some time. Normally the GUI would not sho until everything is loaded.
@@ -884,16 +1210,17 @@ public String[] createAndShowDialog() {
 			// the IJ ClassLoader as the ContextClassLoader
 			Thread.currentThread().setContextClassLoader(IJ.getClassLoader());
 		}
-		// If the version allows GPU, find if there is CUDA
+		// If the version allows GPU, find if there is CUDA. The versions found are
+		// saved by the EnvironmentProbe, no command is run if they are already known
 		if (loadInfo.contains("GPU")) 
-			cudaVersion = SystemUsage.getCUDAEnvVariables();
+			cudaVersion = EnvironmentProbe.getCUDAVersion();
 		
 		if (loadInfo.equals("")) {
 			loadInfo += "No Tensorflow library found.\n";
 			loadInfo += "Please install a new Tensorflow version.\n";
 		} else if (loadInfo.equals("ImageJ")) {
 			loadInfo = "Currently using TensorFlow  ";
-			loadInfo += DeepLearningModel.getTFVersion(false);
+			loadInfo += EnvironmentProbe.getTFVersion();
 			if (!loadInfo.contains("GPU"))
 				loadInfo += "_CPU";
 			loadInfo += ".\n";
@@ -905,7 +1232,9 @@ public String[] createAndShowDialog() {
 		// Then find Pytorch the Pytorch version
 		if (!headless && !isMacro)
 			info.append(" - " + new SimpleDateFormat("HH:mm:ss").format(now) + " -- LOADING DJL PYTORCH\n");
-		String ptVersion = DeepLearningModel.getPytorchVersion();
+		// DJL reads the number of threads used by Pytorch when the engine starts
+		SystemUsage.setPytorchThreads();
+		String ptVersion = EnvironmentProbe.getPytorchVersion();
 		loadInfo += "\n";
 		loadInfo += "Currently using Pytorch " + ptVersion + ".\n";
 		loadInfo += "Supported by Deep Java Library " + ptVersion + ".\n";
@@ -997,6 +1326,17 @@ public String[] createAndShowDialog() {
 		info.setCaretPosition(0);
 	}
 
+	/*
+	 * Indicate that the checksum of the model is being computed
+	 */
+	private void setVerifyingText() {
+		info.setText("\nThe weights of the selected model are being checked\n"
+				+ "against the sha256 checksum of the model.yaml file.\n");
+		info.append("Please wait, the model will be available in a moment.\n");
+		dlg.getButtons()[0].setEnabled(false);
+		info.setCaretPosition(0);
+	}
+
 	/*
 	 * Indicate that a model folder is missing the yaml file
 	 */
@@ -50,10 +50,18 @@ import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.tensorflow.SavedModelBundle;
+import org.tensorflow.framework.ConfigProto;
 
 import ai.djl.MalformedModelException;
 import ai.djl.ndarray.NDList;
@@ -64,6 +72,7 @@ import ai.djl.repository.zoo.ZooModel;
 import ai.djl.training.util.ProgressBar;
 import deepimagej.tools.DijTensor;
 import deepimagej.tools.FileTools;
+import deepimagej.tools.ModelIndex;
 import ij.IJ;
 import ij.gui.GenericDialog;
 
@@ -80,8 +89,27 @@ public class DeepImageJ {
 	private ZooModel<NDList, NDList>torchModel		= null;
 	public String ptName = "pytorch_script.pt";
 	public String tfName = "tensorflow_saved_model_bundle.zip";
+	// Folder of the BundleStore where the zipped Tensorflow model is unpacked
+	private String					tfBundlePath	= null;
+	// Checksum that identifies the weights of each framework, see ModelCache.getChecksum
+	private HashMap<String, String>	weightsChecksums = new HashMap<String, String>();
+	// Whether the checksums that are not in the ModelIndex are computed in the background
+	private boolean					backgroundSha256 = false;
+	// Checksum of the weights being computed in the background, see checkSha256
+	private Future<String>			pendingSha256 = null;
+	private String					pendingFile;
+	private String					pendingExpected;
 	
 	public DeepImageJ(String pathModel, String dirname, boolean dev) {
+		this(pathModel, dirname, dev, false);
+	}
+	
+	/*
+	 * With 'backgroundSha256' the weights that were not verified before are checked
+	 * in the background, the model is 'verifying' until the checksum is known
+	 */
+	public DeepImageJ(String pathModel, String dirname, boolean dev, boolean backgroundSha256) {
+		this.backgroundSha256 = backgroundSha256;
 		String p = pathModel + File.separator + dirname + File.separator;
 		this.path = p.replace(File.separator + File.separator, File.separator);
 		// Remove double File separators
@@ -137,11 +165,39 @@ public class DeepImageJ {
 		this.tfModel = model;
 	}
 
+	/*
+	 * Folder with the saved_model.pb and the variables of the Tensorflow model
+	 */
+	public String getTfModelPath() {
+		return tfBundlePath != null ? tfBundlePath : path;
+	}
+	
+	public void setTfBundlePath(String tfBundlePath) {
+		this.tfBundlePath = tfBundlePath;
+	}
+	
+	public synchronized String getWeightsChecksum(String framework) {
+		return weightsChecksums.get(framework);
+	}
+	
+	public synchronized void setWeightsChecksum(String framework, String checksum) {
+		weightsChecksums.put(framework, checksum);
+	}
+
 	public boolean getValid() {
 		return this.valid;
 	}
 	
 	static public HashMap<String, DeepImageJ> list(String pathModels, boolean isDeveloper, TextArea textField) {
+		return list(pathModels, isDeveloper, textField, false);
+	}
+	
+	/*
+	 * List the models of the folder. With 'backgroundSha256' the models whose weights
+	 * have to be read to verify them are returned before, see isVerifying
+	 */
+	static public HashMap<String, DeepImageJ> list(final String pathModels, final boolean isDeveloper, final TextArea textField,
+													final boolean backgroundSha256) {
 		HashMap<String, DeepImageJ> list = new HashMap<String, DeepImageJ>();
 		File models = new File(pathModels);
 		File[] dirs = models.listFiles();
@@ -150,18 +206,41 @@ public class DeepImageJ {
 		}
 
 		// FOrmat for the date
-		Date now = new Date(); 
+		final Date now = new Date(); 
+		// The folders are read at the same time. The checksums of the weights that did not
+		// change are taken from the ModelIndex. The developer might be asked for the
+		// framework of each model, so the folders are read one by one
+		int nThreads = isDeveloper ? 1 : Math.max(1, Math.min(dirs.length, Runtime.getRuntime().availableProcessors()));
+		ExecutorService service = Executors.newFixedThreadPool(nThreads);
+		List<Future<DeepImageJ>> futures = new ArrayList<Future<DeepImageJ>>();
 		for (File dir : dirs) {
 			if (dir.isDirectory()) {
-				String name = dir.getName();
-				if (textField != null)
-					textField.append(" - " + new SimpleDateFormat("HH:mm:ss").format(now) + " -- Looking for a model at: " + name + "\n");
-				DeepImageJ dp = new DeepImageJ(pathModels + File.separator, name, isDeveloper);
+				final String name = dir.getName();
+				futures.add(service.submit(new Callable<DeepImageJ>() {
+					@Override
+					public DeepImageJ call() {
+						if (textField != null)
+							textField.append(" - " + new SimpleDateFormat("HH:mm:ss").format(now) + " -- Looking for a model at: " + name + "\n");
+						return new DeepImageJ(pathModels + File.separator, name, isDeveloper, backgroundSha256);
+					}
+				}));
+			}
+		}
+		for (Future<DeepImageJ> future : futures) {
+			try {
+				DeepImageJ dp = future.get();
 				if (dp.valid && dp.params != null) {
 					list.put(dp.dirname, dp);
 				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			} catch (ExecutionException e) {
+				e.printStackTrace();
 			}
 		}
+		service.shutdownNow();
+		ModelIndex.save();
 		return list;
 	}
 
@@ -171,7 +250,16 @@ public class DeepImageJ {
 		double chrono = System.nanoTime();
 		SavedModelBundle model;
 		try {
-			model = SavedModelBundle.load(path, DeepLearningModel.returnStringTag(params.tag));
+			if (params.intraOpThreads > 0 || params.interOpThreads > 0) {
+				// Limit the threads of the session so several sessions can run at the same time
+				ConfigProto config = ConfigProto.newBuilder()
+						.setIntraOpParallelismThreads(params.intraOpThreads)
+						.setInterOpParallelismThreads(params.interOpThreads).build();
+				model = SavedModelBundle.loader(getTfModelPath()).withTags(DeepLearningModel.returnStringTag(params.tag))
+						.withConfigProto(config.toByteArray()).load();
+			} else {
+				model = SavedModelBundle.load(getTfModelPath(), DeepLearningModel.returnStringTag(params.tag));
+			}
 			setTfModel(model);
 		}
 		catch (Exception e) {
@@ -422,7 +510,7 @@ public class DeepImageJ {
 			if (file.equals(modelName) && !this.presentYaml) {
 				tfName = modelName;
 				return true;
-			} else if (file.equals(modelName) && FileTools.createSHA256(modelFolder.getPath() + File.separator + file).equals(params.tfSha256)) {
+			} else if (file.equals(modelName) && checkSha256(modelFolder.getPath() + File.separator + file, params.tfSha256)) {
 				tfName = modelName;
 				return true;
 			} else if (file.equals(modelName)) {
@@ -439,7 +527,7 @@ public class DeepImageJ {
 		}
 		if (auxPresent && !this.presentYaml) {
 			return true;
-		} else if (auxPresent && FileTools.createSHA256(modelFolder.getPath() + File.separator + auxModelName).equals(params.tfSha256)) {
+		} else if (auxPresent && checkSha256(modelFolder.getPath() + File.separator + auxModelName, params.tfSha256)) {
 			return true;
 		} else if (auxPresent) {
 			IJ.log("Zipped Bioimage Model Zoo model at:");
@@ -452,6 +540,56 @@ public class DeepImageJ {
 		return false;
 	}
 	
+	/*
+	 * Whether the weights have the checksum of the model.yaml. The files that are
+	 * not in the ModelIndex might be checked in the background, they are taken as
+	 * correct until waitVerification says otherwise
+	 */
+	private boolean checkSha256(String file, String expected) throws IOException {
+		String sha256 = ModelIndex.indexedSha256(file);
+		if (sha256 != null)
+			return sha256.equals(expected);
+		if (!backgroundSha256)
+			return ModelIndex.sha256(file).equals(expected);
+		pendingSha256 = ModelIndex.sha256InBackground(file);
+		pendingFile = file;
+		pendingExpected = expected;
+		return true;
+	}
+	
+	/*
+	 * Whether the checksum of the weights is still being computed
+	 */
+	public boolean isVerifying() {
+		return pendingSha256 != null && !pendingSha256.isDone();
+	}
+	
+	/*
+	 * Wait for the checksum of the weights computed in the background. If it does
+	 * not coincide with the model.yaml the model is marked as incorrect
+	 */
+	public synchronized void waitVerification() {
+		if (pendingSha256 == null)
+			return;
+		String sha256 = null;
+		try {
+			sha256 = pendingSha256.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return;
+		} catch (ExecutionException e) {
+			e.printStackTrace();
+		}
+		if (sha256 == null || !sha256.equals(pendingExpected)) {
+			IJ.log("Model at:");
+			IJ.log(pendingFile);
+			IJ.log("does not coincide with the one specified in the model.yaml (incorrect sha256).");
+			IJ.log("\n");
+			params.incorrectSha256 = true;
+		}
+		pendingSha256 = null;
+	}
+	
 	/*
 	 * Method returns true if a torchscript model is found inside
 	 * of the folder provided and corresponds to the model defined in the model.yaml
@@ -471,7 +609,7 @@ public class DeepImageJ {
 				if (!this.developer && file.contains(modelName) && !this.presentYaml) {
 					ptName = modelName;
 					return true;
-				} else if (!this.developer && file.contains(modelName) && FileTools.createSHA256(modelFolder.getPath() + File.separator + file).equals(params.ptSha256)) {
+				} else if (!this.developer && file.contains(modelName) && checkSha256(modelFolder.getPath() + File.separator + file, params.ptSha256)) {
 					ptName = modelName;
 					return true;
 				} else if (this.developer && file.contains(".pt")) {
@@ -493,7 +631,7 @@ public class DeepImageJ {
 			// try with the default name
 			if (!this.developer && auxPresent && !this.presentYaml) {
 				return true;
-			} else if (!this.developer && auxPresent && FileTools.createSHA256(modelFolder.getPath() + File.separator + auxModelName).equals(params.ptSha256)) {
+			} else if (!this.developer && auxPresent && checkSha256(modelFolder.getPath() + File.separator + auxModelName, params.ptSha256)) {
 				return true;
 			} else if (!this.developer && auxPresent) {
 				IJ.log("Zipped Bioimage Model Zoo model at:");
@@ -44,18 +44,24 @@
 
 package deepimagej;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
+import java.util.List;
 
 import org.tensorflow.Tensor;
 
 import ai.djl.ndarray.NDArray;
 import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.DataType;
 import ai.djl.ndarray.types.Shape;
 import deepimagej.exceptions.BatchSizeBiggerThanOne;
 import deepimagej.exceptions.IncorrectNumberOfDimensions;
 import deepimagej.tools.ArrayOperations;
+import deepimagej.tools.BufferPool;
 import ij.IJ;
 import ij.ImagePlus;
+import ij.ImageStack;
 import ij.process.ImageProcessor;
 
 
@@ -76,6 +82,28 @@ public class ImagePlus2Tensor {
 		return tensor;
 	}
 	
+	/*
+	 * Convert several tiles of the same size into a single tensor, stacking
+	 * them along the batch dimension
+	 */
+	public static NDArray imPlus2tensor(NDManager manager, ImagePlus[] imgs, String form, String ptVersion){
+		return imPlus2tensor(manager, imgs, form, ptVersion, null);
+	}
+	
+	/*
+	 * Same as above, but if 'leases' is not null the data of the tensor is written into
+	 * a buffer of the BufferPool, which is added to 'leases'. The buffer has to be
+	 * released by the caller after the tensor is closed
+	 */
+	public static NDArray imPlus2tensor(NDManager manager, ImagePlus[] imgs, String form, String ptVersion, List<ByteBuffer> leases){
+		int nDim = form.length();
+		NDArray tensor = null;
+		if (nDim >= 2 && nDim <= 5) {
+			tensor = implus2NDArray(imgs, form, manager, ptVersion, leases);
+		}
+		return tensor;
+	}
+	
 	/*
 	 * Check that if the DJL Pytorch version is older than
 	 * version 1.7.0
@@ -100,18 +128,24 @@ public class ImagePlus2Tensor {
 	}
 	
 	public static NDArray implus2NDArray(ImagePlus img, String form, NDManager manager, String ptVersion){
+		return implus2NDArray(new ImagePlus[] {img}, form, manager, ptVersion);
+	}
+	
+	public static NDArray implus2NDArray(ImagePlus[] imgs, String form, NDManager manager, String ptVersion){
+		return implus2NDArray(imgs, form, manager, ptVersion, null);
+	}
+	
+	public static NDArray implus2NDArray(ImagePlus[] imgs, String form, NDManager manager, String ptVersion, List<ByteBuffer> leases){
 		// Create a float array of four dimensions out of an 
 		// ImagePlus object
 		float[] matImage;
-		// Initialise ImageProcessor variable used later
-		ImageProcessor ip;
-		int[] dims = img.getDimensions();
+		// Every image of the batch has the same dimensions
+		int[] dims = imgs[0].getDimensions();
 		int xSize = dims[0];
 		int ySize = dims[1];
 		int cSize = dims[2];
 		int zSize = dims[3];
-		// TODO allow different batch sizes
-		int batch = 1;
+		int batch = imgs.length;
 		int[] tensorDims = new int[] {1, 1, 1, 1, 1};
 		// Create aux variable to indicate
 		// if it is channels one of the dimensions of
@@ -186,50 +220,35 @@ public class ImagePlus2Tensor {
 			fDepth = form.length();
 			form += "Z";
 		}
-		matImage = new float[tensorDims[0] * tensorDims[1] * tensorDims[2] * tensorDims[3] * tensorDims[4]];
-		
 		// Make sure the array is written from last dimension to first dimension.
 		// For example, for CYX we first iterate over all the X, then over the Y and then 
 		// over the C
-		int[] auxCounter = new int[5];
-		int pos = 0;
-		for (int t0 = 0; t0 < tensorDims[0]; t0 ++) {
-			auxCounter[0] = t0;
-			for (int t1 = 0; t1 < tensorDims[1]; t1 ++) {
-				auxCounter[1] = t1;
-				for (int t2 = 0; t2 < tensorDims[2]; t2 ++) {	
-					auxCounter[2] = t2;
-					for (int t3 = 0; t3 < tensorDims[3]; t3 ++) {
-						auxCounter[3] = t3;
-						for (int t4 = 0; t4 < tensorDims[4]; t4 ++) {	
-							auxCounter[4] = t4;
-							
-							img.setPositionWithoutUpdate(auxCounter[fChannel] + 1, auxCounter[fDepth] + 1, 1);
-							ip = img.getProcessor();
-							matImage[pos ++] = ip.getPixelValue(auxCounter[fWidth], auxCounter[fHeight]);
-						}
-					}	
-				}
-			}
-		}
-		FloatBuffer outBuff = FloatBuffer.wrap(matImage);
+		if (leases != null) {
+			// Pytorch can read a direct buffer without copying it to a new one
+			ByteBuffer data = BufferPool.acquire("float32", arrayShape);
+			leases.add(data);
+			flattenImages(imgs, tensorDims, fBatch, fHeight, fWidth, fChannel, fDepth, data.asFloatBuffer());
+			return manager.create(data, new Shape(arrayShape), DataType.FLOAT32);
+		}
+		matImage = flattenImages(imgs, tensorDims, fBatch, fHeight, fWidth, fChannel, fDepth);
 		NDArray tensor = manager.create(matImage, new Shape(arrayShape));
 	return tensor;
 	}
 	
 	public static Tensor<Float> implus2TensorFloat(ImagePlus img, String form){
+		return implus2TensorFloat(new ImagePlus[] {img}, form);
+	}
+	
+	public static Tensor<Float> implus2TensorFloat(ImagePlus[] imgs, String form){
 		// Create a float array of four dimensions out of an 
 		// ImagePlus object
-		float[] matImage;
-		// Initialise ImageProcessor variable used later
-		ImageProcessor ip;
-		int[] dims = img.getDimensions();
+		// Every image of the batch has the same dimensions
+		int[] dims = imgs[0].getDimensions();
 		int xSize = dims[0];
 		int ySize = dims[1];
 		int cSize = dims[2];
 		int zSize = dims[3];
-		// TODO allow different batch sizes
-		int batch = 1;
+		int batch = imgs.length;
 		int[] tensorDims = new int[] {1, 1, 1, 1, 1};
 		// Create aux variable to indicate
 		// if it is channels one of the dimensions of
@@ -281,35 +300,16 @@ public class ImagePlus2Tensor {
 			fDepth = form.length();
 			form += "Z";
 		}
-		matImage = new float[tensorDims[0] * tensorDims[1] * tensorDims[2] * tensorDims[3] * tensorDims[4]];
-		
 		// Make sure the array is written from last dimension to first dimension.
 		// For example, for CYX we first iterate over all the X, then over the Y and then 
 		// over the C
-		int[] auxCounter = new int[5];
-		int pos = 0;
-		for (int t0 = 0; t0 < tensorDims[0]; t0 ++) {
-			auxCounter[0] = t0;
-			for (int t1 = 0; t1 < tensorDims[1]; t1 ++) {
-				auxCounter[1] = t1;
-				for (int t2 = 0; t2 < tensorDims[2]; t2 ++) {	
-					auxCounter[2] = t2;
-					for (int t3 = 0; t3 < tensorDims[3]; t3 ++) {
-						auxCounter[3] = t3;
-						for (int t4 = 0; t4 < tensorDims[4]; t4 ++) {	
-							auxCounter[4] = t4;
-							
-							img.setPositionWithoutUpdate(auxCounter[fChannel] + 1, auxCounter[fDepth] + 1, 1);
-							ip = img.getProcessor();
-							matImage[pos ++] = ip.getPixelValue(auxCounter[fWidth], auxCounter[fHeight]);
-						}
-					}	
-				}
-			}
-		}
-		FloatBuffer outBuff = FloatBuffer.wrap(matImage);
-	 	
+		// Tensorflow copies the data when creating the tensor, so the buffer
+		// can be given back to the pool straight away
+		ByteBuffer data = BufferPool.acquire("float32", arrayShape);
+		FloatBuffer outBuff = data.asFloatBuffer();
+		flattenImages(imgs, tensorDims, fBatch, fHeight, fWidth, fChannel, fDepth, outBuff);
 		Tensor<Float> tensor = Tensor.create(arrayShape, outBuff);
+		BufferPool.release(data);
 	return tensor;
 	}
 	
@@ -318,11 +318,22 @@ public class ImagePlus2Tensor {
 	
 	
 	public static ImagePlus NDArray2ImagePlus(NDArray tensor, String form, String name, String ptVersion) throws IncorrectNumberOfDimensions, BatchSizeBiggerThanOne{
-		// This method copies the information from the tensor to a matrix. At first only works
-		// if the batch size is 1
+		return NDArray2ImagePlus(tensor, form, name, ptVersion, false);
+	}
+	
+	/*
+	 * Convert a tensor that contains several tiles along the batch dimension
+	 * into one image per tile
+	 */
+	public static ImagePlus[] NDArray2ImagePlusBatch(NDArray tensor, String form, String name, String ptVersion) throws IncorrectNumberOfDimensions, BatchSizeBiggerThanOne{
+		return ArrayOperations.splitBatch(NDArray2ImagePlus(tensor, form, name, ptVersion, true));
+	}
+	
+	private static ImagePlus NDArray2ImagePlus(NDArray tensor, String form, String name, String ptVersion, boolean allowBatch) throws IncorrectNumberOfDimensions, BatchSizeBiggerThanOne{
+		// This method copies the information from the tensor to a matrix. If
+		// the batch is allowed, each of the elements of the batch is stored as a frame
 		
-		// ImagePlus dimensions in the TensorFlow style. In this case we consider B as T,
-		// as for the moment both are going to be 1
+		// ImagePlus dimensions in the TensorFlow style. In this case we consider B as T
 		
 		ImagePlus imPlus = null;
 		long[] tensorShape = tensor.getShape().getShape();
@@ -342,8 +353,7 @@ public class ImagePlus2Tensor {
 		int[] completeTensorShape = longShape6(tensorShape);
 		int[] imageDims = {1, 1, 1, 1, 1};
 		
-		// TODO add possibility of batch>1
-		if (batchIndex != -1 && tensorShape[batchIndex] > 1)
+		if (!allowBatch && batchIndex != -1 && tensorShape[batchIndex] > 1)
 			throw new BatchSizeBiggerThanOne(tensorShape, form, name);
 	
 		int fBatch;
@@ -387,39 +397,35 @@ public class ImagePlus2Tensor {
 			form += "Z";
 		}
 		
-		float[] flatImageArray = tensor.toFloatArray();
-		double[][][][][] matImage = new double[imageDims[0]][imageDims[1]][imageDims[2]][imageDims[3]][imageDims[4]];
-		
-		int pos = 0;
-		int[] auxInd = {0, 0, 0, 0, 0};
-		for (int i0 = 0; i0 < completeTensorShape[0]; i0 ++) {
-			auxInd[0] = i0;
-			for (int i1 = 0; i1 < completeTensorShape[1]; i1 ++) {
-				auxInd[1] = i1;
-				for (int i2 = 0; i2 < completeTensorShape[2]; i2 ++) {
-					auxInd[2] = i2;
-					for (int i3 = 0; i3 < completeTensorShape[3]; i3 ++) {
-						auxInd[3] = i3;
-						for (int i4 = 0; i4 < completeTensorShape[4]; i4 ++) {
-							auxInd[4] = i4;
-							matImage[auxInd[fWidth]][auxInd[fHeight]][auxInd[fChannel]][auxInd[fDepth]][auxInd[fBatch]] = (double) flatImageArray[pos ++];
-						}
-					}
-				}
-			}
-		}
-		imPlus = ArrayOperations.convertArrayToImagePlus(matImage, imageDims);
+		// Read the values straight from the tensor buffer, without copying them to an array first
+		FloatBuffer outBuff;
+		if (tensor.getDataType() == DataType.FLOAT32)
+			outBuff = tensor.toByteBuffer().order(ByteOrder.nativeOrder()).asFloatBuffer();
+		else
+			outBuff = FloatBuffer.wrap(tensor.toFloatArray());
+		imPlus = bufferToImagePlus(outBuff, completeTensorShape, imageDims, fBatch, fHeight, fWidth, fChannel, fDepth);
 		
 		return imPlus;
 	}	
 	
-	// TODO make specific for different types
 	public static ImagePlus tensor2ImagePlus(Tensor<?> tensor, String form, String name) throws IncorrectNumberOfDimensions, BatchSizeBiggerThanOne{
-		// This method copies the information from the tensor to a matrix. At first only works
-		// if the batch size is 1
+		return tensor2ImagePlus(tensor, form, name, false);
+	}
+	
+	/*
+	 * Convert a tensor that contains several tiles along the batch dimension
+	 * into one image per tile
+	 */
+	public static ImagePlus[] tensor2ImagePlusBatch(Tensor<?> tensor, String form, String name) throws IncorrectNumberOfDimensions, BatchSizeBiggerThanOne{
+		return ArrayOperations.splitBatch(tensor2ImagePlus(tensor, form, name, true));
+	}
+	
+	// TODO make specific for different types
+	private static ImagePlus tensor2ImagePlus(Tensor<?> tensor, String form, String name, boolean allowBatch) throws IncorrectNumberOfDimensions, BatchSizeBiggerThanOne{
+		// This method copies the information from the tensor to a matrix. If
+		// the batch is allowed, each of the elements of the batch is stored as a frame
 		
-		// ImagePlus dimensions in the TensorFlow style. In this case we consider B as T,
-		// as for the moment both are going to be 1
+		// ImagePlus dimensions in the TensorFlow style. In this case we consider B as T
 		
 		ImagePlus imPlus = null;
 		long[] tensorShape = tensor.shape();
@@ -430,8 +436,7 @@ public class ImagePlus2Tensor {
 		
 		int batchIndex = form.indexOf("B");
 
-		// TODO add possibility of batch>1
-		if (batchIndex != -1 && tensorShape[batchIndex] > 1)
+		if (!allowBatch && batchIndex != -1 && tensorShape[batchIndex] > 1)
 			throw new BatchSizeBiggerThanOne(tensorShape, form, name);
 	
 		int fBatch;
@@ -475,33 +480,56 @@ public class ImagePlus2Tensor {
 			form += "Z";
 		}
 		
-		float[] flatImageArray = new float[imageDims[0] * imageDims[1] * imageDims[2] * imageDims[3] * imageDims[4]];
-
-		FloatBuffer outBuff = FloatBuffer.wrap(flatImageArray);
+		ByteBuffer data = BufferPool.acquire("float32", tensor.shape());
+		FloatBuffer outBuff = data.asFloatBuffer();
 	 	tensor.writeTo(outBuff);
-		double[][][][][] matImage = new double[imageDims[0]][imageDims[1]][imageDims[2]][imageDims[3]][imageDims[4]];
-		
-		int pos = 0;
-		int[] auxInd = {0, 0, 0, 0, 0};
-		for (int i0 = 0; i0 < completeTensorShape[0]; i0 ++) {
-			auxInd[0] = i0;
-			for (int i1 = 0; i1 < completeTensorShape[1]; i1 ++) {
-				auxInd[1] = i1;
-				for (int i2 = 0; i2 < completeTensorShape[2]; i2 ++) {
-					auxInd[2] = i2;
-					for (int i3 = 0; i3 < completeTensorShape[3]; i3 ++) {
-						auxInd[3] = i3;
-						for (int i4 = 0; i4 < completeTensorShape[4]; i4 ++) {
-							auxInd[4] = i4;
-							matImage[auxInd[fWidth]][auxInd[fHeight]][auxInd[fChannel]][auxInd[fDepth]][auxInd[fBatch]] = (double) flatImageArray[pos ++];
+		imPlus = bufferToImagePlus(outBuff, completeTensorShape, imageDims, fBatch, fHeight, fWidth, fChannel, fDepth);
+		BufferPool.release(data);
+		return imPlus;
+	}	
+	
+	/*
+	 * Create an ImagePlus with the dimensions 'imageDims' (XYCZB, the batch is stored as frames)
+	 * reading every pixel from the flat tensor buffer. The position of each value in
+	 * the buffer is computed from the strides of the tensor axes, so the pixel arrays of the
+	 * image are filled in a single pass. The pixel arrays come from the BufferPool, so
+	 * the image can be released once it is not needed anymore.
+	 */
+	private static ImagePlus bufferToImagePlus(FloatBuffer buff, int[] tensorShape, int[] imageDims, int fBatch,
+												int fHeight, int fWidth, int fChannel, int fDepth) {
+		int[] strides = new int[5];
+		int total = 1;
+		for (int i = 4; i >= 0; i --) {
+			strides[i] = total;
+			total *= tensorShape[i];
+		}
+		int nx = imageDims[0];
+		int ny = imageDims[1];
+		int sX = strides[fWidth];
+		int sY = strides[fHeight];
+		ImagePlus imp = BufferPool.createImage("out", nx, ny, imageDims[2], imageDims[3], imageDims[4]);
+		ImageStack stack = imp.getStack();
+		for (int t = 0; t < imageDims[4]; t ++) {
+			for (int c = 0; c < imageDims[2]; c ++) {
+				for (int z = 0; z < imageDims[3]; z ++) {
+					float[] pix = (float[]) stack.getPixels(imp.getStackIndex(c + 1, z + 1, t + 1));
+					int base = t * strides[fBatch] + c * strides[fChannel] + z * strides[fDepth];
+					for (int y = 0; y < ny; y ++) {
+						int pos = base + y * sY;
+						int row = y * nx;
+						if (sX == 1) {
+							buff.position(pos);
+							buff.get(pix, row, nx);
+							continue;
 						}
+						for (int x = 0; x < nx; x ++, pos += sX)
+							pix[row + x] = buff.get(pos);
 					}
 				}
 			}
 		}
-		imPlus = ArrayOperations.convertArrayToImagePlus(matImage, imageDims);
-		return imPlus;
-	}	
+		return imp;
+	}
 	
 	private static int[] longShape6(long[] shape) {
 		// First convert add the needed entries with value 1 to the array
@@ -568,8 +596,6 @@ public class ImagePlus2Tensor {
 		// Create a float array of four dimensions out of an 
 		// ImagePlus object
 		float[] matImage;
-		// Initialise ImageProcessor variable used later
-		ImageProcessor ip;
 		int[] dims = img.getDimensions();
 		int xSize = dims[0];
 		int ySize = dims[1];
@@ -622,33 +648,95 @@ public class ImagePlus2Tensor {
 			fDepth = form.length();
 			form += "Z";
 		}
-		matImage = new float[tensorDims[0] * tensorDims[1] * tensorDims[2] * tensorDims[3] * tensorDims[4]];
-		
 		// Make sure the array is written from last dimension to first dimension.
 		// For example, for CYX we first iterate over all the X, then over the Y and then 
 		// over the C
-		int[] auxCounter = new int[5];
-		int pos = 0;
-		for (int t0 = 0; t0 < tensorDims[0]; t0 ++) {
-			auxCounter[0] = t0;
-			for (int t1 = 0; t1 < tensorDims[1]; t1 ++) {
-				auxCounter[1] = t1;
-				for (int t2 = 0; t2 < tensorDims[2]; t2 ++) {	
-					auxCounter[2] = t2;
-					for (int t3 = 0; t3 < tensorDims[3]; t3 ++) {
-						auxCounter[3] = t3;
-						for (int t4 = 0; t4 < tensorDims[4]; t4 ++) {	
-							auxCounter[4] = t4;
-							
-							img.setPositionWithoutUpdate(auxCounter[fChannel] + 1, auxCounter[fDepth] + 1, 1);
-							ip = img.getProcessor();
-							matImage[pos ++] = ip.getPixelValue(auxCounter[fWidth], auxCounter[fHeight]);
+		matImage = flattenImages(new ImagePlus[] {img}, tensorDims, fBatch, fHeight, fWidth, fChannel, fDepth);
+		
+	return matImage;
+	}
+	
+	/*
+	 * Write the images of a batch into a flat float array with the dimensions 'tensorDims'.
+	 * The position of every pixel is computed from the stride of each axis, and the
+	 * pixel array of every slice is read only once instead of going through the
+	 * ImageProcessor for each pixel.
+	 */
+	public static float[] flattenImages(ImagePlus[] imgs, int[] tensorDims, int fBatch, int fHeight,
+										int fWidth, int fChannel, int fDepth) {
+		int total = 1;
+		for (int d : tensorDims)
+			total *= d;
+		float[] matImage = new float[total];
+		flattenImages(imgs, tensorDims, fBatch, fHeight, fWidth, fChannel, fDepth, FloatBuffer.wrap(matImage));
+		return matImage;
+	}
+	
+	/*
+	 * Same as above, writing into 'matImage' at absolute positions. The position of
+	 * the buffer is set back to 0 at the end
+	 */
+	public static void flattenImages(ImagePlus[] imgs, int[] tensorDims, int fBatch, int fHeight,
+										int fWidth, int fChannel, int fDepth, FloatBuffer matImage) {
+		int[] strides = new int[tensorDims.length];
+		int total = 1;
+		for (int i = tensorDims.length - 1; i >= 0; i --) {
+			strides[i] = total;
+			total *= tensorDims[i];
+		}
+		int xSize = tensorDims[fWidth];
+		int ySize = tensorDims[fHeight];
+		int sX = strides[fWidth];
+		int sY = strides[fHeight];
+		for (int b = 0; b < tensorDims[fBatch]; b ++) {
+			ImagePlus img = imgs[b];
+			ImageStack stack = img.getStack();
+			int width = img.getWidth();
+			// Calibrated 8 and 16 bit images give the calibrated value, as getPixelValue does
+			float[] cTable = img.getCalibration().getCTable();
+			for (int c = 0; c < tensorDims[fChannel]; c ++) {
+				for (int z = 0; z < tensorDims[fDepth]; z ++) {
+					int slice = img.getStackIndex(c + 1, z + 1, 1);
+					Object pixels = stack.getPixels(slice);
+					int base = b * strides[fBatch] + c * strides[fChannel] + z * strides[fDepth];
+					if (pixels instanceof float[]) {
+						float[] pix = (float[]) pixels;
+						for (int y = 0; y < ySize; y ++) {
+							int pos = base + y * sY;
+							if (sX == 1) {
+								matImage.position(pos);
+								matImage.put(pix, y * width, xSize);
+								continue;
+							}
+							for (int x = y * width; x < y * width + xSize; x ++, pos += sX)
+								matImage.put(pos, pix[x]);
+						}
+					} else if (pixels instanceof short[]) {
+						short[] pix = (short[]) pixels;
+						for (int y = 0; y < ySize; y ++) {
+							int pos = base + y * sY;
+							for (int x = y * width; x < y * width + xSize; x ++, pos += sX)
+								matImage.put(pos, cTable == null ? (pix[x] & 0xffff) : cTable[pix[x] & 0xffff]);
 						}
-					}	
+					} else if (pixels instanceof byte[]) {
+						byte[] pix = (byte[]) pixels;
+						for (int y = 0; y < ySize; y ++) {
+							int pos = base + y * sY;
+							for (int x = y * width; x < y * width + xSize; x ++, pos += sX)
+								matImage.put(pos, cTable == null ? (pix[x] & 0xff) : cTable[pix[x] & 0xff]);
+						}
+					} else {
+						// RGB images are not expected here, but keep the old behaviour for them
+						ImageProcessor ip = stack.getProcessor(slice);
+						for (int y = 0; y < ySize; y ++) {
+							int pos = base + y * sY;
+							for (int x = 0; x < xSize; x ++, pos += sX)
+								matImage.put(pos, ip.getPixelValue(x, y));
+						}
+					}
 				}
 			}
 		}
-		
-	return matImage;
+		matImage.position(0);
 	}
 }
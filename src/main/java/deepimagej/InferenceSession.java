@@ -0,0 +1,391 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ * 
+ * Reference: DeepImageJ: A user-friendly environment to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, W. Ouyang, L. Donati, M. Unser, E. Lundberg, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2021.
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ * Science for Life Laboratory, School of Engineering Sciences in Chemistry, Biotechnology and Health, KTH - Royal Institute of Technology, Sweden
+ * 
+ * Authors: Carlos Garcia-Lopez-de-Haro and Estibaliz Gomez-de-Mariscal
+ *
+ */
+
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2019-2021, DeepImageJ
+ * All rights reserved.
+ *	
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *	  this list of conditions and the following disclaimer in the documentation
+ *	  and/or other materials provided with the distribution.
+ *	
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package deepimagej;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import org.tensorflow.Tensor;
+
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.Shape;
+import deepimagej.exceptions.JavaProcessingError;
+import deepimagej.exceptions.MacrosError;
+import deepimagej.processing.ProcessingBridge;
+import deepimagej.tools.DijTensor;
+import deepimagej.tools.Log;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.WindowManager;
+import ij.measure.ResultsTable;
+import ij.plugin.CompositeConverter;
+
+/**
+ * Pre-processing, inference and post-processing of a loaded model on inputs given in a map,
+ * without looking for them among the ImageJ windows and, unless 'show' is set, without
+ * displaying anything. The keys of the maps are the names of the tensors in the model.yaml.
+ * The inputs can be ImagePlus, ResultsTable or float[] (for tensors of fixed shape, in the
+ * axes order of the tensor). The outputs are ImagePlus and ResultsTable.
+ * Models with macro processing still need the ImageJ windows: the macros are run one at
+ * a time and the outputs are shown for the post-processing macros.
+ * A session runs one input at a time, use one session per model.
+ */
+public class InferenceSession {
+	
+	private DeepImageJ				dp;
+	private RunnerProgress			rp;
+	private Log						log;
+	private boolean					show;
+	public	String					error = "";
+	// Tensors created from the inputs, closed after the inference
+	private List<Tensor<?>>			created = new ArrayList<Tensor<?>>();
+	private NDManager				manager = null;
+	
+	/*
+	 * Session of a model already loaded, see ModelLoader
+	 */
+	public InferenceSession(DeepImageJ dp) {
+		this(dp, null, new Log(), false);
+	}
+	
+	public InferenceSession(DeepImageJ dp, RunnerProgress rp, Log log, boolean show) {
+		this.dp = dp;
+		this.rp = rp;
+		this.log = log;
+		this.show = show;
+	}
+	
+	/**
+	 * Run the whole model: pre-processing, inference and post-processing
+	 * @param inputs: inputs of the model by tensor name
+	 * @return the outputs by name or null if there was an error, see 'error'
+	 */
+	public synchronized HashMap<String, Object> run(HashMap<String, Object> inputs) {
+		HashMap<String, Object> processed = preprocess(inputs);
+		if (processed == null)
+			return null;
+		HashMap<String, Object> outputs = infer(processed);
+		if (outputs == null)
+			return null;
+		return postprocess(outputs);
+	}
+	
+	/*
+	 * Pre-processing of the inputs. RGB images are converted into 3 channels. The
+	 * images given are not modified, the processing works on copies
+	 */
+	public synchronized HashMap<String, Object> preprocess(HashMap<String, Object> inputs) {
+		if (rp != null) {
+			rp.setInfoTag("preprocessing");
+			rp.allowStopping(false);
+		}
+		try {
+			return preprocessInputs(inputs);
+		} finally {
+			if (rp != null)
+				rp.allowStopping(true);
+		}
+	}
+	
+	private HashMap<String, Object> preprocessInputs(HashMap<String, Object> inputs) {
+		boolean macros = ProcessingBridge.usesMacros(dp.params.firstPreprocessing, dp.params.secondPreprocessing);
+		boolean java = !macros && (dp.params.firstPreprocessing != null || dp.params.secondPreprocessing != null);
+		HashMap<String, Object> map = new HashMap<String, Object>();
+		for (String name : inputs.keySet()) {
+			Object value = inputs.get(name);
+			DijTensor tensor = DijTensor.retrieveByName(name, dp.params.inputList);
+			if (value instanceof float[] && tensor != null && tensor.tensorType.contains("image")) {
+				value = arrayToImage((float[]) value, tensor);
+				if (value == null)
+					return null;
+			} else if (value instanceof ImagePlus && ((ImagePlus) value).getType() == ImagePlus.COLOR_RGB) {
+				ImagePlus composite = CompositeConverter.makeComposite((ImagePlus) value);
+				if (composite != null) {
+					IJ.log("Converting RGB Color image (1 channel) into RGB Stack (3 channels)");
+					if (macros)
+						IJ.log("Be careful with any macro command that has conflicts with RGB Stack images, for example: 'run(\"RGB Stack\");'");
+					value = composite;
+				}
+			} else if (value instanceof ImagePlus && java) {
+				// The Java processing might change the image it is given, the macros
+				// are run on a copy below
+				value = ((ImagePlus) value).duplicate();
+			}
+			map.put(name, value);
+		}
+		try {
+			if (!macros)
+				return ProcessingBridge.runJavaPreprocessing(map, dp.params);
+			// The macros change the image they are run on
+			DijTensor imageTensor = dp.params.inputList.get(DijTensor.getImageTensorInd(dp.params.inputList));
+			Object image = map.remove(imageTensor.name);
+			if (!(image instanceof ImagePlus)) {
+				error = "The input " + imageTensor.name + " should be an ImagePlus.";
+				IJ.error(error);
+				return null;
+			}
+			synchronized (ProcessingBridge.class) {
+				try {
+					map = ProcessingBridge.runPreprocessing(((ImagePlus) image).duplicate(), dp.params, map);
+				} finally {
+					WindowManager.setTempCurrentImage(null);
+				}
+			}
+			if (map == null)
+				error = "Error during Macro preprocessing.";
+			return map;
+		} catch (MacrosError ex) {
+			ex.printStackTrace();
+			error = "Error during Macro preprocessing.";
+		} catch (JavaProcessingError ex) {
+			ex.printStackTrace();
+			error = "Error during Java preprocessing.\n" + ex.getJavaError();
+		} catch (Exception ex) {
+			ex.printStackTrace();
+			error = "Error during Java preprocessing.";
+		}
+		IJ.error(error);
+		return null;
+	}
+	
+	/*
+	 * Inference on the pre-processed inputs
+	 */
+	public synchronized HashMap<String, Object> infer(HashMap<String, Object> inputs) {
+		Callable<HashMap<String, Object>> runner = createRunner(inputs);
+		if (runner == null)
+			return null;
+		try {
+			HashMap<String, Object> outputs = runner.call();
+			if (outputs == null)
+				error = runner instanceof RunnerTf ? ((RunnerTf) runner).error : ((RunnerPt) runner).error;
+			return outputs;
+		} catch (Exception ex) {
+			ex.printStackTrace();
+			error = "Error during the aplication of the model.";
+			IJ.error(error);
+			return null;
+		} finally {
+			closeInputs();
+		}
+	}
+	
+	/**
+	 * Runner of the model on the pre-processed inputs, to run it in another thread.
+	 * The ResultsTable and float[] inputs are converted into tensors. Once it has been
+	 * run, closeInputs() has to be called
+	 * @param inputs: pre-processed inputs by tensor name
+	 * @return a RunnerTf or a RunnerPt, or null if an input could not be converted
+	 */
+	public Callable<HashMap<String, Object>> createRunner(HashMap<String, Object> inputs) {
+		HashMap<String, Object> map = new HashMap<String, Object>(inputs);
+		for (DijTensor tensor : dp.params.inputList) {
+			if (!tensor.tensorType.contains("parameter") || !map.containsKey(tensor.name))
+				continue;
+			Object value = toParameter(map.get(tensor.name), tensor);
+			if (value == null) {
+				closeInputs();
+				IJ.error(error);
+				return null;
+			}
+			map.put(tensor.name, value);
+		}
+		Callable<HashMap<String, Object>> runner;
+		if (dp.params.framework.equals("tensorflow"))
+			runner = new RunnerTf(dp, rp, map, log, show);
+		else
+			runner = new RunnerPt(dp, rp, map, log, show);
+		if (rp != null)
+			rp.setRunner(runner);
+		return runner;
+	}
+	
+	/*
+	 * Post-processing of the outputs of the inference
+	 */
+	public synchronized HashMap<String, Object> postprocess(HashMap<String, Object> outputs) {
+		if (rp != null) {
+			rp.setInfoTag("postprocessing");
+			rp.allowStopping(false);
+		}
+		try {
+			if (!ProcessingBridge.usesMacros(dp.params.firstPostprocessing, dp.params.secondPostprocessing))
+				return ProcessingBridge.runPostprocessing(dp.params, outputs);
+			// The macros look for the outputs among the ImageJ windows
+			synchronized (ProcessingBridge.class) {
+				for (String name : outputs.keySet()) {
+					Object output = outputs.get(name);
+					if (output instanceof ImagePlus && !((ImagePlus) output).isVisible())
+						((ImagePlus) output).show();
+					else if (output instanceof ResultsTable && ((ResultsTable) output).getTitle() == null)
+						((ResultsTable) output).show(name);
+				}
+				return ProcessingBridge.runPostprocessing(dp.params, outputs);
+			}
+		} catch (MacrosError ex) {
+			ex.printStackTrace();
+			error = "Error during Macro postprocessing.";
+		} catch (JavaProcessingError ex) {
+			ex.printStackTrace();
+			error = "Error during Java postprocessing.\n" + ex.getJavaError();
+		} catch (Exception ex) {
+			ex.printStackTrace();
+			error = "Error during Java postprocessing.";
+		} finally {
+			if (rp != null)
+				rp.allowStopping(true);
+		}
+		IJ.error(error);
+		return null;
+	}
+	
+	/*
+	 * Close the tensors created from the inputs by createRunner
+	 */
+	public void closeInputs() {
+		for (Tensor<?> tensor : created)
+			tensor.close();
+		created.clear();
+		if (manager != null)
+			manager.close();
+		manager = null;
+	}
+	
+	/*
+	 * Tensor of the framework of the model for a ResultsTable or float[] input
+	 */
+	private Object toParameter(Object value, DijTensor tensor) {
+		if (!(value instanceof ResultsTable) && !(value instanceof float[]))
+			return value;
+		boolean pytorch = dp.params.framework.equals("pytorch");
+		if (pytorch && manager == null)
+			manager = NDManager.newBaseManager();
+		if (value instanceof ResultsTable && pytorch)
+			return Table2Tensor.tableToTensor((ResultsTable) value, tensor.form, dp.params.pytorchVersion, manager);
+		if (value instanceof ResultsTable) {
+			Tensor<Float> table = Table2Tensor.tableToTensor((ResultsTable) value, tensor.form);
+			if (table != null)
+				created.add(table);
+			return table;
+		}
+		float[] data = (float[]) value;
+		int[] shape = fixedShape(tensor, data.length);
+		if (shape == null)
+			return null;
+		long[] longShape = new long[shape.length];
+		for (int i = 0; i < shape.length; i ++)
+			longShape[i] = shape[i];
+		if (pytorch)
+			return manager.create(data, new Shape(longShape));
+		Tensor<Float> array = Tensor.create(longShape, FloatBuffer.wrap(data));
+		created.add(array);
+		return array;
+	}
+	
+	/*
+	 * Image for a float[] input, whose values are in the axes order of the tensor
+	 */
+	private ImagePlus arrayToImage(float[] data, DijTensor tensor) {
+		int[] shape = fixedShape(tensor, data.length);
+		if (shape == null) {
+			IJ.error(error);
+			return null;
+		}
+		int[] stride = new int[shape.length];
+		int size = 1;
+		for (int i = shape.length - 1; i >= 0; i --) {
+			stride[i] = size;
+			size *= shape[i];
+		}
+		// Size and stride of the axes X, Y, C and Z
+		int[] xycz = new int[4];
+		int[] xyczStride = new int[4];
+		for (int a = 0; a < 4; a ++) {
+			int ind = tensor.form.indexOf("XYCZ".charAt(a));
+			xycz[a] = ind == -1 ? 1 : shape[ind];
+			xyczStride[a] = ind == -1 ? 0 : stride[ind];
+		}
+		ImagePlus imp = IJ.createHyperStack(tensor.name, xycz[0], xycz[1], xycz[2], xycz[3], 1, 32);
+		for (int z = 0; z < xycz[3]; z ++) {
+			for (int c = 0; c < xycz[2]; c ++) {
+				float[] pixels = (float[]) imp.getStack().getPixels(imp.getStackIndex(c + 1, z + 1, 1));
+				int offset = c * xyczStride[2] + z * xyczStride[3];
+				for (int y = 0; y < xycz[1]; y ++) {
+					for (int x = 0; x < xycz[0]; x ++)
+						pixels[y * xycz[0] + x] = data[offset + y * xyczStride[1] + x * xyczStride[0]];
+				}
+			}
+		}
+		return imp;
+	}
+	
+	/*
+	 * Shape of a tensor whose size is fixed in the model.yaml, null if it is not fixed
+	 * or it does not have 'length' elements
+	 */
+	private int[] fixedShape(DijTensor tensor, int length) {
+		int[] shape = tensor.tensor_shape;
+		if (shape == null) {
+			for (int i = 0; tensor.step != null && i < tensor.step.length; i ++) {
+				if (tensor.step[i] != 0) {
+					error = "The input " + tensor.name + " has no fixed size, it has to be given as an ImagePlus.";
+					return null;
+				}
+			}
+			shape = tensor.minimum_size;
+		}
+		long size = 1;
+		for (int i = 0; shape != null && i < shape.length; i ++)
+			size *= shape[i];
+		if (shape == null || size != length) {
+			error = "The input " + tensor.name + " should have " + size + " values (" + tensor.form + ").";
+			return null;
+		}
+		return shape;
+	}
+}
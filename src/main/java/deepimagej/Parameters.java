@@ -58,8 +58,12 @@ import java.util.Map;
 import java.util.Set;
 
 import deepimagej.tools.DijTensor;
+import deepimagej.tools.SystemUsage;
+import deepimagej.tools.TilePlanner;
+import deepimagej.tools.TileSkip;
 import deepimagej.tools.YAMLUtils;
 import ij.ImagePlus;
+import ij.gui.Roi;
 
 public class Parameters {
 
@@ -162,6 +166,76 @@ public class Parameters {
 	 * always.
 	 */
 	public boolean allowPatching = true;
+	/*
+	 * Number of tiles that are packed together along the batch
+	 * dimension and processed in a single call to the model. Only used
+	 * when the input tensor contains the batch dimension. By default 1.
+	 */
+	public int batchSize = 1;
+	/*
+	 * Number of batches of tiles that are given to the model at the same
+	 * time, each one from its own thread. By default 1. Can be set with the
+	 * system property 'deepimagej.inference.workers' or in the macro call
+	 */
+	public int inferenceWorkers = SystemUsage.getIntProperty("deepimagej.inference.workers", 1);
+	/*
+	 * Threads used by the engine to parallelise a single operation (intra) and
+	 * to run independent operations at the same time (inter). 0 lets the
+	 * engine decide. Can be set with the system properties
+	 * 'deepimagej.intra_op_threads' and 'deepimagej.inter_op_threads' or in the macro call
+	 */
+	public int intraOpThreads = SystemUsage.getIntProperty("deepimagej.intra_op_threads", 0);
+	public int interOpThreads = SystemUsage.getIntProperty("deepimagej.inter_op_threads", 0);
+	/*
+	 * Cost of a call to the model, measured in voxels computed, used to decide
+	 * between fewer bigger tiles and more smaller tiles. It can be set with the
+	 * system property 'deepimagej.tile.call_overhead'
+	 */
+	public int tileCallOverhead = SystemUsage.getIntProperty("deepimagej.tile.call_overhead", TilePlanner.DEFAULT_CALL_OVERHEAD);
+	/*
+	 * Folder where the tiled outputs are stitched on disk instead of in memory.
+	 * The outputs are opened afterwards as virtual stacks, so images bigger than
+	 * the Java heap can be processed. Set with the macro argument 'out_of_core_dir'
+	 * or the system property 'deepimagej.out_of_core.dir'. Null keeps everything in memory
+	 */
+	public String outOfCoreDir = System.getProperty("deepimagej.out_of_core.dir");
+	/*
+	 * Folder where a chunked, multiscale copy (Zarr/OME-NGFF layout) of the tiled
+	 * outputs is written while they are computed. Set with the macro argument
+	 * 'zarr_dir' or the system property 'deepimagej.zarr.dir'. Null does not write it
+	 */
+	public String zarrDir = System.getProperty("deepimagej.zarr.dir");
+	/*
+	 * Number of resolution levels of the chunked outputs, 0 adds levels until
+	 * the image fits in one chunk ('zarr_levels' or 'deepimagej.zarr.levels')
+	 */
+	public int zarrLevels = SystemUsage.getIntProperty("deepimagej.zarr.levels", 0);
+	/*
+	 * Condition to skip the tiles that do not need to be processed, for example
+	 * background tiles. Set with the macro argument 'skip_tiles'. Null processes every tile
+	 */
+	public TileSkip tileSkip = null;
+	/*
+	 * Value written in the outputs of the skipped tiles ('skip_fill'). NaN writes
+	 * the output that the model gives for a background tile of the same size
+	 */
+	public float tileSkipFill = Float.NaN;
+	/*
+	 * Whether the outputs of the tiles are kept in the TileCache so the tiles that
+	 * do not change are not processed again. Set with the macro argument
+	 * 'tile_cache=true' or the system property 'deepimagej.tile_cache'
+	 */
+	public boolean tileCache = Boolean.getBoolean("deepimagej.tile_cache");
+	/*
+	 * Regions of the input image that have to be processed, only the tiles that
+	 * touch them are given to the model. Null processes the whole image
+	 */
+	public Roi[] selection = null;
+	/*
+	 * Whether the outputs only cover the rectangle that contains the selection
+	 * instead of the whole image ('roi_output=crop')
+	 */
+	public boolean selectionCrop = false;
 	/*
 	 * Image used to test the model
 	 */
@@ -463,6 +537,14 @@ public class Parameters {
 		Map<String, Object> deepimagej = (Map<String, Object>) config.get("deepimagej");
 		pyramidalNetwork = (boolean) deepimagej.get("pyramidal_model");
 		allowPatching = (boolean) deepimagej.get("allow_tiling");
+		// Optional number of tiles processed per model call
+		if (deepimagej.get("batch_size") != null) {
+			try {
+				batchSize = Math.max(1, Integer.parseInt("" + deepimagej.get("batch_size")));
+			} catch (NumberFormatException ex) {
+				batchSize = 1;
+			}
+		}
 		// Model keys
 		if (deepimagej.keySet().contains("model_keys") && deepimagej.get("model_keys") != null) {
 			Map<String, Object> model_keys = (Map<String, Object>) deepimagej.get("model_keys");
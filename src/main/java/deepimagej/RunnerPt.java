@@ -44,12 +44,15 @@
 
 package deepimagej;
 
+import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.tensorflow.Tensor;
 
@@ -62,12 +65,11 @@ import ai.djl.ndarray.types.Shape;
 import ai.djl.repository.zoo.ZooModel;
 import deepimagej.exceptions.BatchSizeBiggerThanOne;
 import deepimagej.exceptions.IncorrectNumberOfDimensions;
-import deepimagej.tools.ArrayOperations;
-import deepimagej.tools.CompactMirroring;
+import deepimagej.tools.BufferPool;
 import deepimagej.tools.DijTensor;
 import deepimagej.tools.Index;
 import deepimagej.tools.Log;
-import deepimagej.tools.NumFormat;
+import deepimagej.tools.TiledInference;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.measure.ResultsTable;
@@ -78,11 +80,18 @@ public class RunnerPt implements Callable<HashMap<String, Object>> {
 	private DeepImageJ				dp;
 	private RunnerProgress			rp;
 	private Log						log;
-	private int						currentPatch = 0;
-	private int						totalPatch = 0;
+	// Application of the model tile by tile, null until the runner starts
+	private volatile TiledInference	tiled = null;
 	public String					error = "";
+	// Whether the outputs are displayed, otherwise they are only returned in the map
+	private boolean					show = true;
 
 	public RunnerPt(DeepImageJ dp, RunnerProgress rp,HashMap<String,Object> inputMap, Log log) {
+		this(dp, rp, inputMap, log, true);
+	}
+	
+	public RunnerPt(DeepImageJ dp, RunnerProgress rp,HashMap<String,Object> inputMap, Log log, boolean show) {
+		this.show = show;
 		this.dp = dp;
 		this.rp = rp;
 		this.log = log;
@@ -111,135 +120,16 @@ public class RunnerPt implements Callable<HashMap<String, Object>> {
 		if (!params.developer) {
 			// TODO what to do with input parameters for torch models
 		}
-		// Map that contains the input tensors that are not images.
-        HashMap<String, Object> parameterMap = new HashMap<String, Object>(); 
-		ImagePlus imp = null;
-		// Auxiliary array with the same number of images as output tensors
-		int c = 0;
-		int inputImageInd = 0;
-		for (DijTensor tensor : params.inputList) {
-			if (tensor.tensorType.contains("image")) {
-				imp = getImageFromMap(inputMap, tensor);
-				if (imp == null) {
-					// TODO maybe we should allow running models without images
-					error = "No image provided.";
-					return null;
-				}
-				String inputPixelSizeX = ((float) imp.getCalibration().pixelWidth) + " " + imp.getCalibration().getUnit();
-				String inputPixelSizeY = ((float) imp.getCalibration().pixelHeight) + " " + imp.getCalibration().getUnit();
-				String inputPixelSizeZ = ((float) imp.getCalibration().pixelDepth) + " " + imp.getCalibration().getUnit();
-				int[] dims = imp.getDimensions();
-				params.inputList.get(c).inputTestSize = Integer.toString(dims[0]) + " x " + Integer.toString(dims[1]) + " x " + Integer.toString(dims[2]) + " x " + Integer.toString(dims[3]);;
-				params.inputList.get(c).inputPixelSizeX = inputPixelSizeX;
-				params.inputList.get(c).inputPixelSizeY = inputPixelSizeY;
-				params.inputList.get(c).inputPixelSizeZ = inputPixelSizeZ;
-				inputImageInd = c;
-			} else if (tensor.tensorType.contains("parameter")){
-				Object tensorVal = getTensorFromMap(inputMap, tensor);
-				if (tensorVal == null) {
-					error = "The input tensor '" + tensor.name + "' should be given by"
-							+ "the preprocessing but it is not.";
-					IJ.error(error);
-					return null;
-				} else if (tensorVal instanceof Tensor<?>) {
-					parameterMap.put(tensor.name, (Tensor<?>) tensorVal);
-				} else if (tensorVal instanceof NDArray) {
-					parameterMap.put(tensor.name, (NDArray) tensorVal);
-				} else  {
-					// TODO improve error message and review what can be a preprocessing output
-					error = "Output of the preprocessing should be either a Tensor object"
-							+ " or a NDArray object";
-					IJ.error(error);
-					return null;
-				}
-			}
-			c ++;
-		}
-		
-		int outputImagesCount = 0;
-		for (DijTensor tensor : params.outputList) {
-			if (tensor.tensorType.contains("image"))
-				outputImagesCount ++;
-		}
-		ImagePlus[] outputImages = new ImagePlus[outputImagesCount];
-		List<ResultsTable> outputTables = new ArrayList<ResultsTable>();
-		
-		if (imp == null) {
-			// TODO maybe we should allow running models without images
-			error = "No image provided.";
+		tiled = new TiledInference(dp, rp, log, show);
+		if (!tiled.readInputs(inputMap)) {
+			error = tiled.error;
 			return null;
 		}
-		
-		int nx = imp.getWidth();
-		int ny = imp.getHeight();
-		int nc = imp.getNChannels();
-		int nz = imp.getNSlices();
-		
-		if (log.getLevel() >= 1)
-			log.print("image size " + nx + "x" + ny + "x" + nz);
-		
-		
-		int[] indices = new int[4];
-		String[] dimLetters = "XYCZ".split("");
-		for  (int i = 0; i < dimLetters.length; i ++)
-			indices[i] = params.inputList.get(inputImageInd).form.indexOf(dimLetters[i]);
-
-		int[] patchSize = {1, 1, 1, 1};
-		int[] step = {1, 1, 1, 1};
-		int[] minSize = {1, 1, 1, 1};
-		for (int i = 0; i < indices.length; i ++) {
-			if (indices[i] != -1) {
-				patchSize[i] = params.inputList.get(inputImageInd).recommended_patch[indices[i]];
-				step[i] = params.inputList.get(inputImageInd).step[indices[i]];
-				minSize[i] = params.inputList.get(inputImageInd).minimum_size[indices[i]];
-			}
-		}
-		
-		// TODO improve
-		if (params.pyramidalNetwork || !params.allowPatching) {
-			for (c = 0; c < patchSize.length; c ++) {
-				if (step[c] != 0 && patchSize[c] != imp.getDimensions()[c]) {
-					patchSize[c] = (int) Math.ceil((double) (imp.getDimensions()[c] - minSize[c]) / step[c]) * step[c] + minSize[c];
-				} else if (patchSize[c] < imp.getDimensions()[c] && step[c] == 0) {
-					String errorMsg = "This model only accepts images with input size smaller or equal to:";
-					for (int i = 0; i < dimLetters.length; i ++) {
-						errorMsg += "\n" + dimLetters[i] + " : " + patchSize[i];
-					}
-					IJ.error(errorMsg);
-					return null;
-				}
-			}
-		}
-		
-		int px = patchSize[0]; int py = patchSize[1]; int pc = patchSize[2]; int pz = patchSize[3]; 
-		
-		if (!ArrayOperations.isImageSizeAcceptable(new int[] {nx, ny, nc, nz}, patchSize, params.inputList.get(inputImageInd).form)) {
-			if (rp != null )
-				rp.stop();
-			return null;
-		}
-		
-		if (log.getLevel() >= 1)
-			log.print("patch size " + "X: " +  px + ", Y: " +  py + ", Z: " +  pz + ", C: " +  pc);
-		
-		// To define the runtime for config.xml. Starting time
-		long startingTime = System.nanoTime();
-		// Create the image that is going to be fed to the graph
-		ImagePlus[] impatch = new ImagePlus[outputImages.length];
-		
-		String[] outputTitles = new String[params.outputList.size()];
-		// Reset the counter to 0 use it again
-		c = 0;
-		int extensionInd = imp.getTitle().lastIndexOf('.');
-		String imName = extensionInd  == -1 ? imp.getTitle() : imp.getTitle().substring(0, extensionInd);
-		for (DijTensor outName: params.outputList) 
-			outputTitles[c++] = dp.getName() + "_" + outName.name  + "_" + imName;
-
 		// Order of the dimensions. For example "NHWC"-->Batch size, Height, Width, Channels
-		String inputForm = params.inputList.get(inputImageInd).form;
-		int[] inputDims = params.inputList.get(inputImageInd).minimum_size;
+		String inputForm = tiled.getInputTensor().form;
+		int[] inputDims = tiled.getInputTensor().minimum_size;
 		int channelPos = Index.indexOf(inputForm.split(""), "C");
-		int[] inDim = imp.getDimensions();
+		int[] inDim = tiled.getInputImage().getDimensions();
 		// TODO should channels always be exact?
 		if (inDim[2] % inputDims[channelPos] != 0 && inputDims[channelPos] != -1) {
 			error = "The number of channels of the input image is incorrect.\n"
@@ -248,359 +138,19 @@ public class RunnerPt implements Callable<HashMap<String, Object>> {
 			IJ.error(error);
 			return null;
 		}
-		// Get the padding in case the image needs any
-		int[] padding = new int[4];
-		if (!params.pyramidalNetwork) {
-			padding = findTotalPadding(params.outputList);
-		}
-		int roiX = px - padding[0] * 2;
-		int roiY = py - padding[1] * 2;
-		int roiZ = pz - padding[3] * 2;
-		int roiC = pc - padding[2] * 2;
-		int npx = (int) Math.ceil((double)nx / (double)roiX);
-		int npy = (int) Math.ceil((double)ny / (double)roiY);
-		int npc = (int) Math.ceil((double)nc / (double)roiC);
-		int npz = (int) Math.ceil((double)nz / (double)roiZ);
-		if (!params.allowPatching) {
-			npx = 1; npy = 1; npz = 1; npc = 1;
+		TileStages stages = new TileStages(model, tiled.getParameters());
+		try {
+			HashMap<String, Object> outputMap = tiled.run(stages);
+			error = tiled.error;
+			return outputMap;
+		} finally {
+			stages.close();
+			long leaked = stages.liveArrays.get();
+			if (leaked != 0)
+				IJ.log("Warning: " + leaked + " NDArrays of the run were not released.");
+			else if (log.getLevel() == 2)
+				log.print("Every NDArray of the run was released");
 		}
-		currentPatch = 0;
-		totalPatch = npx * npy * npz * npc;
-
-		int[] roi = {roiX, roiY, roiC, roiZ};
-		int[] size = {nx, ny, nc, nz};
-		int[][] mirrorPixels = ArrayOperations.findAddedPixels(size, padding, roi);
-		ImagePlus mirrorImage = CompactMirroring.mirrorXY(imp, mirrorPixels[0][0], mirrorPixels[1][0],
-														  	   mirrorPixels[0][1], mirrorPixels[1][1],
-														       mirrorPixels[0][3], mirrorPixels[1][3]);
-		if (log.getLevel() == 2) {
-			mirrorImage.setTitle("Extended image");
-			mirrorImage.getProcessor().resetMinAndMax();
-			mirrorImage.show();
-		}
-		
-		// If the roi of the patch is bigger than the actual image wanted, consider all the
-		// remaining pixels as overlap (padding). Consider that now there might be then different
-		// padding for X and Y
-		int overlapX = mirrorPixels[0][0];
-		if (roiX > nx) {
-			roiX = nx;
-			padding[0] = (px - nx) / 2;
-			overlapX = (px - nx) / 2;
-		}
-		
-		int overlapY = mirrorPixels[0][1];
-		if (roiY > ny) {
-			roiY = ny;
-			padding[1] = (py - ny) / 2;
-			overlapY = (py - ny) / 2;
-		}
-		
-		int overlapZ = mirrorPixels[0][3];
-		if (roiZ > nz) {
-			roiZ = nz;
-			padding[3] = (pz - nz) / 2;
-			overlapZ = (pz - nz) / 2;
-		}
-
-		if (log.getLevel() >= 1)
-			log.print("start " + npx + "x" + npy);
-
-		NDList inputTensors = new NDList();
-		for (int i = 0; i < npx; i++) {
-			for (int j = 0; j < npy; j++) {
-				for (int z = 0; z < npz; z++) {
-					// TODO reduce this mega big loop to something more modular
-					currentPatch++;
-					if (log.getLevel() >= 1)
-						log.print("currentPatch " + currentPatch);
-					if (rp != null && rp.isStopped()) {
-						rp.stop();
-						return null;
-					}
-					// Variables to track when the roi starts in the mirror image
-					int xMirrorStartPatch;
-					int yMirrorStartPatch;
-					int zMirrorStartPatch;
-					
-					// Variables to track when the roi starts in the patch
-					int xImageStartPatch;
-					int xImageEndPatch;
-					int yImageStartPatch;
-					int yImageEndPatch;
-					int zImageStartPatch;
-					int zImageEndPatch;
-					int leftoverPixelsX;
-					int leftoverPixelsY;
-					int leftoverPixelsZ;
-					if (i < npx -1 || npx == 1) {
-						xMirrorStartPatch = padding[0] + roiX*i;
-	
-						xImageStartPatch = roiX*i;
-						xImageEndPatch = roiX*(i + 1);
-						leftoverPixelsX = overlapX;
-					} else {
-						xMirrorStartPatch = nx + padding[0] - roiX;
-	
-						xImageStartPatch = roiX*i;
-						xImageEndPatch = nx;
-						leftoverPixelsX = overlapX + roiX - (xImageEndPatch - xImageStartPatch);
-					}
-					
-					if (j < npy - 1 || npy == 1) {
-						yMirrorStartPatch = padding[1] + roiY*j;
-	
-						yImageStartPatch = roiY*j;
-						yImageEndPatch = roiY*(j + 1);
-						leftoverPixelsY = overlapY;
-					} else {
-						yMirrorStartPatch = ny + padding[1] - roiY;
-	
-						yImageStartPatch = roiY*j;
-						yImageEndPatch = ny;
-						leftoverPixelsY = overlapY + roiY - (yImageEndPatch - yImageStartPatch);
-					}
-					
-					if (z < npz - 1 || npz == 1) {
-						zMirrorStartPatch = padding[3] + roiZ*z;
-	
-						zImageStartPatch = roiZ*z;
-						zImageEndPatch = roiZ*(z + 1);
-						leftoverPixelsZ = overlapZ;
-					} else {
-						zMirrorStartPatch = nz + padding[3] - roiZ;
-	
-						zImageStartPatch = roiZ*z;
-						zImageEndPatch = nz;
-						leftoverPixelsZ = overlapZ + roiZ- (zImageEndPatch - zImageStartPatch);
-					}
-					
-					ImagePlus patch = ArrayOperations.extractPatch(mirrorImage, patchSize, xMirrorStartPatch, yMirrorStartPatch,
-																	zMirrorStartPatch, overlapX, overlapY, overlapZ);
-					if (log.getLevel() >= 1)
-						log.print("Extract Patch (" + (i + 1) + ", " + (j + 1) + ") patch size: " + patch.getWidth() + "x" + patch.getHeight() + " pixels");
-					if (log.getLevel() == 2) {
-						patch.setTitle("Patch (" + i + "," + j + ")");
-						patch.getProcessor().resetMinAndMax();
-					}
-
-					// TODO optimise (take the try out of the loop) 
-					try (NDManager manager = NDManager.newBaseManager()) {
-						inputTensors = getInputTensors(manager, inputTensors, params.inputList, parameterMap,
-														patch, params.pytorchVersion);
-						// TODO make easier to understand
-						if (inputTensors == null) {
-							error = "Error retrieving inputs to tensors for the model.";
-							IJ.error(error);
-							return null;
-						}
-
-						// The thread cannot be stopped while loading a model, thus block the button
-						// while executing the task
-						if (rp != null)
-							rp.allowStopping(false);
-						Predictor<NDList, NDList> predictor = model.newPredictor();
-						NDList outputTensors = predictor.predict(inputTensors);
-						// Close inputTensors to avoid memory leak
-						inputTensors.close();
-						if (rp != null)
-							rp.allowStopping(true);
-						// Check if the user has tried to stop the execution while loading the model
-						// If they have return false and stop
-						if(rp != null && rp.isStopped())
-							return null;
-						
-						c = 0;
-						int imCounter = 0;
-						for (DijTensor outTensor : params.outputList) {
-							if (log.getLevel() >= 1)
-								log.print("Session run " + (c+1) + "/"  + params.outputList.size());
-							NDArray result = outputTensors.get(c);
-							if (outTensor.tensorType.contains("image") && !params.pyramidalNetwork) {
-								impatch[imCounter] = ImagePlus2Tensor.NDArray2ImagePlus(result, outTensor.form, outTensor.name, params.pytorchVersion);
-								imCounter ++;
-								c ++;
-							} else if (outTensor.tensorType.contains("image") && (params.pyramidalNetwork || !params.allowPatching)) {
-								outputImages[imCounter] = ImagePlus2Tensor.NDArray2ImagePlus(result, outTensor.form, outTensor.name, params.pytorchVersion);
-								outputImages[imCounter].setTitle(outputTitles[imCounter]);
-								outputImages[imCounter].show();
-								imCounter ++;
-								c ++;
-							} else if (outTensor.tensorType.contains("list")){
-								ResultsTable table = Table2Tensor.tensorToTable(result, outTensor.form, outTensor.name, params.pytorchVersion);
-								outputTables.add(table);
-								table.show(outputTitles[c ++]);
-							}
-							// Check if the user has tried to stop the execution while loading the model
-							// If they have return false and stop
-							if (rp != null && rp.isStopped()) {
-								outputTensors.close();
-								manager.close();
-								return null;
-							}
-						}
-						outputTensors.close();
-						manager.close();
-					} catch (IncorrectNumberOfDimensions ex) {
-						ex.printStackTrace();	
-						
-						error = "The dimensions specified for the '" + ex.getName() 
-						+ "' (" + ex.getDims() + ") should match the number of dimensions"
-						+ " output tensor " + Arrays.toString(ex.getShape());
-						error += "\n";
-						error += dimensionsMismatch(ex.getMessage());
-						IJ.log("Error applying the model");
-						IJ.log(error);
-						commentAboutPytorchVersions();
-						return null;
-					} catch(BatchSizeBiggerThanOne ex) {
-						ex.printStackTrace();	
-						error = "Output batch size bigger than 1 for tensor '" + ex.getName() + "'.\n Batch_size > 1 not supported by this version of DeepImageJ";
-						IJ.log("Error applying the model");
-						IJ.log(error);
-						IJ.log(ex.toString());
-						IJ.log("\n");
-						commentAboutPytorchVersions();
-						return null;
-					} catch (EngineException ex) {
-						ex.printStackTrace();	
-						error = dimensionsMismatch(ex.getMessage());
-						IJ.log("Error applying the model");
-						IJ.log("Check that the specifications for the input are compatible with the model architecture.");
-						IJ.log(error);
-						commentAboutPytorchVersions();
-						return null;
-					} catch (Exception ex) {
-						ex.printStackTrace();	
-						error = dimensionsMismatch(ex.getMessage());
-						IJ.log("Error applying the model");
-						IJ.log(error);
-						commentAboutPytorchVersions();
-						return null;
-					}
-					int[][] allOffsets = findOutputOffset(params.outputList);
-					int imCounter = 0;
-					for (int counter = 0; counter < params.outputList.size(); counter++) {
-						// TODO decide what to do when pyramidal && !allowPatching
-						if (params.outputList.get(counter).tensorType.contains("image") && !params.pyramidalNetwork && params.allowPatching) {
-							float[] outSize = findOutputSize(size, params.outputList.get(counter), params.inputList, impatch[imCounter].getDimensions());
-							if (outputImages[imCounter] == null) {
-								int[] dims = impatch[imCounter].getDimensions();
-								outputImages[imCounter] = IJ.createHyperStack(outputTitles[imCounter], (int)outSize[0], (int)outSize[1], (int)outSize[2], (int)outSize[3], dims[4], 32);
-								outputImages[imCounter].getProcessor().resetMinAndMax();
-								outputImages[imCounter].show();
-							}
-							float scaleX = outSize[0] / nx; float scaleY = outSize[1] / ny; float scaleZ = outSize[3] / nz;
-							ArrayOperations.imagePlusReconstructor(outputImages[imCounter], impatch[imCounter], (int) (xImageStartPatch * scaleX),
-									(int) (xImageEndPatch * scaleX), (int) (yImageStartPatch * scaleY), (int) (yImageEndPatch * scaleY),
-									(int) (zImageStartPatch * scaleZ), (int) (zImageEndPatch * scaleZ),(int)(leftoverPixelsX * scaleX) + allOffsets[imCounter][0],
-									(int)(leftoverPixelsY * scaleY) + allOffsets[imCounter][1], (int)(leftoverPixelsZ * scaleZ) + allOffsets[imCounter][3]);
-							if (outputImages[imCounter] != null)
-								outputImages[imCounter].getProcessor().resetMinAndMax();
-							if (rp != null && rp.isStopped()) {
-								rp.stop();
-								return null;
-							}
-							imCounter ++;
-						} else if (params.outputList.get(counter).tensorType.contains("image") && params.pyramidalNetwork) {
-							// TODO improve
-							int[] outPatchDims = outputImages[imCounter].getDimensions();
-							String[] ijForm = "XYCZB".split("");
-							String dijForm = params.outputList.get(counter).form;
-							int[] pyramidOut = params.outputList.get(counter).sizeOutputPyramid;
-							for (int dd = 0; dd < ijForm.length; dd ++) {
-								int idx = dijForm.indexOf(ijForm[dd]);
-								if (idx == -1 && outPatchDims[dd] == 1) {
-									continue;
-								} else if (idx != -1 && outPatchDims[dd] == pyramidOut[idx]) {
-									continue;
-								}
-								IJ.error("The dimensions of the output image do not coincide\n"
-										+ "with the dimensions specified previously:\n"
-										+ "Specified output dimensions: dimension order -> " + dijForm + ", dimension size -> " + Arrays.toString(pyramidOut) 
-										+ "Actual output dimensions: dimension order -> XYCZB, dimension size -> " + Arrays.toString(outPatchDims));
-								error = "Error specifying output dimensions.";
-								return null;
-							}
-							if (rp != null && rp.isStopped()) {
-								rp.stop();
-								return null;
-							}
-							imCounter ++;
-						} else if (params.outputList.get(counter).tensorType.contains("image") && !params.pyramidalNetwork && !params.allowPatching) {
-							// TODO improve
-							int[] outPatchDims = outputImages[imCounter].getDimensions();
-							String[] ijForm = "XYCZB".split("");
-							String dijForm = params.outputList.get(counter).form;
-							float[] scale = params.outputList.get(counter).scale;
-							int[] offset = params.outputList.get(counter).offset;
-							// TODO adapt for more inputs
-							// We take the mirrored image as the reference, because that is what ends
-							// up going into the model
-							int[] refSize = mirrorImage.getDimensions();
-							String thSizeStr = "[";
-							for (int dd = 0; dd < ijForm.length; dd ++) {
-								int idx = dijForm.indexOf(ijForm[dd]);
-								if (idx == -1 && outPatchDims[dd] == scale[idx]) {
-									thSizeStr += scale[idx] + ",";
-									continue;
-								} else if (idx != -1 && outPatchDims[dd] == (int)(refSize[dd] * scale[idx]) + 2 * offset[idx]) {
-									thSizeStr += ((int)(refSize[dd] * scale[idx]) + 2 * offset[idx]) + ",";
-									continue;
-								}
-								for (dd ++; dd < ijForm.length;) {
-									idx = dijForm.indexOf(ijForm[dd]);
-									if (idx == -1) {
-										thSizeStr += scale[idx] + ",";
-									} else if (idx != -1) {
-										thSizeStr += ((int)(refSize[dd] * scale[idx]) + 2 * offset[idx]) + ",";
-									}
-								}
-								thSizeStr = thSizeStr.substring(0, thSizeStr.length() - 1) + "]";
-								IJ.error("The dimensions of the output image do not coincide\n"
-										+ "with the dimensions specified previously:\n"
-										+ "Specified output dimensions: dimension order -> XYCZB, dimension size -> " + thSizeStr 
-										+ "Actual output dimensions: dimension order -> XYCZB, dimension size -> " + Arrays.toString(outPatchDims));
-								error = "Error specifying output dimensions.";
-								return null;
-							}
-							if (rp != null && rp.isStopped()) {
-								rp.stop();
-								return null;
-							}
-							imCounter ++;
-						}
-					}
-					if (log.getLevel() >= 1)
-						log.print("Create Output ");
-				}
-			}
-		}
-		
-		// To define the runtime. End time
-		long endTime = System.nanoTime();
-		params.runtime = NumFormat.seconds(endTime - startingTime);
-		// Set Parameter params.memoryPeak
-		if (rp != null) 
-			params.memoryPeak = NumFormat.bytes(rp.getPeakmem());
-		// Set Parameter  params.outputSize
-		HashMap<String, Object> outputMap = new HashMap<String, Object>();
-		int imageCount = 0;
-		int tableCount = 0;
-		c = 0;
-		for (DijTensor tensor : params.outputList) {
-			if (tensor.tensorType.contains("image")) {
-				ImagePlus im = outputImages[imageCount];
-				// Add the image to the output map
-				outputMap.put(tensor.name, im);
-			} else if (tensor.tensorType.contains("list")) {
-				// Add the results table to the output map
-				outputMap.put(tensor.name, outputTables.get(tableCount ++));
-				}
-		}
-		
-		
-		return outputMap;
 	}
 	
 	private void commentAboutPytorchVersions() {
@@ -611,35 +161,8 @@ public class RunnerPt implements Callable<HashMap<String, Object>> {
 		
 	}
 	
-	private static ImagePlus getImageFromMap(HashMap<String, Object> inputMap, DijTensor tensor) {
-		if (!inputMap.containsKey(tensor.name)){
-			IJ.error("Preprocessing should provide a HashMap with\n"
-					+ "the key " + tensor.name);
-			return null;
-		} else if (!(inputMap.get(tensor.name) instanceof ImagePlus)) {
-			IJ.error("The input " + tensor.name + " should"
-					+ " be an instance of an ImagePlus.");
-			return null;
-		}
-		ImagePlus imp = (ImagePlus) inputMap.get(tensor.name);
-		return imp;
-	}
-	
-	private static Object getTensorFromMap(HashMap<String, Object> inputMap, DijTensor tensor){
-		if (!inputMap.containsKey(tensor.name)){
-			IJ.error("Preprocessing should provide a HashMap with\n"
-					+ "the key " + tensor.name);
-			return null;
-		} else if (!(inputMap.get(tensor.name) instanceof Tensor<?>)) {
-			IJ.error("The input " + tensor.name + " should"
-					+ " be an instance of a Tensor.");
-			return null;
-		}
-		return inputMap.get(tensor.name);
-	}
-	
 	private static NDList getInputTensors(NDManager manager, NDList tensorsArray, List<DijTensor> inputTensors, HashMap<String, Object> paramsMap,
-												ImagePlus im, String pytorchVersion){
+												ImagePlus[] patches, String pytorchVersion, List<ByteBuffer> leases){
 		tensorsArray = new NDList();
 		for (DijTensor tensor : inputTensors) {
 			if (tensor.tensorType.contains("parameter") && (paramsMap.get(tensor.name) instanceof NDArray)) {
@@ -660,7 +183,7 @@ public class RunnerPt implements Callable<HashMap<String, Object>> {
 				}
 			} else if (tensor.tensorType.contains("image")) {
 				 try {
-					 NDArray tt = ImagePlus2Tensor.imPlus2tensor(manager, im, tensor.form, pytorchVersion);
+					 NDArray tt = ImagePlus2Tensor.imPlus2tensor(manager, patches, tensor.form, pytorchVersion, leases);
 					 tensorsArray.add(tt);
 				 } catch (Exception ex) {
 					 tensorsArray.close();
@@ -672,50 +195,6 @@ public class RunnerPt implements Callable<HashMap<String, Object>> {
 		return tensorsArray;
 	}
 	
-	private static float[] findOutputSize(int[] inpSize, DijTensor outTensor, List<DijTensor> inputList, int[] patchSize) {
-		String refForOutput = outTensor.referenceImage;
-		DijTensor refTensor = DijTensor.retrieveByName(refForOutput, inputList);
-		float[] outSize = new float[inpSize.length];
-		String[] standarForm = "XYCZ".split("");
-		for (int i = 0; i < outSize.length; i ++) {
-			int indOut = Index.indexOf(outTensor.form.split(""), standarForm[i]);
-			int indInp = Index.indexOf(refTensor.form.split(""), standarForm[i]);
-			if (indOut != -1 && indInp != -1) {
-				if (standarForm[i].toLowerCase().equals("c"))
-					outSize[i] = inpSize[i] * outTensor.scale[indOut] + 2*outTensor.offset[indOut];
-				else
-					outSize[i] = inpSize[i] * outTensor.scale[indOut];
-			} else if (indOut != -1 && indInp == -1) {
-				outSize[i] = patchSize[i];
-			} else {
-				outSize[i] = 1;
-			}
-		}
-		return outSize;
-	}
-	
-	public static int[] findTotalPadding(List<DijTensor> outputs) {
-		// Create an object of int[] that contains the output dimensions
-		// of each patch.
-		// This dimensions are always of the form [x, y, c, d]
-		int[] padding = {0, 0, 0, 0};
-		String[] form = "XYCZ".split("");
-		for (DijTensor out: outputs) {
-			if (!out.tensorType.equals("image"))
-				continue;
-			for (int i = 0; i < form.length; i ++) {
-				int ind = Index.indexOf(out.form.split(""), form[i]);
-				if (out.tensorType.contains("image") && ind != -1 && !form[i].equals("B") && !form[i].equals("C")) {
-					double totalPad = Math.ceil(-1 * (double)out.offset[ind] / (double)out.scale[ind]) + Math.ceil((double)out.halo[ind] / (double)out.scale[ind]);
-					if ((int) totalPad > padding[i]) {
-						padding[i] = (int) totalPad;
-					}
-				}
-			}
-		}
-		return padding;
-	}
-	
 	/*
 	 * Get dimension mismatch runtime error
 	 * The method looks for the following sentence and copies it:
@@ -737,36 +216,199 @@ public class RunnerPt implements Callable<HashMap<String, Object>> {
 		return error;
 	}
 	
-	// TODO clean up method (line 559) Make it stable for pyramidal
-	public static int[][] findOutputOffset(List<DijTensor> outputs) {
-		// Create an object of int[] that contains the output dimensions
-		// of each patch.
-		// This dimensions are always of the form [x, y, c, d]
-		int[][] offsets = new int[outputs.size()][4];
-		String[] form = "XYCZ".split("");
-		int c1 = 0;
-		for (DijTensor out: outputs) {
-			if (!out.tensorType.toLowerCase().equals("image"))
-				continue;
-			int c2 = 0;
-			for (int i = 0; i < offsets[0].length; i ++) {
-				int ind = Index.indexOf(out.form.split(""), form[i]);
-				if (ind != -1 && out.offset != null) {
-					offsets[c1][c2] = out.offset[ind];
-				}
-				c2 ++;
+	/*
+	 * Tensors of one batch of tiles and the manager that owns them. The manager
+	 * is a sub-manager of the one of the run, so every native tensor of the batch
+	 * is freed when the batch is closed
+	 */
+	private static class BatchTensors {
+		private NDManager	manager;
+		private NDList		inputs;
+		private NDList		outputs;
+		// Pooled buffers read by the input tensors
+		private List<ByteBuffer>	leases = new ArrayList<ByteBuffer>();
+		// NDArrays of the run that have not been closed yet
+		private AtomicLong			liveArrays;
+		
+		private BatchTensors(NDManager runManager, AtomicLong liveArrays) {
+			manager = runManager.newSubManager();
+			this.liveArrays = liveArrays;
+		}
+		
+		private void setInputs(NDList inputs) {
+			this.inputs = inputs;
+			if (inputs != null)
+				liveArrays.addAndGet(inputs.size());
+		}
+		
+		private void setOutputs(NDList outputs) {
+			// The outputs of the predictor do not belong to any manager
+			outputs.attach(manager);
+			this.outputs = outputs;
+			liveArrays.addAndGet(outputs.size());
+		}
+		
+		private void closeInputs() {
+			if (inputs != null) {
+				inputs.close();
+				liveArrays.addAndGet(-inputs.size());
+				inputs = null;
+			}
+			// Once the input tensors are closed nothing reads their buffers anymore
+			for (ByteBuffer data : leases)
+				BufferPool.release(data);
+			leases.clear();
+		}
+		
+		private void close() {
+			closeInputs();
+			if (outputs != null) {
+				outputs.close();
+				liveArrays.addAndGet(-outputs.size());
+				outputs = null;
+			}
+			manager.close();
+		}
+	}
+	
+	/*
+	 * Creation of the NDArrays of each batch of tiles, inference and conversion
+	 * of the outputs of the model
+	 */
+	private class TileStages implements TiledInference.ModelStages<BatchTensors, BatchTensors> {
+		private ZooModel<NDList, NDList>	model;
+		private HashMap<String, Object>		parameterMap;
+		// NDArrays created for the batches that have not been closed yet. Once the
+		// run is over it should be 0, otherwise native memory is leaking
+		private AtomicLong					liveArrays = new AtomicLong();
+		// Manager of the run, parent of the managers of every batch
+		private NDManager					manager;
+		// Predictors not being used at the moment. There is one per inference worker
+		// and they are reused for every batch
+		private ConcurrentLinkedQueue<Predictor<NDList, NDList>>	predictors = new ConcurrentLinkedQueue<Predictor<NDList, NDList>>();
+		private List<Predictor<NDList, NDList>>						allPredictors = new ArrayList<Predictor<NDList, NDList>>();
+		
+		private TileStages(ZooModel<NDList, NDList> model, HashMap<String, Object> parameterMap) {
+			this.model = model;
+			this.parameterMap = parameterMap;
+			this.manager = NDManager.newBaseManager();
+		}
+		
+		/*
+		 * Close the predictors and free every tensor of the run
+		 */
+		private void close() {
+			synchronized (allPredictors) {
+				for (Predictor<NDList, NDList> predictor : allPredictors)
+					predictor.close();
+				allPredictors.clear();
+			}
+			predictors.clear();
+			manager.close();
+		}
+		
+		private Predictor<NDList, NDList> takePredictor() {
+			Predictor<NDList, NDList> predictor = predictors.poll();
+			if (predictor != null)
+				return predictor;
+			predictor = model.newPredictor();
+			synchronized (allPredictors) {
+				allPredictors.add(predictor);
+			}
+			return predictor;
+		}
+
+		@Override
+		public BatchTensors createInputs(ImagePlus[] patches) {
+			BatchTensors tensors = new BatchTensors(manager, liveArrays);
+			tensors.setInputs(getInputTensors(tensors.manager, tensors.inputs, dp.params.inputList, parameterMap,
+											patches, dp.params.pytorchVersion, tensors.leases));
+			// TODO make easier to understand
+			if (tensors.inputs == null) {
+				tensors.close();
+				return null;
+			}
+			return tensors;
+		}
+
+		@Override
+		public BatchTensors infer(BatchTensors tensors) throws Exception {
+			Predictor<NDList, NDList> predictor = takePredictor();
+			try {
+				tensors.setOutputs(predictor.predict(tensors.inputs));
+				// Close inputTensors to avoid memory leak
+				tensors.closeInputs();
+			} catch (Exception ex) {
+				tensors.close();
+				throw ex;
+			} finally {
+				predictors.offer(predictor);
+			}
+			return tensors;
+		}
+
+		@Override
+		public ImagePlus[] toImages(BatchTensors tensors, int index, DijTensor outTensor, int nTiles) throws Exception {
+			NDArray result = tensors.outputs.get(index);
+			ImagePlus[] images = ImagePlus2Tensor.NDArray2ImagePlusBatch(result, outTensor.form, outTensor.name, dp.params.pytorchVersion);
+			// Every tile of the batch should produce one output
+			if (images.length != nTiles)
+				throw new BatchSizeBiggerThanOne(result.getShape().getShape(), outTensor.form, outTensor.name);
+			return images;
+		}
+
+		@Override
+		public ImagePlus toImage(BatchTensors tensors, int index, DijTensor outTensor) throws Exception {
+			return ImagePlus2Tensor.NDArray2ImagePlus(tensors.outputs.get(index), outTensor.form, outTensor.name, dp.params.pytorchVersion);
+		}
+
+		@Override
+		public ResultsTable toTable(BatchTensors tensors, int index, DijTensor outTensor) throws Exception {
+			return Table2Tensor.tensorToTable(tensors.outputs.get(index), outTensor.form, outTensor.name, dp.params.pytorchVersion);
+		}
+
+		@Override
+		public void close(BatchTensors inputs, BatchTensors outputs) {
+			if (inputs != null)
+				inputs.close();
+			if (outputs != null)
+				outputs.close();
+		}
+
+		@Override
+		public String reportError(Exception ex) {
+			String reason = null;
+			if (ex instanceof IncorrectNumberOfDimensions) {
+				IncorrectNumberOfDimensions dimsEx = (IncorrectNumberOfDimensions) ex;
+				reason = "The dimensions specified for the '" + dimsEx.getName() 
+						+ "' (" + dimsEx.getDims() + ") should match the number of dimensions"
+						+ " output tensor " + Arrays.toString(dimsEx.getShape());
+				reason += "\n";
+				reason += dimensionsMismatch(ex.getMessage());
+				IJ.log(reason);
+			} else if (ex instanceof BatchSizeBiggerThanOne) {
+				IJ.log("\n");
+			} else if (ex instanceof EngineException) {
+				reason = dimensionsMismatch(ex.getMessage());
+				IJ.log("Check that the specifications for the input are compatible with the model architecture.");
+				IJ.log(reason);
+			} else {
+				reason = dimensionsMismatch(ex.getMessage());
+				IJ.log(reason);
 			}
-			c1 ++;
+			commentAboutPytorchVersions();
+			return reason;
 		}
-		return offsets;
 	}
 	
 	public int getCurrentPatch() {
-		return currentPatch;
+		TiledInference run = tiled;
+		return run == null ? 0 : run.getCurrentPatch();
 	}
 
 	public int getTotalPatch() {
-		return totalPatch;
+		TiledInference run = tiled;
+		return run == null ? 0 : run.getTotalPatch();
 	}
 
 }
@@ -0,0 +1,162 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ * 
+ * Reference: DeepImageJ: A user-friendly environment to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, W. Ouyang, L. Donati, M. Unser, E. Lundberg, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2021.
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ * Science for Life Laboratory, School of Engineering Sciences in Chemistry, Biotechnology and Health, KTH - Royal Institute of Technology, Sweden
+ * 
+ * Authors: Carlos Garcia-Lopez-de-Haro and Estibaliz Gomez-de-Mariscal
+ *
+ */
+
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2019-2021, DeepImageJ
+ * All rights reserved.
+ *	
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *	  this list of conditions and the following disclaimer in the documentation
+ *	  and/or other materials provided with the distribution.
+ *	
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package deepimagej;
+
+import java.util.List;
+
+import org.tensorflow.Operation;
+import org.tensorflow.Output;
+import org.tensorflow.SavedModelBundle;
+import org.tensorflow.framework.SignatureDef;
+import org.tensorflow.framework.TensorInfo;
+
+import deepimagej.tools.DijTensor;
+import deepimagej.tools.Index;
+import deepimagej.tools.TiledInference;
+
+/*
+ * Everything RunnerTf needs to know about a Tensorflow model that does not
+ * depend on the image being processed: the graph nodes that are fed and
+ * fetched and how the size and position of every output is computed.
+ * It is built once per loaded model and kept in the model cache, so the
+ * tile loop only does array arithmetic.
+ */
+public class TfExecutionPlan {
+	
+	public SignatureDef		sig;
+	// Graph nodes fed with each of the inputs, in the order of the input list
+	public Output<?>[]		feeds;
+	// Graph nodes fetched for each of the outputs, in the order of the output list
+	public Output<?>[]		fetches;
+	// Offset of each image output in XYCZ, see TiledInference.findOutputOffset
+	public int[][]			offsets;
+	// For every output and axis (XYCZ): scale applied to the input size and pixels added to it
+	private float[][]		scales;
+	private float[][]		added;
+	// For every output and axis (XYCZ): how the output size is obtained
+	private int[][]			sizeRule;
+	
+	private static final int FROM_INPUT = 0;
+	private static final int FROM_PATCH = 1;
+	private static final int ONE = 2;
+	
+	/*
+	 * Resolve the graph nodes and precompute the geometry of the outputs. Throws
+	 * IllegalArgumentException if an input or output is not in the signature
+	 */
+	public TfExecutionPlan(SavedModelBundle model, SignatureDef sig, List<DijTensor> inputList, List<DijTensor> outputList) {
+		this.sig = sig;
+		feeds = new Output<?>[inputList.size()];
+		for (int i = 0; i < feeds.length; i ++)
+			feeds[i] = resolve(model, sig.getInputsOrThrow(inputList.get(i).name));
+		fetches = new Output<?>[outputList.size()];
+		for (int i = 0; i < fetches.length; i ++)
+			fetches[i] = resolve(model, sig.getOutputsOrThrow(outputList.get(i).name));
+		
+		offsets = TiledInference.findOutputOffset(outputList);
+		String[] standarForm = "XYCZ".split("");
+		scales = new float[outputList.size()][4];
+		added = new float[outputList.size()][4];
+		sizeRule = new int[outputList.size()][4];
+		for (int o = 0; o < outputList.size(); o ++) {
+			DijTensor outTensor = outputList.get(o);
+			if (!outTensor.tensorType.contains("image"))
+				continue;
+			DijTensor refTensor = DijTensor.retrieveByName(outTensor.referenceImage, inputList);
+			String[] outForm = outTensor.form.split("");
+			String[] refForm = refTensor == null ? new String[0] : refTensor.form.split("");
+			for (int i = 0; i < standarForm.length; i ++) {
+				int indOut = Index.indexOf(outForm, standarForm[i]);
+				int indInp = Index.indexOf(refForm, standarForm[i]);
+				if (indOut != -1 && indInp != -1) {
+					sizeRule[o][i] = FROM_INPUT;
+					scales[o][i] = outTensor.scale[indOut];
+					if (standarForm[i].equals("C"))
+						added[o][i] = 2 * outTensor.offset[indOut];
+				} else if (indOut != -1) {
+					sizeRule[o][i] = FROM_PATCH;
+				} else {
+					sizeRule[o][i] = ONE;
+				}
+			}
+		}
+	}
+	
+	/*
+	 * Size (XYCZ) of the whole output 'output' for an input image of size 'inpSize'
+	 * processed with tiles whose output has the size 'patchSize'
+	 */
+	public float[] outputSize(int output, int[] inpSize, int[] patchSize) {
+		float[] outSize = new float[4];
+		for (int i = 0; i < outSize.length; i ++) {
+			if (sizeRule[output][i] == FROM_INPUT)
+				outSize[i] = inpSize[i] * scales[output][i] + added[output][i];
+			else if (sizeRule[output][i] == FROM_PATCH)
+				outSize[i] = patchSize[i];
+			else
+				outSize[i] = 1;
+		}
+		return outSize;
+	}
+	
+	/*
+	 * Find the graph node of a tensor of the signature. Names have the form
+	 * 'operation:index'
+	 */
+	private static Output<?> resolve(SavedModelBundle model, TensorInfo info) {
+		String name = info.getName();
+		int index = 0;
+		int colon = name.lastIndexOf(':');
+		if (colon != -1) {
+			index = Integer.parseInt(name.substring(colon + 1));
+			name = name.substring(0, colon);
+		}
+		Operation op = model.graph().operation(name);
+		if (op == null)
+			throw new IllegalArgumentException("Operation '" + name + "' not found in the graph of the model.");
+		return op.output(index);
+	}
+}
@@ -0,0 +1,490 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ * 
+ * Reference: DeepImageJ: A user-friendly environment to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, W. Ouyang, L. Donati, M. Unser, E. Lundberg, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2021.
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ * Science for Life Laboratory, School of Engineering Sciences in Chemistry, Biotechnology and Health, KTH - Royal Institute of Technology, Sweden
+ * 
+ * Authors: Carlos Garcia-Lopez-de-Haro and Estibaliz Gomez-de-Mariscal
+ *
+ */
+
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2019-2021, DeepImageJ
+ * All rights reserved.
+ *	
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *	  this list of conditions and the following disclaimer in the documentation
+ *	  and/or other materials provided with the distribution.
+ *	
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package deepimagej;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+
+import org.tensorflow.SavedModelBundle;
+import org.tensorflow.Session;
+import org.tensorflow.Tensor;
+import org.tensorflow.framework.SignatureDef;
+
+import ai.djl.inference.Predictor;
+import ai.djl.ndarray.NDList;
+import ai.djl.ndarray.NDManager;
+import ai.djl.repository.zoo.ZooModel;
+import deepimagej.tools.DijTensor;
+import deepimagej.tools.FileTools;
+import deepimagej.tools.ModelCache;
+import deepimagej.tools.SystemUsage;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+
+/*
+ * Choose the tile size by running the model on synthetic tiles of several valid
+ * sizes and keeping the one that processes more pixels per second.
+ * The throughput measured for every size is saved in the DeepImageJ cache folder
+ * for each model (checksum of the weights), machine, framework and device, so later
+ * runs of the same model only need to read it.
+ */
+public class TileTuner {
+	
+	// Number of tile sizes measured the first time a model is tuned
+	private static final int		CANDIDATES		= 5;
+	// Number of timed calls to the model per tile size, after a warm-up call
+	private static final int		REPEATS			= 3;
+	// Rough ratio between the memory used by the model and its input and output tensors
+	private static final int		NATIVE_FACTOR	= 32;
+	private static final String		PROFILES_FILE	= "tile-profiles.properties";
+	
+	/*
+	 * Find the fastest tile size for the first input of 'dp' and the image 'imp'.
+	 * 'patch' is the default tile and 'halo' the padding of the input, both in the
+	 * axes order of the input tensor. The model has to be loaded.
+	 * Returns the tile in the axes order of the input, or null if the model
+	 * cannot be tuned, in which case the default tile should be used
+	 */
+	public static int[] tune(DeepImageJ dp, ImagePlus imp, int[] patch, int[] halo) {
+		Parameters params = dp.params;
+		if (!params.allowPatching || params.pyramidalNetwork) {
+			IJ.log("Tile auto-tuning is only available for models that allow tiling.");
+			return null;
+		}
+		for (DijTensor tensor : params.inputList) {
+			if (!tensor.tensorType.contains("image")) {
+				IJ.log("Tile auto-tuning is not available for models with parameter inputs.");
+				return null;
+			}
+		}
+		DijTensor input = params.inputList.get(0);
+		String[] form = input.form.split("");
+		// Range of valid sizes for every axis that can change, the rest keep the default
+		int[] lo = patch.clone();
+		int[] hi = patch.clone();
+		for (int i = 0; i < form.length; i ++) {
+			if (input.step[i] == 0 || "XYZ".indexOf(form[i]) == -1)
+				continue;
+			int size = imageSize(imp, form[i]);
+			int first = validAbove(2 * halo[i] + 1, input.minimum_size[i], input.step[i]);
+			// Tiles cannot be bigger than 3 times the image, nor bigger than needed to cover it
+			int last = Math.min(validAbove(size + 2 * halo[i], input.minimum_size[i], input.step[i]),
+								validBelow(3 * size + 1, input.minimum_size[i], input.step[i]));
+			if (first <= last) {
+				lo[i] = first;
+				hi[i] = last;
+			}
+		}
+		
+		String key = ModelCache.getChecksum(dp) + "|" + getHostName() + "|" + params.framework + "|" + ModelCache.getDevice(dp);
+		Properties profiles = readProfiles();
+		List<int[]> tiles = new ArrayList<int[]>();
+		List<Double> throughputs = new ArrayList<Double>();
+		parseProfile(profiles.getProperty(key), tiles, throughputs);
+		
+		int[] best = null;
+		double bestThroughput = 0;
+		for (int t = 0; t < tiles.size(); t ++) {
+			if (isInRange(tiles.get(t), lo, hi, input) && fitsInMemory(dp, tiles.get(t)) && throughputs.get(t) > bestThroughput) {
+				best = tiles.get(t);
+				bestThroughput = throughputs.get(t);
+			}
+		}
+		if (best != null) {
+			IJ.log("Tile size read from the tuning profile: " + Arrays.toString(best) + " (" + input.form + ")");
+			return best;
+		}
+		
+		IJ.log("Tuning the tile size of the model. Please wait...");
+		TfExecutionPlan plan = null;
+		if (!params.framework.equals("pytorch")) {
+			plan = getPlan(dp);
+			if (plan == null)
+				return null;
+		}
+		for (int[] tile : getCandidates(lo, hi, input)) {
+			if (!fitsInMemory(dp, tile)) {
+				IJ.log("  - " + Arrays.toString(tile) + ": not enough memory");
+				break;
+			}
+			double seconds;
+			try {
+				seconds = benchmark(dp, plan, createSyntheticImage(tile, input.form), REPEATS);
+			} catch (Throwable ex) {
+				// Bigger tiles will not work either
+				ex.printStackTrace();
+				IJ.log("  - " + Arrays.toString(tile) + ": the model failed (" + ex.toString() + ")");
+				break;
+			}
+			double throughput = usefulPixels(tile, halo, input.form) / seconds;
+			IJ.log("  - " + Arrays.toString(tile) + ": " + Math.round(throughput) + " pixels/s");
+			tiles.add(tile);
+			throughputs.add(throughput);
+			if (throughput > bestThroughput) {
+				best = tile;
+				bestThroughput = throughput;
+			}
+		}
+		if (best == null) {
+			IJ.log("Tile auto-tuning failed, using the default tile size.");
+			return null;
+		}
+		profiles.setProperty(key, formatProfile(tiles, throughputs));
+		writeProfiles(profiles);
+		IJ.log("Tile size selected: " + Arrays.toString(best) + " (" + input.form + ")");
+		return best;
+	}
+	
+	/*
+	 * Sizes spread geometrically between the smallest and the biggest valid tile
+	 */
+	private static List<int[]> getCandidates(int[] lo, int[] hi, DijTensor input) {
+		List<int[]> candidates = new ArrayList<int[]>();
+		for (int n = 0; n < CANDIDATES; n ++) {
+			int[] tile = lo.clone();
+			for (int i = 0; i < tile.length; i ++) {
+				if (lo[i] == hi[i])
+					continue;
+				double target = lo[i] * Math.pow((double) hi[i] / lo[i], (double) n / (CANDIDATES - 1));
+				tile[i] = Math.min(hi[i], validAbove((int) Math.round(target), input.minimum_size[i], input.step[i]));
+			}
+			if (candidates.size() == 0 || !Arrays.equals(candidates.get(candidates.size() - 1), tile))
+				candidates.add(tile);
+		}
+		return candidates;
+	}
+	
+	private static boolean isInRange(int[] tile, int[] lo, int[] hi, DijTensor input) {
+		if (tile.length != lo.length)
+			return false;
+		for (int i = 0; i < tile.length; i ++) {
+			if (tile[i] < lo[i] || tile[i] > hi[i])
+				return false;
+			if (input.step[i] != 0 && (tile[i] - input.minimum_size[i]) % input.step[i] != 0)
+				return false;
+		}
+		return true;
+	}
+	
+	/*
+	 * Compare the memory needed by the tensors of a tile with the free heap, where
+	 * the tiles are copied, and with the free physical memory, used by the frameworks
+	 */
+	private static boolean fitsInMemory(DeepImageJ dp, int[] tile) {
+		long pixels = 1;
+		for (int s : tile)
+			pixels *= Math.max(1, s);
+		long tensorBytes = 4 * pixels * (dp.params.inputList.size() + dp.params.outputList.size());
+		// Patches, tensor buffers and output patches of the tiles waiting in the pipeline
+		long heap = tensorBytes * 2 * (dp.params.inferenceWorkers + 1);
+		if (heap > SystemUsage.getAvailableHeap())
+			return false;
+		long free = SystemUsage.getFreePhysicalMemory();
+		return free < 0 || tensorBytes * NATIVE_FACTOR * dp.params.inferenceWorkers < free;
+	}
+	
+	/*
+	 * Run the model once on a synthetic tile of size 'tile' (axes order of the first
+	 * input), so the graph initialization and the JIT compilation are done before the
+	 * first image. The model has to be loaded. Returns false if the model failed
+	 */
+	public static boolean warmUp(DeepImageJ dp, int[] tile) {
+		for (DijTensor tensor : dp.params.inputList) {
+			if (!tensor.tensorType.contains("image"))
+				return false;
+		}
+		TfExecutionPlan plan = null;
+		if (!dp.params.framework.equals("pytorch")) {
+			plan = getPlan(dp);
+			if (plan == null)
+				return false;
+		}
+		try {
+			benchmark(dp, plan, createSyntheticImage(tile, dp.params.inputList.get(0).form), 0);
+			return true;
+		} catch (Throwable ex) {
+			ex.printStackTrace();
+			IJ.log("Warm-up of the model " + dp.getName() + " failed (" + ex.toString() + ")");
+			return false;
+		}
+	}
+	
+	/*
+	 * Best time in seconds of a call to the model with the synthetic image, the first
+	 * of the 'repeats' + 1 calls is a warm-up
+	 */
+	private static double benchmark(DeepImageJ dp, TfExecutionPlan plan, ImagePlus[] imgs, int repeats) throws Exception {
+		Parameters params = dp.params;
+		long best = Long.MAX_VALUE;
+		if (params.framework.equals("pytorch")) {
+			ZooModel<NDList, NDList> model = dp.getTorchModel();
+			Predictor<NDList, NDList> predictor = model.newPredictor();
+			NDManager manager = NDManager.newBaseManager();
+			try {
+				for (int r = 0; r <= repeats; r ++) {
+					long start = System.nanoTime();
+					NDManager batchManager = manager.newSubManager();
+					try {
+						NDList inputs = new NDList();
+						for (DijTensor tensor : params.inputList)
+							inputs.add(ImagePlus2Tensor.imPlus2tensor(batchManager, imgs, tensor.form, params.pytorchVersion));
+						NDList outputs = predictor.predict(inputs);
+						outputs.close();
+					} finally {
+						batchManager.close();
+					}
+					// The first call is a warm-up
+					if (r > 0)
+						best = Math.min(best, System.nanoTime() - start);
+				}
+			} finally {
+				predictor.close();
+				manager.close();
+			}
+		} else {
+			SavedModelBundle model = dp.getTfModel();
+			for (int r = 0; r <= repeats; r ++) {
+				long start = System.nanoTime();
+				Tensor<?>[] inputs = new Tensor<?>[params.inputList.size()];
+				List<Tensor<?>> outputs = null;
+				try {
+					Session.Runner sess = model.session().runner();
+					for (int k = 0; k < inputs.length; k ++) {
+						inputs[k] = ImagePlus2Tensor.implus2TensorFloat(imgs, params.inputList.get(k).form);
+						sess = sess.feed(plan.feeds[k], inputs[k]);
+					}
+					for (int k = 0; k < plan.fetches.length; k ++)
+						sess = sess.fetch(plan.fetches[k]);
+					outputs = sess.run();
+				} finally {
+					for (Tensor<?> tt : inputs) {
+						if (tt != null)
+							tt.close();
+					}
+					if (outputs != null) {
+						for (Tensor<?> tt : outputs)
+							tt.close();
+					}
+				}
+				if (r > 0)
+					best = Math.min(best, System.nanoTime() - start);
+			}
+		}
+		return best / 1e9;
+	}
+	
+	/*
+	 * Graph nodes of the Tensorflow model, from the model cache or resolved now
+	 */
+	private static TfExecutionPlan getPlan(DeepImageJ dp) {
+		Object cached = ModelCache.getPlan(dp);
+		if (cached instanceof TfExecutionPlan)
+			return (TfExecutionPlan) cached;
+		Parameters params = dp.params;
+		SavedModelBundle model = dp.getTfModel();
+		String sigeDefTag = params.developer ? params.graph : DeepLearningModel.returnStringSig(params.graph);
+		SignatureDef sig = DeepLearningModel.getSignatureFromGraph(model, DeepLearningModel.returnStringSig(sigeDefTag));
+		// Inputs of the graph that are not in the model.yaml are parameters
+		if (DeepLearningModel.returnTfInputs(sig).length != params.inputList.size()) {
+			IJ.log("Tile auto-tuning is not available for models with parameter inputs.");
+			return null;
+		}
+		try {
+			TfExecutionPlan plan = new TfExecutionPlan(model, sig, params.inputList, params.outputList);
+			ModelCache.setPlan(dp, plan);
+			return plan;
+		} catch (IllegalArgumentException ex) {
+			IJ.log("Tile auto-tuning failed: " + ex.getMessage());
+			return null;
+		}
+	}
+	
+	/*
+	 * Image filled with noise with the size of the tile
+	 */
+	private static ImagePlus[] createSyntheticImage(int[] tile, String form) {
+		int[] xycz = new int[4];
+		String[] axes = "XYCZ".split("");
+		for (int i = 0; i < axes.length; i ++) {
+			int ind = form.indexOf(axes[i]);
+			xycz[i] = ind == -1 ? 1 : tile[ind];
+		}
+		ImagePlus imp = IJ.createImage("tune", "32-bit", xycz[0], xycz[1], xycz[2], xycz[3], 1);
+		ImageStack stack = imp.getStack();
+		Random random = new Random(0);
+		for (int s = 1; s <= stack.getSize(); s ++) {
+			float[] pixels = (float[]) stack.getPixels(s);
+			for (int p = 0; p < pixels.length; p ++)
+				pixels[p] = random.nextFloat();
+		}
+		return new ImagePlus[] {imp};
+	}
+	
+	/*
+	 * Pixels of a tile that end up in the output image, the halo is discarded
+	 */
+	private static double usefulPixels(int[] tile, int[] halo, String form) {
+		double pixels = 1;
+		for (int i = 0; i < tile.length; i ++) {
+			if ("XYZ".indexOf(form.charAt(i)) != -1)
+				pixels *= tile[i] - 2 * halo[i];
+		}
+		return pixels;
+	}
+	
+	private static int imageSize(ImagePlus imp, String axis) {
+		if (axis.equals("X"))
+			return imp.getWidth();
+		else if (axis.equals("Y"))
+			return imp.getHeight();
+		else if (axis.equals("Z"))
+			return imp.getNSlices();
+		return imp.getNChannels();
+	}
+	
+	/*
+	 * Smallest size of the form min + n * step that is equal or bigger than 'size'
+	 */
+	private static int validAbove(int size, int min, int step) {
+		if (size <= min)
+			return min;
+		return min + (int) Math.ceil((double) (size - min) / step) * step;
+	}
+	
+	/*
+	 * Biggest size of the form min + n * step that is equal or smaller than 'size'
+	 */
+	private static int validBelow(int size, int min, int step) {
+		if (size <= min)
+			return min;
+		return min + ((size - min) / step) * step;
+	}
+	
+	private static String getHostName() {
+		try {
+			return InetAddress.getLocalHost().getHostName();
+		} catch (IOException ex) {
+			return "localhost";
+		}
+	}
+	
+	/*
+	 * Profiles are stored as 'tile:pixels per second' separated by ';', where the
+	 * tile is a comma separated list in the axes order of the input
+	 */
+	private static void parseProfile(String profile, List<int[]> tiles, List<Double> throughputs) {
+		if (profile == null)
+			return;
+		for (String entry : profile.split(";")) {
+			try {
+				String[] parts = entry.split(":");
+				String[] sizes = parts[0].split(",");
+				int[] tile = new int[sizes.length];
+				for (int i = 0; i < sizes.length; i ++)
+					tile[i] = Integer.parseInt(sizes[i].trim());
+				double throughput = Double.parseDouble(parts[1].trim());
+				tiles.add(tile);
+				throughputs.add(throughput);
+			} catch (Exception ex) {
+				// Ignore entries that cannot be read
+			}
+		}
+	}
+	
+	private static String formatProfile(List<int[]> tiles, List<Double> throughputs) {
+		String profile = "";
+		for (int t = 0; t < tiles.size(); t ++) {
+			String tile = Arrays.toString(tiles.get(t));
+			profile += tile.substring(1, tile.length() - 1).replace(" ", "") + ":" + throughputs.get(t) + ";";
+		}
+		return profile.substring(0, profile.length() - 1);
+	}
+	
+	private static synchronized Properties readProfiles() {
+		Properties profiles = new Properties();
+		File file = new File(FileTools.getCacheDir(), PROFILES_FILE);
+		if (!file.isFile())
+			return profiles;
+		try (InputStream is = new FileInputStream(file)) {
+			profiles.load(is);
+		} catch (IOException ex) {
+			IJ.log("Unable to read the tile tuning profiles: " + ex.toString());
+		}
+		return profiles;
+	}
+	
+	/*
+	 * Write to a temporary file first so a crash never leaves a half written file
+	 */
+	private static synchronized void writeProfiles(Properties profiles) {
+		File file = new File(FileTools.getCacheDir(), PROFILES_FILE);
+		File tmp = new File(file.getAbsolutePath() + ".tmp");
+		try (OutputStream os = new FileOutputStream(tmp)) {
+			profiles.store(os, "DeepImageJ tile sizes measured by the auto-tuner");
+		} catch (IOException ex) {
+			IJ.log("Unable to save the tile tuning profiles: " + ex.toString());
+			return;
+		}
+		try {
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException ex) {
+			IJ.log("Unable to save the tile tuning profiles: " + ex.toString());
+		}
+	}
+}
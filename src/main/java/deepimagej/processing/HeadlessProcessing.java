@@ -104,4 +104,68 @@ public class HeadlessProcessing {
 				throw new MacrosError(vv);
 		}
 	}
+	
+	/**
+	 * Retrieve the value of an optional variable of the macro call. Optional
+	 * variables have the form "varName=varValue" or "varName=[var value]" and
+	 * can be placed anywhere in the macro call
+	 * @param macroArg: macro string with all the commands
+	 * @param varName: name of the optional variable
+	 * @param defaultValue: value returned if the variable is not present
+	 * @return the value of the variable or the default value
+	 */
+	public static String retrieveOptionalArgument(String macroArg, String varName, String defaultValue) {
+		int[] pos = findOptionalArgument(macroArg, varName);
+		if (pos == null)
+			return defaultValue;
+		String value = macroArg.substring(pos[1], pos[2]).trim();
+		if (value.startsWith("[") && value.endsWith("]"))
+			value = value.substring(1, value.length() - 1);
+		return value;
+	}
+	
+	/**
+	 * Remove an optional variable from the macro call. This has to be done
+	 * before calling {@link #retrieveArguments(String, String[])} because that
+	 * method takes everything between two required variables as the value
+	 * @param macroArg: macro string with all the commands
+	 * @param varName: name of the optional variable
+	 * @return the macro string without the optional variable
+	 */
+	public static String removeOptionalArgument(String macroArg, String varName) {
+		int[] pos = findOptionalArgument(macroArg, varName);
+		if (pos == null)
+			return macroArg;
+		return (macroArg.substring(0, pos[0]) + " " + macroArg.substring(pos[2])).trim();
+	}
+	
+	/**
+	 * Find where an optional variable is in the macro call
+	 * @param macroArg: macro string with all the commands
+	 * @param varName: name of the optional variable
+	 * @return array with the start of the variable, the start of its value and the
+	 * 	end of the value, or null if the variable is not present
+	 */
+	private static int[] findOptionalArgument(String macroArg, String varName) {
+		if (macroArg == null)
+			return null;
+		String key = varName + "=";
+		int varInd = macroArg.indexOf(key);
+		// Make sure that the key is not the end of another variable name
+		while (varInd > 0 && !Character.isWhitespace(macroArg.charAt(varInd - 1)))
+			varInd = macroArg.indexOf(key, varInd + 1);
+		if (varInd == -1)
+			return null;
+		int valueStart = varInd + key.length();
+		int valueEnd;
+		if (valueStart < macroArg.length() && macroArg.charAt(valueStart) == '[') {
+			valueEnd = macroArg.indexOf(']', valueStart);
+			valueEnd = valueEnd == -1 ? macroArg.length() : valueEnd + 1;
+		} else {
+			valueEnd = valueStart;
+			while (valueEnd < macroArg.length() && !Character.isWhitespace(macroArg.charAt(valueEnd)))
+				valueEnd ++;
+		}
+		return new int[] {varInd, valueStart, valueEnd};
+	}
 }
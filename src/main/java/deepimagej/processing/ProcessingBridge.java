@@ -67,7 +67,16 @@ public class ProcessingBridge {
 	public static HashMap<String, Object> runPreprocessing(ImagePlus im, Parameters params) throws MacrosError, JavaProcessingError, NoSuchMethodException, SecurityException,
 																					IllegalAccessException, IllegalArgumentException, InvocationTargetException,
 																					ClassNotFoundException, InstantiationException, IOException {
-		HashMap<String, Object> map = new HashMap<String, Object>();
+		return runPreprocessing(im, params, new HashMap<String, Object>());
+	}
+	
+	/*
+	 * Same as runPreprocessing(im, params), the inputs already in 'map' are used when
+	 * they are not found among the ImageJ windows
+	 */
+	public static HashMap<String, Object> runPreprocessing(ImagePlus im, Parameters params, HashMap<String, Object> map) throws MacrosError, JavaProcessingError, NoSuchMethodException, SecurityException,
+																					IllegalAccessException, IllegalArgumentException, InvocationTargetException,
+																					ClassNotFoundException, InstantiationException, IOException {
 		params.javaPreprocessingClass = new ArrayList<String>();
 		int inputImageInd = DijTensor.getImageTensorInd(params.inputList);
 		// Assume that the image selected will result in the input image to the model
@@ -96,6 +105,35 @@ public class ProcessingBridge {
 		return map;
 	}
 	
+	/*
+	 * Run the Java pre-processing of the model on the inputs of 'map', whose keys are the
+	 * names of the input tensors. The ImageJ windows are not used, thus it cannot be used
+	 * for models with macro pre-processing, see usesMacros
+	 */
+	public static HashMap<String, Object> runJavaPreprocessing(HashMap<String, Object> map, Parameters params) throws JavaProcessingError, NoSuchMethodException, SecurityException,
+																					IllegalAccessException, IllegalArgumentException, InvocationTargetException,
+																					ClassNotFoundException, InstantiationException, IOException {
+		params.javaPreprocessingClass = new ArrayList<String>();
+		if (params.firstPreprocessing != null && isJava(params.firstPreprocessing))
+			map = runPreprocessingJava(map, params.firstPreprocessing, params.attachments, params);
+		if (params.secondPreprocessing != null && isJava(params.secondPreprocessing))
+			map = runPreprocessingJava(map, params.secondPreprocessing, params.attachments, params);
+		return map;
+	}
+	
+	/*
+	 * Whether any of the processing files is an ImageJ macro. Macros work on the
+	 * images and tables shown in ImageJ
+	 */
+	public static boolean usesMacros(String first, String second) {
+		return (first != null && (first.contains(".txt") || first.contains(".ijm")))
+				|| (second != null && (second.contains(".txt") || second.contains(".ijm")));
+	}
+	
+	private static boolean isJava(String processing) {
+		return processing.contains(".jar") || processing.contains(".class") || new File(processing).isDirectory();
+	}
+	
 	private static HashMap<String, Object> manageInputs(HashMap<String, Object> map, boolean lastStep, Parameters params){
 		 map = manageInputs(map, lastStep, params, null);
 		 return map;
@@ -72,6 +72,7 @@ import deepimagej.DeepLearningModel;
 import deepimagej.Parameters;
 import deepimagej.components.HTMLPane;
 import deepimagej.tools.DijTensor;
+import deepimagej.tools.EnvironmentProbe;
 import deepimagej.tools.SystemUsage;
 import ij.IJ;
 import ij.gui.GenericDialog;
@@ -176,7 +177,7 @@ public class LoadPytorchStamp extends AbstractStamp implements Runnable {
 		pnLoad.append("h2", "Pytorch version");
 		pnLoad.append("p", "Currently using Pytorch " + params.pytorchVersion);
 		pnLoad.append("p", "Supported by Deep Java Library " + params.pytorchVersion);
-		String cudaVersion = SystemUsage.getCUDAEnvVariables();
+		String cudaVersion = EnvironmentProbe.getCUDAVersion();
 		// If a CUDA distribution was found, cudaVersion will be equal
 		// to the CUDA version. If not it can be either 'noCuda', if CUDA 
 		// is not installed, or if there is a CUDA_PATH in the environment variables
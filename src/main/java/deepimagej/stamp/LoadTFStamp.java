@@ -62,6 +62,7 @@ import deepimagej.Parameters;
 import deepimagej.DeepLearningModel;
 import deepimagej.components.HTMLPane;
 import deepimagej.tools.DijTensor;
+import deepimagej.tools.EnvironmentProbe;
 import deepimagej.tools.FileTools;
 import deepimagej.tools.Log;
 import deepimagej.tools.StartTensorflowService;
@@ -229,7 +230,7 @@ public class LoadTFStamp extends AbstractStamp implements Runnable {
 		// Run the nvidia-smi to see if it is possible to locate a GPU
 		String cudaVersion = "";
 		if (tfVersion.contains("GPU"))
-			cudaVersion = SystemUsage.getCUDAEnvVariables();
+			cudaVersion = EnvironmentProbe.getCUDAVersion();
 		else
 			parent.setGPUTf("CPU");
 		// If a CUDA distribution was found, cudaVersion will be equal
@@ -52,6 +52,7 @@ import java.util.List;
 
 import ij.IJ;
 import ij.ImagePlus;
+import ij.ImageStack;
 import ij.WindowManager;
 import ij.gui.ImageWindow;
 import ij.measure.ResultsTable;
@@ -81,35 +82,44 @@ public class ArrayOperations {
 		return imp;
 	}
 
-	public static ImagePlus extractPatch(ImagePlus image, int[] sPatch, int xStart, int yStart, int zStart,
+	/*
+	 * Split an image whose frames correspond to the batch dimension of a
+	 * tensor into one image per element of the batch. The pixel arrays are
+	 * shared with the original image, nothing is copied
+	 */
+	public static ImagePlus[] splitBatch(ImagePlus imp) {
+		int[] dims = imp.getDimensions();
+		ImageStack stack = imp.getStack();
+		ImagePlus[] images = new ImagePlus[dims[4]];
+		for (int t = 0; t < dims[4]; t++) {
+			ImageStack frame = new ImageStack(dims[0], dims[1]);
+			for (int z = 0; z < dims[3]; z++) {
+				for (int c = 0; c < dims[2]; c++)
+					frame.addSlice(stack.getProcessor(imp.getStackIndex(c + 1, z + 1, t + 1)));
+			}
+			images[t] = new ImagePlus(imp.getTitle(), frame);
+			images[t].setDimensions(dims[2], dims[3], 1);
+			images[t].setOpenAsHyperStack(true);
+		}
+		return images;
+	}
+
+	public static ImagePlus extractPatch(MirroredImageView image, int[] sPatch, int xStart, int yStart, int zStart,
 										int overlapX, int overlapY, int overlapZ) {
+		return extractPatch(image, sPatch, xStart, yStart, zStart, overlapX, overlapY, overlapZ, 0);
+	}
+
+	public static ImagePlus extractPatch(MirroredImageView image, int[] sPatch, int xStart, int yStart, int zStart,
+										int overlapX, int overlapY, int overlapZ, int frame) {
 		// This method obtains a patch with the wanted size, starting at 'x_start' and
 		// 'y_start' and returns it as RandomAccessibleInterval with the dimensions
-		// already adjusted
-		ImagePlus patchImage = IJ.createImage("aux", "32-bit", sPatch[0], sPatch[1], sPatch[2], sPatch[3], 1);
-		int zi = -1;
-		for (int z = zStart - overlapZ; z < zStart - overlapZ + sPatch[3]; z++) {
-			zi ++; 
-			for (int c = 0; c < sPatch[2]; c++) {
-				image.setPositionWithoutUpdate(c + 1, z + 1, 1);
-				patchImage.setPositionWithoutUpdate(c + 1, zi + 1, 1);
-				ImageProcessor ip = image.getProcessor();
-				ImageProcessor op = patchImage.getProcessor();
-				// The actual patch with false and true information goes from patch_size/2
-				// number of pixels before the actual start of the patch until patch_size/2 number of pixels after
-				int xi = -1;
-				int yi = -1;
-				for (int x = xStart - overlapX; x < xStart - overlapX + sPatch[0]; x++) {
-					xi++;
-					yi = -1;
-					for (int y = yStart - overlapY; y < yStart - overlapY + sPatch[1]; y++) {
-						yi++;
-						op.putPixelValue(xi, yi, (double) ip.getPixelValue(x, y));
-					}
-				}
-				patchImage.setProcessor(op);
-			}
-		}
+		// already adjusted. The pixel arrays come from the BufferPool, every pixel
+		// is overwritten by copyRegion
+		ImagePlus patchImage = BufferPool.createImage("aux", sPatch[0], sPatch[1], sPatch[2], sPatch[3], 1);
+		// The actual patch with false and true information goes from patch_size/2
+		// number of pixels before the actual start of the patch until patch_size/2 number of pixels after
+		// of the frame 'frame' (0-based)
+		image.copyRegion(patchImage, xStart - overlapX, yStart - overlapY, zStart - overlapZ, frame + 1);
 		return patchImage;
 	}
 
@@ -118,8 +128,17 @@ public class ArrayOperations {
 											   int yImageStartPatch, int yImageEndPatch,
 											   int zImageStartPatch, int zImageEndPatch,
 											   int leftoverX, int leftoverY, int leftoverZ) {
+		imagePlusReconstructor(fImage, patch, xImageStartPatch, xImageEndPatch, yImageStartPatch, yImageEndPatch,
+								zImageStartPatch, zImageEndPatch, leftoverX, leftoverY, leftoverZ, 0);
+	}
+
+	public static void imagePlusReconstructor(ImagePlus fImage, ImagePlus patch,
+											   int xImageStartPatch, int xImageEndPatch,
+											   int yImageStartPatch, int yImageEndPatch,
+											   int zImageStartPatch, int zImageEndPatch,
+											   int leftoverX, int leftoverY, int leftoverZ, int frame) {
 		// This method inserts the pixel values of the true part of the patch into its corresponding location
-		// in the image
+		// in the frame 'frame' (0-based) of the image
 		int[] patchDimensions = patch.getDimensions();
 		int channels = patchDimensions[2];
 		ImageProcessor patchIp;
@@ -138,7 +157,7 @@ public class ArrayOperations {
 				int xImage = xImageStartPatch - 1;
 				int yImage = yImageStartPatch - 1;
 				patch.setPositionWithoutUpdate(c + 1, zMirror + 1, 1);
-				fImage.setPositionWithoutUpdate(c + 1, zImage + 1, 1);
+				fImage.setPositionWithoutUpdate(c + 1, zImage + 1, frame + 1);
 				patchIp = patch.getProcessor();
 				imIp = fImage.getProcessor();
 				// The information non affected by 'the edge effect' is the one important to us. 
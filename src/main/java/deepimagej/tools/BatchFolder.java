@@ -0,0 +1,316 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ * 
+ * Reference: DeepImageJ: A user-friendly environment to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, W. Ouyang, L. Donati, M. Unser, E. Lundberg, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2021.
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ * Science for Life Laboratory, School of Engineering Sciences in Chemistry, Biotechnology and Health, KTH - Royal Institute of Technology, Sweden
+ * 
+ * Authors: Carlos Garcia-Lopez-de-Haro and Estibaliz Gomez-de-Mariscal
+ *
+ */
+
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2019-2021, DeepImageJ
+ * All rights reserved.
+ *	
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *	  this list of conditions and the following disclaimer in the documentation
+ *	  and/or other materials provided with the distribution.
+ *	
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package deepimagej.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.io.FileSaver;
+import ij.measure.ResultsTable;
+
+/*
+ * Images of a folder processed one after the other with the same model. While
+ * an image is given to the model, the next ones are read from disk in background
+ * threads, and the outputs of the previous one are saved in another thread.
+ * The time spent in each step is reported at the end for every image.
+ */
+public class BatchFolder {
+	
+	// Number of images read in advance
+	public static int	PREFETCH = Math.max(1, SystemUsage.getIntProperty("deepimagej.batch.prefetch", 2));
+	// Formats accepted for the output images
+	public static final String[]	FORMATS = new String[] {"tif", "zip", "png", "jpg"};
+	
+	private List<File>		files;
+	private String			outputDir;
+	private String			format;
+	private Timing[]		timings;
+	// Images being read, in the order of the files
+	private ArrayDeque<Future<ImagePlus>>	pending = new ArrayDeque<Future<ImagePlus>>();
+	private int				nextToRead = 0;
+	// Image returned by the last call to 'next'
+	private int				current = -1;
+	private ThreadPoolExecutor	readers;
+	private ThreadPoolExecutor	writer;
+	private long			start;
+	
+	/*
+	 * Time spent on each image, in nanoseconds
+	 */
+	private class Timing {
+		private String	name;
+		private long	read;
+		private long	wait;
+		private long	process;
+		private long	write;
+		private int		outputs = 0;
+		private String	error = null;
+	}
+	
+	/*
+	 * Start reading the first images. 'format' is one of FORMATS
+	 */
+	public BatchFolder(List<File> files, String outputDir, String format) {
+		this.files = files;
+		this.outputDir = outputDir;
+		this.format = format;
+		timings = new Timing[files.size()];
+		for (int i = 0; i < timings.length; i ++) {
+			timings[i] = new Timing();
+			timings[i].name = baseName(files.get(i).getName());
+		}
+		start = System.nanoTime();
+		// The threads stop when they are idle, so nothing is left running
+		// if the folder is not processed until the end
+		readers = new ThreadPoolExecutor(PREFETCH, PREFETCH, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+		readers.allowCoreThreadTimeOut(true);
+		// When the queue is full the model thread saves the outputs itself, so the
+		// outputs waiting to be saved are bounded
+		writer = new ThreadPoolExecutor(1, 1, 1, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(2),
+										new ThreadPoolExecutor.CallerRunsPolicy());
+		writer.allowCoreThreadTimeOut(true);
+		for (int i = 0; i < PREFETCH; i ++)
+			readNext();
+	}
+	
+	/**
+	 * Files selected by 'input': every file of a folder, or the files that match a
+	 * pattern such as 'folder/*.tif' or '*.tif' (current folder). Hidden files and
+	 * folders are ignored
+	 * @param input: folder or pattern
+	 * @return the files in alphabetical order or null if the folder does not exist
+	 * 	or cannot be read
+	 */
+	public static List<File> listImages(String input) {
+		File dir = new File(input);
+		PathMatcher matcher = null;
+		if (!dir.isDirectory()) {
+			matcher = FileSystems.getDefault().getPathMatcher("glob:" + dir.getName());
+			// A pattern without folder, such as '*.tif', refers to the current folder
+			dir = dir.getAbsoluteFile().getParentFile();
+		}
+		if (dir == null || !dir.isDirectory()) {
+			IJ.error("The input folder does not exist:\n" + input);
+			return null;
+		}
+		File[] all = dir.listFiles();
+		if (all == null) {
+			IJ.error("The input folder cannot be read:\n" + dir.getAbsolutePath());
+			return null;
+		}
+		Arrays.sort(all);
+		List<File> files = new ArrayList<File>();
+		for (File file : all) {
+			if (file.isDirectory() || file.getName().startsWith("."))
+				continue;
+			if (matcher == null || matcher.matches(Paths.get(file.getName())))
+				files.add(file);
+		}
+		return files;
+	}
+	
+	/*
+	 * Start reading the next file that has not been requested yet
+	 */
+	private void readNext() {
+		if (nextToRead >= files.size())
+			return;
+		final File file = files.get(nextToRead);
+		final Timing timing = timings[nextToRead ++];
+		pending.add(readers.submit(new Callable<ImagePlus>() {
+			@Override
+			public ImagePlus call() {
+				long t0 = System.nanoTime();
+				ImagePlus imp = IJ.openImage(file.getAbsolutePath());
+				timing.read = System.nanoTime() - t0;
+				return imp;
+			}
+		}));
+	}
+	
+	public int size() {
+		return files.size();
+	}
+	
+	/**
+	 * Next image of the folder. The files that cannot be opened are skipped
+	 * @return the image or null when every file has been processed
+	 */
+	public ImagePlus next() {
+		while (!pending.isEmpty()) {
+			long t0 = System.nanoTime();
+			Future<ImagePlus> future = pending.poll();
+			current ++;
+			readNext();
+			ImagePlus imp = null;
+			try {
+				imp = future.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return null;
+			} catch (ExecutionException e) {
+				e.printStackTrace();
+			}
+			timings[current].wait = System.nanoTime() - t0;
+			if (imp != null) {
+				imp.setTitle(files.get(current).getName());
+				return imp;
+			}
+			timings[current].error = "could not be opened";
+			IJ.log("DeepImageJ batch: " + files.get(current).getName() + " could not be opened");
+		}
+		return null;
+	}
+	
+	/**
+	 * Save, in a background thread, the outputs of the image returned by the
+	 * last call to 'next'. The images are closed once they are saved
+	 * @param outputs: outputs of the model after the postprocessing, null if it failed
+	 * @param processTime: time spent on the image, in nanoseconds
+	 */
+	public void save(final HashMap<String, Object> outputs, long processTime) {
+		final Timing timing = timings[current];
+		timing.process = processTime;
+		if (outputs == null) {
+			timing.error = "failed";
+			return;
+		}
+		writer.execute(new Runnable() {
+			@Override
+			public void run() {
+				long t0 = System.nanoTime();
+				int nImages = 0;
+				for (Object o : outputs.values())
+					nImages += o instanceof ImagePlus ? 1 : 0;
+				for (String key : outputs.keySet()) {
+					Object o = outputs.get(key);
+					// A single output image keeps the name of the input
+					String name = timing.name;
+					if (!(o instanceof ImagePlus && nImages == 1))
+						name += "_" + key.replaceAll("[^A-Za-z0-9._-]", "_");
+					if (o instanceof ImagePlus) {
+						if (saveImage((ImagePlus) o, outputDir + File.separator + name + "." + format))
+							timing.outputs ++;
+						((ImagePlus) o).changes = false;
+						((ImagePlus) o).close();
+					} else if (o instanceof ResultsTable) {
+						try {
+							((ResultsTable) o).saveAs(outputDir + File.separator + name + ".csv");
+							timing.outputs ++;
+						} catch (IOException e) {
+							IJ.log("DeepImageJ batch: unable to save " + name + ".csv: " + e.getMessage());
+						}
+					}
+				}
+				timing.write = System.nanoTime() - t0;
+			}
+		});
+	}
+	
+	private boolean saveImage(ImagePlus imp, String path) {
+		FileSaver saver = new FileSaver(imp);
+		if (format.equals("zip"))
+			return saver.saveAsZip(path);
+		if (format.equals("png"))
+			return saver.saveAsPng(path);
+		if (format.equals("jpg"))
+			return saver.saveAsJpeg(path);
+		return saver.saveAsTiff(path);
+	}
+	
+	/**
+	 * Wait until every output is saved and print the time spent on each image
+	 */
+	public void finish() {
+		readers.shutdownNow();
+		writer.shutdown();
+		try {
+			writer.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		long total = System.nanoTime() - start;
+		long read = 0;
+		long wait = 0;
+		int done = 0;
+		IJ.log("DeepImageJ batch: image, read (s), waiting for the read (s), model (s), save (s), files saved");
+		for (int i = 0; i <= current && i < timings.length; i ++) {
+			Timing t = timings[i];
+			read += t.read;
+			wait += t.wait;
+			done += t.error == null ? 1 : 0;
+			IJ.log(" - " + t.name + ", " + seconds(t.read) + ", " + seconds(t.wait) + ", " + seconds(t.process) + ", "
+					+ seconds(t.write) + ", " + (t.error == null ? t.outputs : t.error));
+		}
+		IJ.log("DeepImageJ batch: " + done + " of " + files.size() + " images processed in " + seconds(total) + " s, "
+				+ seconds(read - wait) + " s of reading done while the model was running. Outputs saved in " + outputDir);
+	}
+	
+	private static String seconds(long nanos) {
+		return String.format("%.2f", Math.max(0, nanos) / 1e9);
+	}
+	
+	private static String baseName(String fileName) {
+		int dot = fileName.lastIndexOf(".");
+		return dot > 0 ? fileName.substring(0, dot) : fileName;
+	}
+}
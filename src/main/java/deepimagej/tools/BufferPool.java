@@ -0,0 +1,228 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ * 
+ * Reference: DeepImageJ: A user-friendly environment to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, W. Ouyang, L. Donati, M. Unser, E. Lundberg, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2021.
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ * Science for Life Laboratory, School of Engineering Sciences in Chemistry, Biotechnology and Health, KTH - Royal Institute of Technology, Sweden
+ * 
+ * Authors: Carlos Garcia-Lopez-de-Haro and Estibaliz Gomez-de-Mariscal
+ *
+ */
+
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2019-2021, DeepImageJ
+ * All rights reserved.
+ *	
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *	  this list of conditions and the following disclaimer in the documentation
+ *	  and/or other materials provided with the distribution.
+ *	
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package deepimagej.tools;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+
+/*
+ * Memory reused by the tile loop of the runners. The tensors of every tile of a run
+ * have the same shape, so instead of allocating new arrays for each tile, the
+ * direct buffers used to create the tensors and the pixel arrays of the patches
+ * are given back to the pool once the tile is done and taken again by the next one.
+ * Buffers are identified by data type and shape, pixel arrays by their length.
+ */
+public class BufferPool {
+	
+	// Maximum number of free buffers or arrays kept for the same key
+	private static final int MAX_FREE = 128;
+	// Maximum memory held by all the free buffers and arrays
+	private static long maxFreeBytes = SystemUsage.getIntProperty("deepimagej.buffer_pool.mb", 512) * 1024L * 1024L;
+	// Memory held at the moment by the free buffers and arrays
+	private static AtomicLong freeBytes = new AtomicLong();
+	// Free direct buffers, by data type and shape
+	private static ConcurrentHashMap<String, ConcurrentLinkedQueue<ByteBuffer>>	buffers		= new ConcurrentHashMap<String, ConcurrentLinkedQueue<ByteBuffer>>();
+	// Key of every buffer that is being used
+	private static Map<ByteBuffer, String>										leased		= Collections.synchronizedMap(new IdentityHashMap<ByteBuffer, String>());
+	// Free float pixel arrays, by length
+	private static ConcurrentHashMap<Integer, ConcurrentLinkedQueue<float[]>>	slices		= new ConcurrentHashMap<Integer, ConcurrentLinkedQueue<float[]>>();
+	// Number of buffers and arrays that had to be allocated because the pool was empty,
+	// it tells whether the tiles of a run reuse the memory of the previous ones
+	private static AtomicLong													allocations	= new AtomicLong();
+	
+	/*
+	 * Get a direct buffer in native order able to hold a tensor with the given
+	 * data type and shape. The contents of the buffer are not defined
+	 */
+	public static ByteBuffer acquire(String dtype, long[] shape) {
+		String key = dtype + Arrays.toString(shape);
+		ByteBuffer data = poll(buffers, key);
+		if (data != null) {
+			freeBytes.addAndGet(-data.capacity());
+		} else {
+			long size = bytesPerElement(dtype);
+			for (long d : shape)
+				size *= d;
+			data = ByteBuffer.allocateDirect((int) size).order(ByteOrder.nativeOrder());
+			allocations.incrementAndGet();
+		}
+		data.clear();
+		leased.put(data, key);
+		return data;
+	}
+	
+	/*
+	 * Give back a buffer obtained with acquire(). It should
+	 * not be used anymore, neither by the caller nor by any tensor created with it
+	 */
+	public static void release(ByteBuffer data) {
+		String key = leased.remove(data);
+		if (key != null && offer(buffers, key, data))
+			freeBytes.addAndGet(data.capacity());
+	}
+	
+	/*
+	 * Get a float array of the given length. The contents of the array are not defined
+	 */
+	public static float[] acquireSlice(int length) {
+		float[] pixels = poll(slices, length);
+		if (pixels != null) {
+			freeBytes.addAndGet(-4L * length);
+		} else {
+			pixels = new float[length];
+			allocations.incrementAndGet();
+		}
+		return pixels;
+	}
+	
+	public static void releaseSlice(float[] pixels) {
+		if (offer(slices, pixels.length, pixels))
+			freeBytes.addAndGet(4L * pixels.length);
+	}
+	
+	/*
+	 * Create a 32-bit hyperstack whose pixel arrays come from the pool. Unlike
+	 * IJ.createImage the image is not filled with zeros, every pixel has to be
+	 * written by the caller
+	 */
+	public static ImagePlus createImage(String title, int nx, int ny, int nc, int nz, int nt) {
+		ImageStack stack = new ImageStack(nx, ny);
+		for (int i = 0; i < nc * nz * nt; i ++)
+			stack.addSlice("", acquireSlice(nx * ny));
+		ImagePlus imp = new ImagePlus(title, stack);
+		imp.setDimensions(nc, nz, nt);
+		imp.setOpenAsHyperStack(true);
+		return imp;
+	}
+	
+	/*
+	 * Give back the pixel arrays of a 32-bit image. The image should not be used anymore
+	 */
+	public static void releaseImage(ImagePlus imp) {
+		if (imp == null)
+			return;
+		ImageStack stack = imp.getStack();
+		for (int i = 1; i <= stack.getSize(); i ++) {
+			Object pixels = stack.getPixels(i);
+			if (pixels instanceof float[])
+				releaseSlice((float[]) pixels);
+		}
+	}
+	
+	/*
+	 * Number of buffers and arrays allocated by the pool since the plugin was loaded.
+	 * Once every tile size of a run has been seen it should not increase anymore
+	 */
+	public static long getAllocations() {
+		return allocations.get();
+	}
+	
+	/*
+	 * Memory held by the free buffers and arrays of the pool
+	 */
+	public static long getFreeBytes() {
+		return freeBytes.get();
+	}
+	
+	/*
+	 * Forget every free buffer and array so they can be garbage collected. Called
+	 * once the plugin has finished with the image or folder, the buffers being
+	 * used at the moment go back to the pool when they are released
+	 */
+	public static void clear() {
+		for (ConcurrentLinkedQueue<ByteBuffer> queue : buffers.values()) {
+			ByteBuffer data;
+			while ((data = queue.poll()) != null)
+				freeBytes.addAndGet(-data.capacity());
+		}
+		for (ConcurrentLinkedQueue<float[]> queue : slices.values()) {
+			float[] pixels;
+			while ((pixels = queue.poll()) != null)
+				freeBytes.addAndGet(-4L * pixels.length);
+		}
+	}
+	
+	private static int bytesPerElement(String dtype) {
+		if (dtype.equals("float64") || dtype.equals("int64"))
+			return 8;
+		else if (dtype.equals("int16") || dtype.equals("uint16"))
+			return 2;
+		else if (dtype.equals("int8") || dtype.equals("uint8"))
+			return 1;
+		return 4;
+	}
+	
+	private static <K, T> T poll(ConcurrentHashMap<K, ConcurrentLinkedQueue<T>> pool, K key) {
+		ConcurrentLinkedQueue<T> queue = pool.get(key);
+		return queue == null ? null : queue.poll();
+	}
+	
+	/*
+	 * Keep a free item in the pool, returns false if it is left to the garbage
+	 * collector because the pool is full
+	 */
+	private static <K, T> boolean offer(ConcurrentHashMap<K, ConcurrentLinkedQueue<T>> pool, K key, T item) {
+		ConcurrentLinkedQueue<T> queue = pool.get(key);
+		if (queue == null) {
+			pool.putIfAbsent(key, new ConcurrentLinkedQueue<T>());
+			queue = pool.get(key);
+		}
+		// ConcurrentLinkedQueue.size() is not constant time, but the queues are short
+		if (queue.size() >= MAX_FREE || freeBytes.get() >= maxFreeBytes)
+			return false;
+		return queue.offer(item);
+	}
+}
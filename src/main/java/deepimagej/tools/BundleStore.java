@@ -0,0 +1,210 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ * 
+ * Reference: DeepImageJ: A user-friendly environment to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, W. Ouyang, L. Donati, M. Unser, E. Lundberg, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2021.
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ * Science for Life Laboratory, School of Engineering Sciences in Chemistry, Biotechnology and Health, KTH - Royal Institute of Technology, Sweden
+ * 
+ * Authors: Carlos Garcia-Lopez-de-Haro and Estibaliz Gomez-de-Mariscal
+ *
+ */
+
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2019-2021, DeepImageJ
+ * All rights reserved.
+ *	
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *	  this list of conditions and the following disclaimer in the documentation
+ *	  and/or other materials provided with the distribution.
+ *	
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package deepimagej.tools;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import deepimagej.DeepImageJ;
+
+/**
+ * Tensorflow bundles (tensorflow_saved_model_bundle.zip) unpacked in the folder
+ * 'tf-bundles' of FileTools.getCacheDir(). Each bundle is unpacked once, in a
+ * folder named after the sha256 of the zip, so the models that share the same
+ * weights use the same folder. The entries are inflated in parallel into a
+ * '.partial' folder that is renamed when all of them are written, and the
+ * folders without the '.complete' marker are never used. An interrupted
+ * extraction is resumed keeping the entries that were already written.
+ */
+public class BundleStore {
+	
+	private static final String	COMPLETE = ".complete";
+	
+	private static File getDir() {
+		File dir = new File(FileTools.getCacheDir(), "tf-bundles");
+		if (!dir.isDirectory())
+			dir.mkdirs();
+		return dir;
+	}
+	
+	/*
+	 * Zipped bundle of the model, null if the model is not zipped
+	 */
+	public static File getBundle(DeepImageJ dp) {
+		File zip = new File(dp.getPath(), dp.tfName);
+		return zip.isFile() ? zip : null;
+	}
+	
+	/**
+	 * Folder where the bundle is unpacked
+	 * @param zip: the zipped bundle
+	 * @return the folder or null if it has not been unpacked yet
+	 * @throws IOException if the bundle cannot be read
+	 */
+	public static File find(File zip) throws IOException {
+		File dir = new File(getDir(), ModelIndex.sha256(zip.getAbsolutePath()));
+		return new File(dir, COMPLETE).isFile() ? dir : null;
+	}
+	
+	/*
+	 * Whether the model has to be unpacked before it can be loaded
+	 */
+	public static boolean needsUnpacking(DeepImageJ dp) {
+		File zip = getBundle(dp);
+		try {
+			return zip != null && find(zip) == null;
+		} catch (IOException e) {
+			return true;
+		}
+	}
+	
+	/**
+	 * Unpack the bundle if it is not already in the store
+	 * @param zip: the zipped bundle
+	 * @return folder with the saved_model.pb and the variables
+	 * @throws IOException if the bundle cannot be unpacked
+	 * @throws InterruptedException if the thread is interrupted
+	 */
+	public static File unpack(File zip) throws IOException, InterruptedException {
+		File dir = find(zip);
+		ModelIndex.save();
+		if (dir != null)
+			return dir;
+		dir = new File(getDir(), ModelIndex.sha256(zip.getAbsolutePath()));
+		File partial = new File(dir.getAbsolutePath() + ".partial");
+		partial.mkdirs();
+		String root = partial.getCanonicalPath() + File.separator;
+		try (final ZipFile zipFile = new ZipFile(zip)) {
+			List<? extends ZipEntry> entries = Collections.list(zipFile.entries());
+			ExecutorService service = Executors.newFixedThreadPool(Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors())));
+			List<Future<Void>> futures = new ArrayList<Future<Void>>();
+			for (final ZipEntry entry : entries) {
+				final File file = new File(partial, entry.getName());
+				if (!file.getCanonicalPath().startsWith(root))
+					throw new IOException("Invalid entry in " + zip.getName() + ": " + entry.getName());
+				if (entry.isDirectory()) {
+					file.mkdirs();
+					continue;
+				}
+				// Entries written before an interruption are kept
+				if (file.isFile() && file.length() == entry.getSize())
+					continue;
+				futures.add(service.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws IOException {
+						extract(zipFile, entry, file);
+						return null;
+					}
+				}));
+			}
+			try {
+				for (Future<Void> future : futures)
+					future.get();
+			} catch (ExecutionException e) {
+				throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+			} finally {
+				service.shutdownNow();
+			}
+		}
+		new File(partial, COMPLETE).createNewFile();
+		try {
+			Files.move(partial.toPath(), dir.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(partial.toPath(), dir.toPath());
+		} catch (IOException e) {
+			// Another instance of ImageJ unpacked the same bundle meanwhile
+			if (!new File(dir, COMPLETE).isFile())
+				throw e;
+			delete(partial);
+		}
+		return dir;
+	}
+	
+	/*
+	 * Inflate an entry into a temporary file that gets the name of the entry once
+	 * it is complete. Stops if the thread is interrupted
+	 */
+	private static void extract(ZipFile zipFile, ZipEntry entry, File file) throws IOException {
+		file.getParentFile().mkdirs();
+		File tmp = new File(file.getAbsolutePath() + ".tmp");
+		byte[] buffer = new byte[1024 * 1024];
+		try (InputStream is = zipFile.getInputStream(entry); OutputStream os = new BufferedOutputStream(new FileOutputStream(tmp))) {
+			int read;
+			while ((read = is.read(buffer)) != -1) {
+				if (Thread.currentThread().isInterrupted())
+					throw new InterruptedIOException("Unpacking of " + entry.getName() + " interrupted");
+				os.write(buffer, 0, read);
+			}
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+	
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children)
+				delete(child);
+		}
+		file.delete();
+	}
+}
@@ -70,6 +70,8 @@ public class DijRunnerPreprocessing implements Callable<HashMap<String, Object>>
 	public 	String	error = "";
 	private boolean composite = false;
 	private boolean show;
+	// Whether the input is used directly instead of a duplicate
+	private boolean keepOriginal = false;
 	
 	public DijRunnerPreprocessing(DeepImageJ dp, RunnerProgress rp, ImagePlus inp, boolean batch, boolean show) {
 		this.dp = dp;
@@ -107,10 +109,17 @@ public class DijRunnerPreprocessing implements Callable<HashMap<String, Object>>
 			}
 			
 	
-			im = inp.duplicate();
 			correctTitle = inp.getTitle();
-			im.setTitle("tmp_" + correctTitle);
-			if (batch == false) {
+			// A virtual stack without preprocessing is read from disk as it is, duplicating
+			// it would load the whole image in memory
+			if (inp.getStack().isVirtual() && dp.params.firstPreprocessing == null && dp.params.secondPreprocessing == null) {
+				keepOriginal = true;
+				im = inp;
+			} else {
+				im = inp.duplicate();
+				im.setTitle("tmp_" + correctTitle);
+			}
+			if (batch == false && !keepOriginal) {
 				ImageWindow windToClose = inp.getWindow();
 				windToClose.dispose();
 			}
@@ -200,6 +209,8 @@ public class DijRunnerPreprocessing implements Callable<HashMap<String, Object>>
 	 * @param correctTitle: the title of the original image
 	 */
 	public void removeProcessedImageAndShowOriginal(boolean dev, ImagePlus im,  String correctTitle) {
+		if (keepOriginal)
+			return;
 		if (!inp.getWindow().isShowing() && !dev) {
 			inp.changes = false;
 			inp.close();
@@ -217,7 +228,9 @@ public class DijRunnerPreprocessing implements Callable<HashMap<String, Object>>
 	 * @param correctTitle: the title of the original image
 	 */
 	public void showOriginalImage(boolean dev, ImagePlus im,  String correctTitle) {
-		if (!dev) {
+		if (!dev && keepOriginal) {
+			WindowManager.setTempCurrentImage(null);
+		} else if (!dev) {
 			im.setTitle(correctTitle);
 			if (batch == false)
 				im.show();
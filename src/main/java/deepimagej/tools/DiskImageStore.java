@@ -0,0 +1,214 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ * 
+ * Reference: DeepImageJ: A user-friendly environment to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, W. Ouyang, L. Donati, M. Unser, E. Lundberg, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2021.
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ * Science for Life Laboratory, School of Engineering Sciences in Chemistry, Biotechnology and Health, KTH - Royal Institute of Technology, Sweden
+ * 
+ * Authors: Carlos Garcia-Lopez-de-Haro and Estibaliz Gomez-de-Mariscal
+ *
+ */
+
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2019-2021, DeepImageJ
+ * All rights reserved.
+ *	
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *	  this list of conditions and the following disclaimer in the documentation
+ *	  and/or other materials provided with the distribution.
+ *	
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package deepimagej.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.plugin.FileInfoVirtualStack;
+
+/*
+ * 32-bit hyperstack kept in an uncompressed TIFF file instead of in memory.
+ * The file is created with its final size and the tiles are written directly
+ * at their position, so only the tile being stitched is held in memory.
+ * The planes are stored contiguously after a single IFD and the ImageJ
+ * description gives the number of images, which is how ImageJ stores
+ * stacks bigger than 4GB and lets them be opened as virtual stacks.
+ */
+public class DiskImageStore {
+	
+	private File file;
+	private String title;
+	private RandomAccessFile raf;
+	private FileChannel channel;
+	private int nx;
+	private int ny;
+	private int nc;
+	private int nz;
+	private int nt;
+	// Position of the first pixel of the first plane
+	private long dataOffset;
+	
+	/*
+	 * Create the file for an image called 'title' in the folder 'dir'
+	 */
+	public DiskImageStore(String dir, String title, int nx, int ny, int nc, int nz, int nt) throws IOException {
+		String name = title.replaceAll("[^A-Za-z0-9._-]", "_");
+		if (!name.toLowerCase().endsWith(".tif") && !name.toLowerCase().endsWith(".tiff"))
+			name += ".tif";
+		this.file = new File(dir, name);
+		this.title = title;
+		this.nx = nx;
+		this.ny = ny;
+		this.nc = nc;
+		this.nz = nz;
+		this.nt = nt;
+		if (file.getParentFile() != null)
+			file.getParentFile().mkdirs();
+		raf = new RandomAccessFile(file, "rw");
+		channel = raf.getChannel();
+		writeHeader();
+	}
+	
+	public File getFile() {
+		return file;
+	}
+	
+	/*
+	 * Header, IFD and ImageJ description of the file. The pixels are not written,
+	 * the file is only extended to its final size
+	 */
+	private void writeHeader() throws IOException {
+		int nImages = nc * nz * nt;
+		byte[] description = ("ImageJ=1.52\nimages=" + nImages + "\nchannels=" + nc + "\nslices=" + nz + "\nframes=" + nt
+								+ "\nhyperstack=true\nmode=grayscale\nloop=false\n\0").getBytes(StandardCharsets.US_ASCII);
+		int nEntries = 12;
+		int descriptionOffset = 8 + 2 + nEntries * 12 + 4;
+		dataOffset = (descriptionOffset + description.length + 7) / 8 * 8;
+		long planeBytes = (long) nx * ny * 4;
+		ByteBuffer header = ByteBuffer.allocate((int) dataOffset).order(ByteOrder.LITTLE_ENDIAN);
+		header.put((byte) 'I').put((byte) 'I').putShort((short) 42).putInt(8);
+		header.putShort((short) nEntries);
+		putEntry(header, 254, 4, 1, 0);
+		putEntry(header, 256, 4, 1, nx);
+		putEntry(header, 257, 4, 1, ny);
+		putEntry(header, 258, 3, 1, 32);
+		putEntry(header, 259, 3, 1, 1);
+		putEntry(header, 262, 3, 1, 1);
+		putEntry(header, 270, 2, description.length, descriptionOffset);
+		putEntry(header, 273, 4, 1, (int) dataOffset);
+		putEntry(header, 277, 3, 1, 1);
+		putEntry(header, 278, 4, 1, ny);
+		putEntry(header, 279, 4, 1, (int) planeBytes);
+		// IEEE floating point samples
+		putEntry(header, 339, 3, 1, 3);
+		// No more IFDs, ImageJ reads the rest of the planes from the description
+		header.putInt(0);
+		header.put(description);
+		header.rewind();
+		while (header.hasRemaining())
+			channel.write(header, header.position());
+		raf.setLength(dataOffset + planeBytes * nImages);
+	}
+	
+	private static void putEntry(ByteBuffer header, int tag, int type, int count, int value) {
+		header.putShort((short) tag);
+		header.putShort((short) type);
+		header.putInt(count);
+		if (type == 3)
+			header.putShort((short) value).putShort((short) 0);
+		else
+			header.putInt(value);
+	}
+	
+	/*
+	 * Write the useful part of a tile into the file. The arguments are the same
+	 * as in ArrayOperations.imagePlusReconstructor, 't' is the frame (0-based).
+	 * The tile is copied row by row with positional writes, so the method can
+	 * be called from several threads
+	 */
+	public void writeRegion(ImagePlus patch, int xImageStartPatch, int xImageEndPatch,
+							int yImageStartPatch, int yImageEndPatch,
+							int zImageStartPatch, int zImageEndPatch,
+							int leftoverX, int leftoverY, int leftoverZ, int t) throws IOException {
+		int channels = Math.min(patch.getNChannels(), nc);
+		int pw = patch.getWidth();
+		int roiX = Math.min(xImageEndPatch, nx) - xImageStartPatch;
+		int roiY = Math.min(yImageEndPatch, ny) - yImageStartPatch;
+		int roiZ = Math.min(zImageEndPatch, nz) - zImageStartPatch;
+		if (roiX <= 0 || roiY <= 0 || roiZ <= 0 || t >= nt)
+			return;
+		ImageStack stack = patch.getStack();
+		ByteBuffer row = ByteBuffer.allocate(roiX * 4).order(ByteOrder.LITTLE_ENDIAN);
+		for (int z = 0; z < roiZ; z ++) {
+			for (int c = 0; c < channels; c ++) {
+				float[] pixels = (float[]) stack.getProcessor(patch.getStackIndex(c + 1, leftoverZ + z + 1, 1)).convertToFloat().getPixels();
+				// Planes are stored in ImageJ order, channels first and frames last
+				long plane = ((long) t * nz + zImageStartPatch + z) * nc + c;
+				for (int y = 0; y < roiY; y ++) {
+					row.clear();
+					int start = (leftoverY + y) * pw + leftoverX;
+					for (int x = 0; x < roiX; x ++)
+						row.putFloat(pixels[start + x]);
+					row.flip();
+					long position = dataOffset + ((plane * ny + yImageStartPatch + y) * nx + xImageStartPatch) * 4;
+					while (row.hasRemaining())
+						channel.write(row, position + row.position());
+				}
+			}
+		}
+	}
+	
+	/*
+	 * Close the file. It can be opened afterwards with 'open'
+	 */
+	public void close() {
+		try {
+			channel.close();
+			raf.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/*
+	 * Close the file and open it again as a virtual stack, the planes are read
+	 * from disk when they are displayed
+	 */
+	public ImagePlus open() {
+		close();
+		ImagePlus imp = FileInfoVirtualStack.openVirtual(file.getAbsolutePath());
+		if (imp != null)
+			imp.setTitle(title);
+		return imp;
+	}
+}
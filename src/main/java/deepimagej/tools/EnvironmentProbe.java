@@ -0,0 +1,260 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ * 
+ * Reference: DeepImageJ: A user-friendly environment to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, W. Ouyang, L. Donati, M. Unser, E. Lundberg, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2021.
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ * Science for Life Laboratory, School of Engineering Sciences in Chemistry, Biotechnology and Health, KTH - Royal Institute of Technology, Sweden
+ * 
+ * Authors: Carlos Garcia-Lopez-de-Haro and Estibaliz Gomez-de-Mariscal
+ *
+ */
+
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2019-2021, DeepImageJ
+ * All rights reserved.
+ *	
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *	  this list of conditions and the following disclaimer in the documentation
+ *	  and/or other materials provided with the distribution.
+ *	
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package deepimagej.tools;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+import deepimagej.DeepLearningModel;
+import deepimagej.stamp.LoadPytorchStamp;
+import ij.IJ;
+
+/**
+ * Versions of Tensorflow, Pytorch and CUDA found in the system, saved in the file
+ * 'environment.properties' of FileTools.getCacheDir(). Finding them runs external
+ * commands (locate, cat, nvidia-smi, ps...) and scans the jar folders, which takes
+ * seconds, so it is done once and the saved values are used afterwards.
+ * The values that depend on the jars are discarded when the 'plugins' or 'jars'
+ * folders of ImageJ change. After 'deepimagej.env.ttl_hours' hours (24 by default)
+ * the saved values are still used and they are probed again in the background.
+ */
+public class EnvironmentProbe {
+	
+	private static final String	ENV_FILE = "environment.properties";
+	private static final String	STAMP = "jars.stamp";
+	private static final String	TIME = "probe.time";
+	private static final String	CUDA = "cuda";
+	private static final String	TENSORFLOW = "tensorflow";
+	private static final String	PYTORCH = "pytorch";
+	private static final String	PYTORCH_NATIVE = "pytorch.native";
+	private static final String	TF_DEVICE = "tensorflow.device";
+	// Null until the file is read
+	private static Properties	env = null;
+	private static boolean		refreshing = false;
+	
+	/*
+	 * CUDA version installed as returned by SystemUsage.getCUDAEnvVariables()
+	 */
+	public static String getCUDAVersion() {
+		return get(CUDA);
+	}
+	
+	/*
+	 * Tensorflow version of the jars, as returned by DeepLearningModel.getTFVersion(false)
+	 */
+	public static String getTFVersion() {
+		return get(TENSORFLOW);
+	}
+	
+	/*
+	 * Pytorch version of the jars, as returned by DeepLearningModel.getPytorchVersion()
+	 */
+	public static String getPytorchVersion() {
+		return get(PYTORCH);
+	}
+	
+	/*
+	 * Native library used by DJL Pytorch. It is only known once the Pytorch engine
+	 * has been started
+	 */
+	public static String getPytorchNativeLibrary() {
+		return get(PYTORCH_NATIVE);
+	}
+	
+	/*
+	 * Device where the last Tensorflow model was loaded ("gpu", "CPU" or "???"), null
+	 * if it has to be found with nvidia-smi
+	 */
+	public static synchronized String getTfDevice() {
+		load();
+		return env.getProperty(TF_DEVICE);
+	}
+	
+	public static synchronized void setTfDevice(String device) {
+		load();
+		if (device == null || device.equals(env.getProperty(TF_DEVICE)))
+			return;
+		env.setProperty(TF_DEVICE, device);
+		save();
+	}
+	
+	private static String get(String key) {
+		synchronized (EnvironmentProbe.class) {
+			load();
+			String value = env.getProperty(key);
+			if (value != null)
+				return value;
+		}
+		// Only the first time, or after the jars changed
+		String value = probe(key);
+		synchronized (EnvironmentProbe.class) {
+			if (value != null && !(key.equals(PYTORCH_NATIVE) && value.equals("???"))) {
+				env.setProperty(key, value);
+				save();
+			}
+		}
+		return value;
+	}
+	
+	private static String probe(String key) {
+		if (key.equals(CUDA))
+			return SystemUsage.getCUDAEnvVariables();
+		else if (key.equals(TENSORFLOW))
+			return DeepLearningModel.getTFVersion(false);
+		else if (key.equals(PYTORCH))
+			return DeepLearningModel.getPytorchVersion();
+		else if (key.equals(PYTORCH_NATIVE))
+			return LoadPytorchStamp.getNativeLbraryFile();
+		return null;
+	}
+	
+	/*
+	 * Last modification and number of files of the folders where the
+	 * Tensorflow and Pytorch jars are
+	 */
+	private static String jarsStamp() {
+		String stamp = "";
+		String ijDirectory = IJ.getDirectory("imagej");
+		if (ijDirectory == null)
+			return stamp;
+		for (String folder : new String[] {"plugins", "jars"}) {
+			File dir = new File(ijDirectory, folder);
+			String[] files = dir.list();
+			stamp += dir.lastModified() + ":" + (files == null ? 0 : files.length) + "|";
+		}
+		return stamp;
+	}
+	
+	private static synchronized void load() {
+		if (env != null)
+			return;
+		env = new Properties();
+		File file = new File(FileTools.getCacheDir(), ENV_FILE);
+		if (file.isFile()) {
+			try (InputStream is = new FileInputStream(file)) {
+				env.load(is);
+			} catch (IOException ex) {
+				IJ.log("Unable to read the environment information: " + ex.toString());
+			}
+		}
+		String stamp = jarsStamp();
+		if (!stamp.equals(env.getProperty(STAMP))) {
+			// The values found before might belong to other jars
+			env.clear();
+			env.setProperty(STAMP, stamp);
+			env.setProperty(TIME, "" + System.currentTimeMillis());
+			return;
+		}
+		long ttl = SystemUsage.getIntProperty("deepimagej.env.ttl_hours", 24) * 3600000L;
+		long time = 0;
+		try {
+			time = Long.parseLong(env.getProperty(TIME, "0"));
+		} catch (NumberFormatException ex) {
+		}
+		if (System.currentTimeMillis() - time > ttl)
+			refreshInBackground();
+	}
+	
+	/*
+	 * Probe again the values saved, the saved ones are used meanwhile
+	 */
+	private static synchronized void refreshInBackground() {
+		if (refreshing)
+			return;
+		refreshing = true;
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					Properties probed = new Properties();
+					for (String key : new String[] {CUDA, TENSORFLOW, PYTORCH}) {
+						String value = probe(key);
+						if (value != null)
+							probed.setProperty(key, value);
+					}
+					synchronized (EnvironmentProbe.class) {
+						env.putAll(probed);
+						// The device is found again with the next Tensorflow model loaded
+						env.remove(TF_DEVICE);
+						env.setProperty(TIME, "" + System.currentTimeMillis());
+						save();
+					}
+				} finally {
+					synchronized (EnvironmentProbe.class) {
+						refreshing = false;
+					}
+				}
+			}
+		}, "DeepImageJ environment probe");
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	/*
+	 * Write to a temporary file first so a crash never leaves a half written file
+	 */
+	private static synchronized void save() {
+		File file = new File(FileTools.getCacheDir(), ENV_FILE);
+		File tmp = new File(file.getAbsolutePath() + ".tmp");
+		try (OutputStream os = new FileOutputStream(tmp)) {
+			env.store(os, "DeepImageJ Tensorflow, Pytorch and CUDA versions found");
+		} catch (IOException ex) {
+			IJ.log("Unable to save the environment information: " + ex.toString());
+			return;
+		}
+		try {
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException ex) {
+			IJ.log("Unable to save the environment information: " + ex.toString());
+		}
+	}
+}
@@ -52,11 +52,13 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
@@ -72,6 +74,9 @@ import java.util.zip.ZipOutputStream;
 import ij.IJ;
 
 public class FileTools {
+	
+	// Bytes read at once to compute a checksum
+	private static final int	SHA256_BUFFER = 4 * 1024 * 1024;
 
 	static public String getFolderSizeKb(String dir) {
 		return String.format("%3.2f Mb", (getFolderSize(dir) / (1024 * 1024.0)));
@@ -378,8 +383,6 @@ public class FileTools {
     }
     
     public static String createSHA256(String fileName) throws  IOException {
-        byte[] buffer= new byte[8192];
-        int count;
         MessageDigest digest;
         String sha256 = "error";
 		try {
@@ -388,18 +391,39 @@ public class FileTools {
 			e.printStackTrace();
 			return "";
 		}
-        BufferedInputStream bis = new BufferedInputStream(new FileInputStream(fileName));
-        while ((count = bis.read(buffer)) > 0) {
-            digest.update(buffer, 0, count);
-        }
-        bis.close();
+		// Large reads into a direct buffer, the bytes are not copied to the Java heap.
+		// The file is not mapped because on Windows a mapped file cannot be
+		// deleted or replaced until the mapping is garbage collected
+		ByteBuffer buffer = ByteBuffer.allocateDirect(SHA256_BUFFER);
+		try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+			while (channel.read(buffer) != -1) {
+				buffer.flip();
+				digest.update(buffer);
+				buffer.clear();
+			}
+		}
 
         byte[] hash = digest.digest();
         sha256 = bytesToHex(hash);
         return sha256;
     }
     
-	private static String bytesToHex(byte[] hash) {
+	/*
+	 * Folder where DeepImageJ keeps the information it learns about the models and the
+	 * machine between sessions. It is '.deepimagej' in the home of the user unless the
+	 * system property 'deepimagej.cache.dir' is defined. It is created if it does not exist
+	 */
+	public static File getCacheDir() {
+		String dir = System.getProperty("deepimagej.cache.dir");
+		if (dir == null || dir.trim().equals(""))
+			dir = System.getProperty("user.home") + File.separator + ".deepimagej";
+		File cacheDir = new File(dir.trim());
+		if (!cacheDir.isDirectory())
+			cacheDir.mkdirs();
+		return cacheDir;
+	}
+	
+	public static String bytesToHex(byte[] hash) {
 	    StringBuffer hexString = new StringBuffer();
 	    for (int i = 0; i < hash.length; i++) {
 	    String hex = Integer.toHexString(0xff & hash[i]);
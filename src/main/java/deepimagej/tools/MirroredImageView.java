@@ -0,0 +1,240 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ * 
+ * Reference: DeepImageJ: A user-friendly environment to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, W. Ouyang, L. Donati, M. Unser, E. Lundberg, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2021.
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ * Science for Life Laboratory, School of Engineering Sciences in Chemistry, Biotechnology and Health, KTH - Royal Institute of Technology, Sweden
+ * 
+ * Authors: Carlos Garcia-Lopez-de-Haro and Estibaliz Gomez-de-Mariscal
+ *
+ */
+
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2019-2021, DeepImageJ
+ * All rights reserved.
+ *	
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *	  this list of conditions and the following disclaimer in the documentation
+ *	  and/or other materials provided with the distribution.
+ *	
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package deepimagej.tools;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+
+/*
+ * Read only view of an image extended by mirroring at every side. Coordinates
+ * refer to the extended image and are mapped back to the source image when a
+ * pixel is read, so the extended image is never allocated.
+ */
+public class MirroredImageView {
+	
+	private ImagePlus imp;
+	private int nx;
+	private int ny;
+	private int nc;
+	private int nz;
+	private int nt;
+	private int paddingXLeft;
+	private int paddingYTop;
+	private int paddingZFront;
+	// Size of the image extended with the padding
+	private int[] dims;
+	/*
+	 * Planes of a virtual stack already read from disk, the least recently used
+	 * are dropped when they need more than 'deepimagej.out_of_core.cache_mb' megabytes
+	 */
+	private LinkedHashMap<Integer, ImageProcessor> planes;
+	private long cachedBytes = 0;
+	private long maxCachedBytes = SystemUsage.getIntProperty("deepimagej.out_of_core.cache_mb", 256) * 1024L * 1024L;
+	
+	public MirroredImageView(ImagePlus imp, 
+			   int paddingXLeft, int paddingXRight,
+			   int paddingYTop, int paddingYBottom,
+			   int paddingZFront, int paddingZBack) {
+		this.imp = imp;
+		this.nx = imp.getWidth();
+		this.ny = imp.getHeight();
+		this.nc = imp.getNChannels();
+		this.nz = imp.getNSlices();
+		this.nt = imp.getNFrames();
+		this.paddingXLeft = paddingXLeft;
+		this.paddingYTop = paddingYTop;
+		this.paddingZFront = paddingZFront;
+		this.dims = new int[] {nx + paddingXLeft + paddingXRight, ny + paddingYTop + paddingYBottom,
+								nc, nz + paddingZFront + paddingZBack, nt};
+		if (imp.getStack().isVirtual())
+			planes = new LinkedHashMap<Integer, ImageProcessor>(16, 0.75f, true);
+	}
+	
+	/*
+	 * Dimensions of the extended image in ImageJ order (XYCZT)
+	 */
+	public int[] getDimensions() {
+		return dims.clone();
+	}
+	
+	public int getWidth() {
+		return dims[0];
+	}
+	
+	public int getHeight() {
+		return dims[1];
+	}
+	
+	/*
+	 * Fill 'patch' (already created with the wanted size) with the region of the
+	 * extended image that starts at (xStart, yStart, zStart) of the frame 't' (1-based).
+	 * The mirrored coordinates of each row and column are computed only once per patch
+	 * and the rows are copied straight from the pixel arrays of the source image.
+	 */
+	public void copyRegion(ImagePlus patch, int xStart, int yStart, int zStart, int t) {
+		int px = patch.getWidth();
+		int py = patch.getHeight();
+		int pc = patch.getNChannels();
+		int pz = patch.getNSlices();
+		int[] xm = new int[px];
+		for (int x = 0; x < px; x ++)
+			xm[x] = mirror(xStart + x - paddingXLeft, nx);
+		// Columns of the patch that are inside the source image, they are not mirrored
+		int x0 = Math.max(0, Math.min(px, paddingXLeft - xStart));
+		int x1 = Math.max(x0, Math.min(px, paddingXLeft + nx - xStart));
+		int[] ym = new int[py];
+		for (int y = 0; y < py; y ++)
+			ym[y] = mirror(yStart + y - paddingYTop, ny);
+		ImageStack stack = imp.getStack();
+		ImageStack patchStack = patch.getStack();
+		float[] cTable = imp.getCalibration().getCTable();
+		for (int z = 0; z < pz; z ++) {
+			int zm = mirror(zStart + z - paddingZFront, nz);
+			for (int c = 0; c < pc; c ++) {
+				// Use the stack processors directly so the position of the source image
+				// is not modified and several tiles can be read at the same time
+				ImageProcessor ip = getPlane(stack, imp.getStackIndex(Math.min(c, nc - 1) + 1, zm + 1, t));
+				float[] op = (float[]) patchStack.getPixels(patch.getStackIndex(c + 1, z + 1, 1));
+				for (int y = 0; y < py; y ++)
+					copyRow(ip, ym[y] * nx, op, y * px, xm, x0, x1, cTable);
+			}
+		}
+	}
+	
+	/*
+	 * Copy one row of the source plane 'ip', starting at 'src', into 'op' at 'dst'.
+	 * 'xm' are the source columns of the row and [x0, x1) the columns that are not
+	 * mirrored. The calibration table of 8 and 16-bit images is applied the same
+	 * way ImageProcessor.getPixelValue() does, without setting it in the processor
+	 */
+	private static void copyRow(ImageProcessor ip, int src, float[] op, int dst, int[] xm, int x0, int x1, float[] cTable) {
+		Object pixels = ip.getPixels();
+		int px = xm.length;
+		if (pixels instanceof float[]) {
+			float[] in = (float[]) pixels;
+			for (int x = 0; x < x0; x ++)
+				op[dst + x] = in[src + xm[x]];
+			if (x1 > x0)
+				System.arraycopy(in, src + xm[x0], op, dst + x0, x1 - x0);
+			for (int x = x1; x < px; x ++)
+				op[dst + x] = in[src + xm[x]];
+		} else if (pixels instanceof short[]) {
+			short[] in = (short[]) pixels;
+			for (int x = 0; x < px; x ++) {
+				int v = in[src + xm[x]] & 0xffff;
+				op[dst + x] = cTable == null ? v : cTable[v];
+			}
+		} else if (pixels instanceof byte[]) {
+			byte[] in = (byte[]) pixels;
+			for (int x = 0; x < px; x ++) {
+				int v = in[src + xm[x]] & 0xff;
+				op[dst + x] = cTable == null ? v : cTable[v];
+			}
+		} else {
+			// RGB images, the value is the luminance of the pixel
+			int y = src / ip.getWidth();
+			for (int x = 0; x < px; x ++)
+				op[dst + x] = ip.getPixelValue(xm[x], y);
+		}
+	}
+	
+	/*
+	 * Plane 'n' of the source stack. Planes of virtual stacks are kept so
+	 * the neighbouring tiles do not read them again from disk
+	 */
+	private synchronized ImageProcessor getPlane(ImageStack stack, int n) {
+		if (planes == null)
+			return stack.getProcessor(n);
+		ImageProcessor ip = planes.get(n);
+		if (ip == null) {
+			ip = stack.getProcessor(n);
+			planes.put(n, ip);
+			cachedBytes += (long) ip.getWidth() * ip.getHeight() * ip.getBitDepth() / 8;
+			Iterator<ImageProcessor> it = planes.values().iterator();
+			while (cachedBytes > maxCachedBytes && planes.size() > 1) {
+				ImageProcessor old = it.next();
+				cachedBytes -= (long) old.getWidth() * old.getHeight() * old.getBitDepth() / 8;
+				it.remove();
+			}
+		}
+		return ip;
+	}
+	
+	/*
+	 * Create the whole extended image. Only meant to display it for debugging
+	 */
+	public ImagePlus materialize() {
+		ImageStack stack = new ImageStack(dims[0], dims[1]);
+		for (int t = 0; t < nt; t ++) {
+			ImagePlus frame = IJ.createImage("Mirror", "32-bit", dims[0], dims[1], dims[2], dims[3], 1);
+			copyRegion(frame, 0, 0, 0, t + 1);
+			for (int i = 1; i <= frame.getStackSize(); i ++)
+				stack.addSlice(frame.getStack().getProcessor(i));
+		}
+		ImagePlus out = new ImagePlus("Mirror", stack);
+		out.setDimensions(dims[2], dims[3], nt);
+		out.setOpenAsHyperStack(true);
+		return out;
+	}
+	
+	/*
+	 * Reflect a coordinate into [0, n) without repeating the border pixel
+	 */
+	private static int mirror(int a, int n) {
+		if (n == 1)
+			return 0;
+		int period = 2 * n - 2;
+		a = a % period;
+		if (a < 0)
+			a += period;
+		return a < n ? a : period - a;
+	}
+}
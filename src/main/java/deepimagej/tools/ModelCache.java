@@ -0,0 +1,369 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ * 
+ * Reference: DeepImageJ: A user-friendly environment to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, W. Ouyang, L. Donati, M. Unser, E. Lundberg, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2021.
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ * Science for Life Laboratory, School of Engineering Sciences in Chemistry, Biotechnology and Health, KTH - Royal Institute of Technology, Sweden
+ * 
+ * Authors: Carlos Garcia-Lopez-de-Haro and Estibaliz Gomez-de-Mariscal
+ *
+ */
+
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2019-2021, DeepImageJ
+ * All rights reserved.
+ *	
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *	  this list of conditions and the following disclaimer in the documentation
+ *	  and/or other materials provided with the distribution.
+ *	
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package deepimagej.tools;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.tensorflow.SavedModelBundle;
+
+import ai.djl.ndarray.NDList;
+import ai.djl.repository.zoo.ZooModel;
+import deepimagej.DeepImageJ;
+import ij.IJ;
+
+/*
+ * Models loaded by DeepImageJ Run that are kept open between executions of the plugin,
+ * so a macro that processes many images only loads the model once.
+ * Models are identified by their folder, framework and weights checksum. When the 
+ * estimated size of the open models goes over the memory budget, the least recently
+ * used ones that are neither pinned nor running are closed.
+ */
+public class ModelCache {
+	
+	/*
+	 * Default memory budget in MB. Can be changed with the system property
+	 * 'deepimagej.model.cache.mb' or with the plugin DeepImageJ Model Cache.
+	 * A budget of 0 closes every model after being used.
+	 */
+	private static long								budgetMB	= readDefaultBudget();
+	// Open models in access order, the first one is the least recently used
+	private static LinkedHashMap<String, Entry>		entries		= new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	// Folders of the models that should never be evicted
+	private static Set<String>						pinned		= new HashSet<String>();
+	// Models replaced in 'entries' by a second copy while they were running. They are
+	// closed when their last execution releases them
+	private static ArrayList<Entry>					superseded	= new ArrayList<Entry>();
+	
+	public static class Entry {
+		public String						dirname;
+		public String						framework;
+		public SavedModelBundle				tfModel;
+		public ZooModel<NDList, NDList>		torchModel;
+		// Estimated memory used by the model, in MB
+		public long							sizeMB;
+		// Device reported when the model was loaded
+		public String						device;
+		// Information about the model computed by the runner the first time it is used
+		public Object						plan;
+		// Number of executions using the model at the moment
+		public int							inUse		= 0;
+	}
+	
+	/*
+	 * If the model of 'dp' is already open, give it to 'dp' and mark it as used.
+	 * Returns false if the model has to be loaded
+	 */
+	public static synchronized boolean acquire(DeepImageJ dp) {
+		Entry entry = entries.get(getKey(dp));
+		if (entry == null)
+			return false;
+		entry.inUse ++;
+		dp.setTfModel(entry.tfModel);
+		dp.setTorchModel(entry.torchModel);
+		return true;
+	}
+	
+	/*
+	 * Add the model that has just been loaded by 'dp' to the cache and mark
+	 * it as used
+	 */
+	public static synchronized void add(DeepImageJ dp) {
+		Entry entry = new Entry();
+		entry.dirname = dp.dirname;
+		entry.framework = dp.params.framework;
+		entry.tfModel = dp.getTfModel();
+		entry.torchModel = dp.getTorchModel();
+		entry.sizeMB = estimateSizeMB(dp);
+		entry.inUse = 1;
+		Entry old = entries.put(getKey(dp), entry);
+		// Only possible if the same model was loaded twice at the same time
+		if (old != null && old.inUse == 0)
+			close(old);
+		else if (old != null)
+			superseded.add(old);
+	}
+	
+	/*
+	 * Store the device (CPU or GPU) the model of 'dp' is using
+	 */
+	public static synchronized void setDevice(DeepImageJ dp, String device) {
+		Entry entry = entries.get(getKey(dp));
+		if (entry != null)
+			entry.device = device;
+	}
+	
+	/*
+	 * Information about the model that the runner computed the first time the
+	 * model was used, null if there is none
+	 */
+	public static synchronized Object getPlan(DeepImageJ dp) {
+		Entry entry = entries.get(getKey(dp));
+		return entry == null ? null : entry.plan;
+	}
+	
+	public static synchronized void setPlan(DeepImageJ dp, Object plan) {
+		Entry entry = entries.get(getKey(dp));
+		if (entry != null)
+			entry.plan = plan;
+	}
+	
+	/*
+	 * Device (CPU or GPU) reported when the model of 'dp' was loaded
+	 */
+	public static synchronized String getDevice(DeepImageJ dp) {
+		Entry entry = entries.get(getKey(dp));
+		return entry == null ? null : entry.device;
+	}
+	
+	/*
+	 * Mark the model of 'dp' as not used anymore by 'dp'. The model stays
+	 * open unless the memory budget is exceeded
+	 */
+	public static synchronized void release(DeepImageJ dp) {
+		if (dp == null || dp.params == null)
+			return;
+		Entry entry = findEntry(entries.values(), dp);
+		if (entry != null && entry.inUse > 0) {
+			entry.inUse --;
+		} else if ((entry = findEntry(superseded, dp)) != null) {
+			entry.inUse --;
+			if (entry.inUse <= 0) {
+				close(entry);
+				superseded.remove(entry);
+			}
+		}
+		dp.setTfModel(null);
+		dp.setTorchModel(null);
+		evict();
+	}
+	
+	/*
+	 * Entry of the model that 'dp' is using. The same key can have several entries
+	 * if the model was loaded twice, thus the entry is found by the model object
+	 */
+	private static Entry findEntry(Iterable<Entry> list, DeepImageJ dp) {
+		for (Entry entry : list) {
+			if ((entry.tfModel != null && entry.tfModel == dp.getTfModel())
+					|| (entry.torchModel != null && entry.torchModel == dp.getTorchModel()))
+				return entry;
+		}
+		return null;
+	}
+	
+	/*
+	 * Keep the model in the folder 'dirname' open until it is released
+	 */
+	public static synchronized void pin(String dirname) {
+		pinned.add(dirname);
+	}
+	
+	/*
+	 * Allow the model in the folder 'dirname' to be closed and close it if
+	 * it is not being used
+	 */
+	public static synchronized void release(String dirname) {
+		pinned.remove(dirname);
+		Iterator<Entry> it = entries.values().iterator();
+		while (it.hasNext()) {
+			Entry entry = it.next();
+			if (entry.dirname.equals(dirname) && entry.inUse == 0) {
+				close(entry);
+				it.remove();
+			}
+		}
+	}
+	
+	/*
+	 * Unpin every model and close all the models that are not being used
+	 */
+	public static synchronized void clear() {
+		pinned.clear();
+		Iterator<Entry> it = entries.values().iterator();
+		while (it.hasNext()) {
+			Entry entry = it.next();
+			if (entry.inUse == 0) {
+				close(entry);
+				it.remove();
+			}
+		}
+	}
+	
+	public static synchronized long getBudget() {
+		return budgetMB;
+	}
+	
+	public static synchronized void setBudget(long mb) {
+		budgetMB = Math.max(0, mb);
+		evict();
+	}
+	
+	/*
+	 * Description of the open models, one per line
+	 */
+	public static synchronized ArrayList<String> status() {
+		ArrayList<String> lines = new ArrayList<String>();
+		long total = 0;
+		for (Entry entry : entries.values()) {
+			total += entry.sizeMB;
+			lines.add(entry.dirname + " (" + entry.framework + "): " + entry.sizeMB + " MB"
+					+ (pinned.contains(entry.dirname) ? ", pinned" : "")
+					+ (entry.inUse > 0 ? ", running" : ""));
+		}
+		for (Entry entry : superseded) {
+			total += entry.sizeMB;
+			lines.add(entry.dirname + " (" + entry.framework + "): " + entry.sizeMB + " MB, running, closed when it finishes");
+		}
+		lines.add("Total: " + total + " MB of " + budgetMB + " MB");
+		return lines;
+	}
+	
+	/*
+	 * Close the least recently used models until the total size is within the budget
+	 */
+	private static void evict() {
+		long total = 0;
+		for (Entry entry : entries.values())
+			total += entry.sizeMB;
+		Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+		while (it.hasNext() && (total > budgetMB || budgetMB == 0)) {
+			Entry entry = it.next().getValue();
+			if (entry.inUse > 0 || pinned.contains(entry.dirname))
+				continue;
+			total -= entry.sizeMB;
+			close(entry);
+			it.remove();
+		}
+	}
+	
+	/*
+	 * Free the native resources of a model
+	 */
+	private static void close(Entry entry) {
+		try {
+			if (entry.tfModel != null) {
+				entry.tfModel.session().close();
+				entry.tfModel.close();
+			}
+			if (entry.torchModel != null)
+				entry.torchModel.close();
+		} catch (Exception ex) {
+			IJ.log("Error closing model " + entry.dirname + ": " + ex.toString());
+		}
+		entry.tfModel = null;
+		entry.torchModel = null;
+	}
+	
+	/*
+	 * The same folder can contain a Tensorflow and a Pytorch model, and the weights might
+	 * change without the folder changing, thus all of them identify the model
+	 */
+	private static String getKey(DeepImageJ dp) {
+		String key = dp.getPath() + "|" + dp.params.framework + "|" + getChecksum(dp);
+		// Tensorflow sessions are created with a fixed number of threads
+		if (!dp.params.framework.equals("pytorch"))
+			key += "|" + dp.params.intraOpThreads + "x" + dp.params.interOpThreads;
+		return key;
+	}
+	
+	/*
+	 * Checksum of the weights of the framework selected, as written in the model.yaml.
+	 * It is computed the first time and kept in 'dp', so it does not change when a
+	 * zipped model is unpacked
+	 */
+	public static String getChecksum(DeepImageJ dp) {
+		String framework = dp.params.framework;
+		String sha256 = dp.getWeightsChecksum(framework);
+		if (sha256 != null)
+			return sha256;
+		sha256 = framework.equals("pytorch") ? dp.params.ptSha256 : dp.params.tfSha256;
+		if (sha256 == null || sha256.equals("") || sha256.equals("null")) {
+			// Without checksum in the model.yaml, use the date of modification of the
+			// weights as they are in the model folder
+			File weights = getWeightsFile(dp);
+			sha256 = weights.lastModified() + "_" + weights.length();
+		}
+		dp.setWeightsChecksum(framework, sha256);
+		return sha256;
+	}
+	
+	/*
+	 * File with the weights in the model folder: the zipped bundle if the Tensorflow
+	 * model is zipped, not the saved_model.pb that is unpacked from it
+	 */
+	private static File getWeightsFile(DeepImageJ dp) {
+		if (dp.params.framework.equals("pytorch"))
+			return new File(dp.getPath(), dp.ptName);
+		File bundle = BundleStore.getBundle(dp);
+		if (bundle != null)
+			return bundle;
+		return new File(dp.getPath(), "saved_model.pb");
+	}
+	
+	/*
+	 * Approximate the memory used by a model with the size of its weights
+	 */
+	private static long estimateSizeMB(DeepImageJ dp) {
+		long bytes = dp.params.framework.equals("pytorch") ? getWeightsFile(dp).length()
+				: new File(dp.getTfModelPath(), "saved_model.pb").length();
+		if (!dp.params.framework.equals("pytorch"))
+			bytes += FileTools.getFolderSize(dp.getTfModelPath() + File.separator + "variables");
+		return Math.max(1, bytes / (1024 * 1024));
+	}
+	
+	private static long readDefaultBudget() {
+		try {
+			return Math.max(0, Long.parseLong(System.getProperty("deepimagej.model.cache.mb", "2048").trim()));
+		} catch (NumberFormatException ex) {
+			return 2048;
+		}
+	}
+}
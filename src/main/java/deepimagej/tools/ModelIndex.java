@@ -0,0 +1,196 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ * 
+ * Reference: DeepImageJ: A user-friendly environment to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, W. Ouyang, L. Donati, M. Unser, E. Lundberg, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2021.
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ * Science for Life Laboratory, School of Engineering Sciences in Chemistry, Biotechnology and Health, KTH - Royal Institute of Technology, Sweden
+ * 
+ * Authors: Carlos Garcia-Lopez-de-Haro and Estibaliz Gomez-de-Mariscal
+ *
+ */
+
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2019-2021, DeepImageJ
+ * All rights reserved.
+ *	
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *	  this list of conditions and the following disclaimer in the documentation
+ *	  and/or other materials provided with the distribution.
+ *	
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package deepimagej.tools;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import ij.IJ;
+
+/**
+ * Index of the models installed, saved in the file 'model-index.properties' of
+ * FileTools.getCacheDir(). For every weight file whose sha256 has been computed
+ * (to check it against its model.yaml or to write it in one) it keeps the size,
+ * the date of the last modification, the inode and the checksum, so the files
+ * that did not change are never read again.
+ */
+public class ModelIndex {
+	
+	private static final String	INDEX_FILE = "model-index.properties";
+	// Entries "size|last modified|inode|sha256" of each file. Null until the file is read
+	private static Properties	index = null;
+	private static boolean		changed = false;
+	// Threads that compute the checksums of the files that are not in the index
+	private static ThreadPoolExecutor	hashers = null;
+	
+	/**
+	 * SHA-256 of a file, taken from the index if the file did not change
+	 * since it was computed
+	 * @param fileName: path to the file
+	 * @return the checksum in hexadecimal
+	 * @throws IOException if the file cannot be read
+	 */
+	public static String sha256(String fileName) throws IOException {
+		String sha256 = indexedSha256(fileName);
+		if (sha256 != null)
+			return sha256;
+		File file = new File(fileName);
+		String stamp = stamp(file);
+		// Several files can be read at the same time
+		sha256 = FileTools.createSHA256(fileName);
+		synchronized (ModelIndex.class) {
+			index.setProperty(file.getAbsolutePath(), stamp + sha256);
+			changed = true;
+		}
+		return sha256;
+	}
+	
+	/**
+	 * SHA-256 of a file if it is in the index and the file did not change
+	 * @param fileName: path to the file
+	 * @return the checksum in hexadecimal or null if it has to be computed
+	 */
+	public static String indexedSha256(String fileName) {
+		File file = new File(fileName);
+		String stamp = stamp(file);
+		synchronized (ModelIndex.class) {
+			load();
+			String entry = index.getProperty(file.getAbsolutePath());
+			if (entry != null && entry.startsWith(stamp))
+				return entry.substring(stamp.length());
+		}
+		return null;
+	}
+	
+	/**
+	 * Compute the SHA-256 of a file in a background thread. The index is saved
+	 * once the checksum is known
+	 * @param fileName: path to the file
+	 * @return the checksum in hexadecimal when it is computed
+	 */
+	public static synchronized Future<String> sha256InBackground(final String fileName) {
+		if (hashers == null) {
+			// Reading the files is the slowest part, more threads would only compete for the disk
+			hashers = new ThreadPoolExecutor(2, 2, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+			hashers.allowCoreThreadTimeOut(true);
+		}
+		return hashers.submit(new Callable<String>() {
+			@Override
+			public String call() throws IOException {
+				String sha256 = sha256(fileName);
+				save();
+				return sha256;
+			}
+		});
+	}
+	
+	/*
+	 * Size, last modification and inode of a file. The inode is empty on the
+	 * file systems that do not have one
+	 */
+	private static String stamp(File file) {
+		Object inode = null;
+		try {
+			inode = Files.readAttributes(file.toPath(), BasicFileAttributes.class).fileKey();
+		} catch (IOException ex) {
+		}
+		return file.length() + "|" + file.lastModified() + "|" + (inode == null ? "" : inode) + "|";
+	}
+	
+	private static synchronized void load() {
+		if (index != null)
+			return;
+		index = new Properties();
+		File file = new File(FileTools.getCacheDir(), INDEX_FILE);
+		if (!file.isFile())
+			return;
+		try (InputStream is = new FileInputStream(file)) {
+			index.load(is);
+		} catch (IOException ex) {
+			IJ.log("Unable to read the model index: " + ex.toString());
+		}
+	}
+	
+	/*
+	 * Save the checksums computed since the last call. The entries of files that
+	 * no longer exist are removed. Write to a temporary file first so a crash
+	 * never leaves a half written file
+	 */
+	public static synchronized void save() {
+		if (!changed)
+			return;
+		for (String key : index.stringPropertyNames()) {
+			if (!new File(key).isFile())
+				index.remove(key);
+		}
+		File file = new File(FileTools.getCacheDir(), INDEX_FILE);
+		File tmp = new File(file.getAbsolutePath() + ".tmp");
+		try (OutputStream os = new FileOutputStream(tmp)) {
+			index.store(os, "DeepImageJ checksums of the model weights");
+		} catch (IOException ex) {
+			IJ.log("Unable to save the model index: " + ex.toString());
+			return;
+		}
+		try {
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			changed = false;
+		} catch (IOException ex) {
+			IJ.log("Unable to save the model index: " + ex.toString());
+		}
+	}
+}
@@ -52,7 +52,6 @@ import java.util.zip.ZipException;
 
 import deepimagej.DeepImageJ;
 import deepimagej.RunnerProgress;
-import deepimagej.stamp.LoadPytorchStamp;
 import ij.IJ;
 
 public class ModelLoader implements Callable<Boolean>{
@@ -74,21 +73,35 @@ public class ModelLoader implements Callable<Boolean>{
 
 	@Override
 	public Boolean call()  {
-		if (dp.params.framework.contains("tensorflow") && !(new File(dp.getPath() + File.separator + "variables").exists())) {
+		// If the model is still open from a previous execution, reuse it
+		if (ModelCache.acquire(dp)) {
 			if (rp != null) {
+				rp.setUnzipping(false);
+				if (!rp.isVisible())
+					rp.setVisible(this.show);
+				String device = ModelCache.getDevice(dp);
+				if (device != null)
+					rp.setGPU(device);
+			}
+			setPytorchVersion();
+			return true;
+		}
+		// Zipped Tensorflow models are unpacked once in the BundleStore and loaded from there
+		File bundle = BundleStore.getBundle(dp);
+		if (dp.params.framework.contains("tensorflow") && bundle != null) {
+			if (rp != null && BundleStore.needsUnpacking(dp)) {
 				rp.setUnzipping(true);
 				rp.setVisible(this.show);
 			}
-			String fileName = dp.getPath() + File.separator + dp.tfName;
-			boolean unzipped = true;
+			String fileName = bundle.getAbsolutePath();
 			try {
-				unzipped = FileTools.unzipFolder(new File(fileName), dp.getPath());
+				dp.setTfBundlePath(BundleStore.unpack(bundle).getAbsolutePath());
+			} catch (ZipException e) {
 				// If the file was not unzipped correctly, stop and warn the user
-				if (!unzipped) {
-					IJ.error("Error unzipping the model\n"
-							+ "It seems that the zipped file is corrupted");
-					return false;
-				}
+				e.printStackTrace();
+				IJ.error("Error unzipping the model\n"
+						+ "It seems that the zipped file is corrupted");
+				return false;
 			} catch (IOException e) {
 				e.printStackTrace();
 				IJ.error("Error unzipping: " + fileName);
@@ -105,9 +118,12 @@ public class ModelLoader implements Callable<Boolean>{
 				rp.setVisible(this.show);
 		}
 		
-		// Parameter to know if we are using GPU or not 
+		// Parameter to know if we are using GPU or not. nvidia-smi is only run if the
+		// device was not found when the previous Tensorflow model was loaded
 		ArrayList<String> initialSmi = null;
-		if (gpu)
+		String tfDevice = EnvironmentProbe.getTfDevice();
+		boolean findDevice = rp != null && gpu && tfDevice == null && dp.params.framework.equals("tensorflow");
+		if (findDevice)
 			initialSmi = SystemUsage.runNvidiaSmi();
 		// The thread cannot be stopped while loading a model, thus block the button
 		// while executing the task
@@ -130,6 +146,8 @@ public class ModelLoader implements Callable<Boolean>{
 					+ "\nIf the problem persits, please check the DeepImageJ Wiki.");
 			return false;
 		}
+		// Keep the model open for the next executions
+		ModelCache.add(dp);
 		if (rp != null) {
 			rp.allowStopping(true);
 			// Check if the user has tried to stop the execution while loading the model
@@ -139,40 +157,55 @@ public class ModelLoader implements Callable<Boolean>{
 		}
 		
 		
-		if (rp != null && gpu && dp.params.framework.equals("tensorflow")) {
+		String device = null;
+		if (gpu && tfDevice != null && dp.params.framework.equals("tensorflow")) {
+			device = tfDevice;
+		} else if (findDevice) {
 			ArrayList<String> finalSmi = SystemUsage.runNvidiaSmi();
 			String GPUInfo = SystemUsage.isUsingGPU(initialSmi, finalSmi);
 			if (GPUInfo.equals("noImageJProcess") && cuda) {
-				rp.setGPU("???");
+				device = "???";
 			} else if (GPUInfo.equals("noImageJProcess")) {
-				rp.setGPU("CPU");
+				device = "CPU";
 			} else if(GPUInfo.equals("¡RepeatedImageJGPU!")) {
 				int nImageJInstances = SystemUsage.numberOfImageJInstances();
 				// Get number of IJ instances using GPU
 				int nGPUIJInstances = GPUInfo.split("¡RepeatedImageJGPU!").length;
 				if (nImageJInstances > nGPUIJInstances) {
-					rp.setGPU("???");
+					device = "???";
 				} else if (nImageJInstances <= nGPUIJInstances) {
-					rp.setGPU("gpu");
+					device = "gpu";
 				}
 			} else {
-				rp.setGPU("gpu");
+				device = "gpu";
 			}
+			EnvironmentProbe.setTfDevice(device);
 		}
 		
-		if (dp.params.framework.toLowerCase().equals("pytorch")) {
-			String ptNativeFileName = LoadPytorchStamp.getNativeLbraryFile();
-			String lib = new File(ptNativeFileName).getName();
-			// Get the Pytorch version being used reading the fist part of the lib folder
-			dp.params.pytorchVersion = lib.substring(0, 5);
-			if (rp != null && lib.toLowerCase().contains("cpu")) {
-				rp.setGPU("cpu");
-			} else if (rp != null){
-				rp.setGPU("gpu");
-			}
-		}
+		String ptDevice = setPytorchVersion();
+		if (ptDevice != null)
+			device = ptDevice;
+		if (rp != null && device != null)
+			rp.setGPU(device);
+		ModelCache.setDevice(dp, device);
 		
 		return true;
 	}
+	
+	/*
+	 * For Pytorch models, find the Pytorch version being used from the native library
+	 * and return the device it uses. Returns null for Tensorflow models
+	 */
+	private String setPytorchVersion() {
+		if (!dp.params.framework.toLowerCase().equals("pytorch"))
+			return null;
+		String ptNativeFileName = EnvironmentProbe.getPytorchNativeLibrary();
+		String lib = new File(ptNativeFileName).getName();
+		// Get the Pytorch version being used reading the fist part of the lib folder
+		dp.params.pytorchVersion = lib.substring(0, 5);
+		if (lib.toLowerCase().contains("cpu"))
+			return "cpu";
+		return "gpu";
+	}
 
 }
@@ -0,0 +1,166 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ * 
+ * Reference: DeepImageJ: A user-friendly environment to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, W. Ouyang, L. Donati, M. Unser, E. Lundberg, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2021.
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ * Science for Life Laboratory, School of Engineering Sciences in Chemistry, Biotechnology and Health, KTH - Royal Institute of Technology, Sweden
+ * 
+ * Authors: Carlos Garcia-Lopez-de-Haro and Estibaliz Gomez-de-Mariscal
+ *
+ */
+
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2019-2021, DeepImageJ
+ * All rights reserved.
+ *	
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *	  this list of conditions and the following disclaimer in the documentation
+ *	  and/or other materials provided with the distribution.
+ *	
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package deepimagej.tools;
+
+import java.io.File;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import deepimagej.DeepImageJ;
+import deepimagej.TileTuner;
+
+/*
+ * Model loaded in the background when it is selected in the DeepImageJ Run dialog,
+ * so the execution starts as soon as the user presses OK. Once loaded, the model is
+ * run on a synthetic tile to initialize the graph, and it is left in the ModelCache
+ * where the execution finds it. Only the last model selected is loaded.
+ */
+public class ModelPreloader {
+	
+	private static ExecutorService	service = null;
+	private static Future<Boolean>	current = null;
+	// Folder and framework of the model being loaded
+	private static String			currentKey = null;
+	
+	/**
+	 * Start loading a model, the model that was being loaded is cancelled
+	 * @param modelsPath: folder with the models
+	 * @param dirname: folder of the model
+	 * @param framework: "tensorflow" or "pytorch"
+	 * @param tile: tile used for the warm-up in the axes order of the input, null for none
+	 * @param gpu: whether the Tensorflow version can use the GPU
+	 * @param cuda: whether the CUDA installed is compatible with Tensorflow
+	 */
+	public static synchronized void preload(final String modelsPath, final String dirname, final String framework,
+											final int[] tile, final boolean gpu, final boolean cuda) {
+		String key = dirname + "|" + framework;
+		if (key.equals(currentKey))
+			return;
+		cancel();
+		// Nothing can be kept open for the execution
+		if (ModelCache.getBudget() == 0)
+			return;
+		if (service == null) {
+			service = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "DeepImageJ model preloading");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		currentKey = key;
+		current = service.submit(new Callable<Boolean>() {
+			@Override
+			public Boolean call() {
+				return load(modelsPath, dirname, framework, tile, gpu, cuda);
+			}
+		});
+	}
+	
+	private static boolean load(String modelsPath, String dirname, String framework, int[] tile, boolean gpu, boolean cuda) {
+		// A copy of the model, the one of the dialog is modified when the user presses OK
+		DeepImageJ dp = new DeepImageJ(modelsPath + File.separator, dirname, false);
+		if (!dp.getValid() || dp.params == null || !dp.params.completeConfig)
+			return false;
+		dp.waitVerification();
+		if (dp.params.incorrectSha256 || Thread.currentThread().isInterrupted())
+			return false;
+		dp.params.framework = framework;
+		dp.params.attachments = framework.equals("pytorch") ? dp.params.ptAttachments : dp.params.tfAttachments;
+		if (!new ModelLoader(dp, null, gpu, cuda, false, SystemUsage.checkFiji()).call())
+			return false;
+		try {
+			boolean validTile = tile != null;
+			for (int i = 0; validTile && i < tile.length; i ++)
+				validTile = tile[i] > 0;
+			// The user might have selected another model meanwhile
+			if (validTile && !Thread.currentThread().isInterrupted())
+				TileTuner.warmUp(dp, tile);
+		} finally {
+			ModelCache.release(dp);
+		}
+		return true;
+	}
+	
+	/*
+	 * Stop loading the model selected before. A model that is already being
+	 * created by the framework is still added to the ModelCache
+	 */
+	public static synchronized void cancel() {
+		if (current != null)
+			current.cancel(true);
+		current = null;
+		currentKey = null;
+	}
+	
+	/*
+	 * Wait until the model is loaded if it is the one being loaded in the
+	 * background, otherwise the background loading is cancelled
+	 */
+	public static void await(String dirname, String framework) {
+		Future<Boolean> future;
+		synchronized (ModelPreloader.class) {
+			if (!(dirname + "|" + framework).equals(currentKey)) {
+				cancel();
+				return;
+			}
+			future = current;
+		}
+		try {
+			future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException | CancellationException e) {
+			e.printStackTrace();
+		}
+	}
+}
@@ -112,6 +112,25 @@ public class SystemUsage {
 		return new double[] { i, u, m };
 	}
 
+	/*
+	 * Bytes that can still be allocated in the Java heap
+	 */
+	public static long getAvailableHeap() {
+		Runtime rt = Runtime.getRuntime();
+		return rt.maxMemory() - (rt.totalMemory() - rt.freeMemory());
+	}
+	
+	/*
+	 * Free physical memory of the machine in bytes, used by the native memory of
+	 * Tensorflow and Pytorch. Returns -1 if the JVM does not provide it
+	 */
+	public static long getFreePhysicalMemory() {
+		OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		if (os instanceof com.sun.management.OperatingSystemMXBean)
+			return ((com.sun.management.OperatingSystemMXBean) os).getFreePhysicalMemorySize();
+		return -1;
+	}
+
 	public static String getNonHeap() {
 		MemoryMXBean mem = ManagementFactory.getMemoryMXBean();
 		double c = 1.0 / (1024.0 * 1024.0);
@@ -631,4 +650,33 @@ public class SystemUsage {
 			return fiji;
 		}
 	}
+	
+	/*
+	 * Integer value of a Java system property, or 'defaultValue' if it is
+	 * not defined or is not a valid number
+	 */
+	public static int getIntProperty(String name, int defaultValue) {
+		String value = System.getProperty(name);
+		if (value == null)
+			return defaultValue;
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException ex) {
+			return defaultValue;
+		}
+	}
+	
+	/*
+	 * Pass the number of threads set with 'deepimagej.intra_op_threads' and
+	 * 'deepimagej.inter_op_threads' to DJL Pytorch, unless the DJL properties were
+	 * already defined. It has to be called before the Pytorch engine is started
+	 */
+	public static void setPytorchThreads() {
+		int intra = getIntProperty("deepimagej.intra_op_threads", 0);
+		int inter = getIntProperty("deepimagej.inter_op_threads", 0);
+		if (intra > 0 && System.getProperty("ai.djl.pytorch.num_threads") == null)
+			System.setProperty("ai.djl.pytorch.num_threads", "" + intra);
+		if (inter > 0 && System.getProperty("ai.djl.pytorch.num_interop_threads") == null)
+			System.setProperty("ai.djl.pytorch.num_interop_threads", "" + inter);
+	}
 }
@@ -0,0 +1,227 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ * 
+ * Reference: DeepImageJ: A user-friendly environment to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, W. Ouyang, L. Donati, M. Unser, E. Lundberg, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2021.
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ * Science for Life Laboratory, School of Engineering Sciences in Chemistry, Biotechnology and Health, KTH - Royal Institute of Technology, Sweden
+ * 
+ * Authors: Carlos Garcia-Lopez-de-Haro and Estibaliz Gomez-de-Mariscal
+ *
+ */
+
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2019-2021, DeepImageJ
+ * All rights reserved.
+ *	
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *	  this list of conditions and the following disclaimer in the documentation
+ *	  and/or other materials provided with the distribution.
+ *	
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package deepimagej.tools;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Geometry of one of the tiles in which an image is divided to be processed
+ * by a model. The mirror positions refer to the image extended with mirroring
+ * and the image positions to the original image. The leftover is the number of
+ * pixels at the start of the tile that are not copied to the output image
+ */
+public class Tile {
+	// Position of the tile in the grid (x, y, z)
+	public int[]	gridPosition;
+	// Position where the roi of the tile starts in the mirrored image
+	public int		xMirrorStart;
+	public int		yMirrorStart;
+	public int		zMirrorStart;
+	// Part of the original image covered by the roi of the tile
+	public int		xImageStart;
+	public int		xImageEnd;
+	public int		yImageStart;
+	public int		yImageEnd;
+	public int		zImageStart;
+	public int		zImageEnd;
+	// Pixels at the start of the tile that are not part of the roi
+	public int		leftoverX;
+	public int		leftoverY;
+	public int		leftoverZ;
+	// Size of the tile (x, y, c, z). Null if every tile has the size selected by the user
+	public int[]	patchSize;
+	// Tile given to the model although it could be skipped, its outputs are
+	// used for the skipped tiles of the same size
+	public boolean	background = false;
+	// Identifier of the tile in the TileCache, null if the cache is not used
+	public String	cacheKey = null;
+	// Frame of the image covered by the tile (0-based)
+	public int		frame = 0;
+	
+	/**
+	 * Create the regular grid of tiles that covers the whole image. The last
+	 * tile of every axis is moved back so it does not go out of the image.
+	 * All the arrays follow the order [x, y, c, z]
+	 * @param size: size of the image
+	 * @param roi: size of the useful part of each tile
+	 * @param padding: padding added at each side of the image
+	 * @param overlap: pixels at each side of the tile that are discarded
+	 * @param nTiles: number of tiles per axis
+	 * @return list of tiles in the order they have to be processed
+	 */
+	public static List<Tile> createGrid(int[] size, int[] roi, int[] padding, int[] overlap, int[] nTiles) {
+		List<Tile> tiles = new ArrayList<Tile>();
+		for (int i = 0; i < nTiles[0]; i++) {
+			for (int j = 0; j < nTiles[1]; j++) {
+				for (int z = 0; z < nTiles[3]; z++) {
+					Tile tile = new Tile();
+					tile.gridPosition = new int[] {i, j, z};
+					if (i < nTiles[0] - 1 || nTiles[0] == 1) {
+						tile.xMirrorStart = padding[0] + roi[0] * i;
+						tile.xImageStart = roi[0] * i;
+						tile.xImageEnd = roi[0] * (i + 1);
+						tile.leftoverX = overlap[0];
+					} else {
+						tile.xMirrorStart = size[0] + padding[0] - roi[0];
+						tile.xImageStart = roi[0] * i;
+						tile.xImageEnd = size[0];
+						tile.leftoverX = overlap[0] + roi[0] - (tile.xImageEnd - tile.xImageStart);
+					}
+					
+					if (j < nTiles[1] - 1 || nTiles[1] == 1) {
+						tile.yMirrorStart = padding[1] + roi[1] * j;
+						tile.yImageStart = roi[1] * j;
+						tile.yImageEnd = roi[1] * (j + 1);
+						tile.leftoverY = overlap[1];
+					} else {
+						tile.yMirrorStart = size[1] + padding[1] - roi[1];
+						tile.yImageStart = roi[1] * j;
+						tile.yImageEnd = size[1];
+						tile.leftoverY = overlap[1] + roi[1] - (tile.yImageEnd - tile.yImageStart);
+					}
+					
+					if (z < nTiles[3] - 1 || nTiles[3] == 1) {
+						tile.zMirrorStart = padding[3] + roi[3] * z;
+						tile.zImageStart = roi[3] * z;
+						tile.zImageEnd = roi[3] * (z + 1);
+						tile.leftoverZ = overlap[3];
+					} else {
+						tile.zMirrorStart = size[3] + padding[3] - roi[3];
+						tile.zImageStart = roi[3] * z;
+						tile.zImageEnd = size[3];
+						tile.leftoverZ = overlap[3] + roi[3] - (tile.zImageEnd - tile.zImageStart);
+					}
+					tiles.add(tile);
+				}
+			}
+		}
+		return tiles;
+	}
+	
+	/**
+	 * Group consecutive tiles so they can be processed by the model at the
+	 * same time. Only tiles of the same size are grouped together, so some
+	 * groups might contain less tiles
+	 * @param tiles: list of tiles
+	 * @param batchSize: maximum number of tiles per group
+	 * @return list of groups of tiles, each group is a list of its own that can be
+	 * 	modified without changing 'tiles'
+	 */
+	public static List<List<Tile>> groupInBatches(List<Tile> tiles, int batchSize) {
+		List<List<Tile>> batches = new ArrayList<List<Tile>>();
+		int first = 0;
+		while (first < tiles.size()) {
+			int last = first + 1;
+			while (last < tiles.size() && last - first < batchSize
+					&& Arrays.equals(tiles.get(last).patchSize, tiles.get(first).patchSize))
+				last ++;
+			batches.add(new ArrayList<Tile>(tiles.subList(first, last)));
+			first = last;
+		}
+		return batches;
+	}
+	
+	/**
+	 * Order the tiles so all the tiles that cover the same slices of the image
+	 * are processed one after the other. The order inside each group of slices
+	 * is kept. When the image is read from disk, the planes of the slices
+	 * are then only needed for a while and do not have to be read again
+	 * @param tiles: list of tiles, sorted in place
+	 */
+	public static void sortBySlices(List<Tile> tiles) {
+		Collections.sort(tiles, new Comparator<Tile>() {
+			@Override
+			public int compare(Tile a, Tile b) {
+				if (a.frame != b.frame)
+					return Integer.compare(a.frame, b.frame);
+				return Integer.compare(a.zImageStart, b.zImageStart);
+			}
+		});
+	}
+	
+	/**
+	 * Repeat the tiles for every frame of a time-lapse. The tiles of each frame
+	 * go one after the other, so the batches and workers process consecutive
+	 * frames at the same time and every frame is read only for a while
+	 * @param tiles: tiles of one frame
+	 * @param nt: number of frames of the image
+	 * @return list with the tiles of all the frames
+	 */
+	public static List<Tile> forEachFrame(List<Tile> tiles, int nt) {
+		List<Tile> all = new ArrayList<Tile>(tiles.size() * nt);
+		for (int t = 0; t < nt; t ++) {
+			for (Tile tile : tiles)
+				all.add(tile.copy(t));
+		}
+		return all;
+	}
+	
+	/*
+	 * Copy of the tile that covers the frame 't'
+	 */
+	public Tile copy(int t) {
+		Tile tile = new Tile();
+		tile.gridPosition = gridPosition == null ? null : gridPosition.clone();
+		tile.xMirrorStart = xMirrorStart;
+		tile.yMirrorStart = yMirrorStart;
+		tile.zMirrorStart = zMirrorStart;
+		tile.xImageStart = xImageStart;
+		tile.xImageEnd = xImageEnd;
+		tile.yImageStart = yImageStart;
+		tile.yImageEnd = yImageEnd;
+		tile.zImageStart = zImageStart;
+		tile.zImageEnd = zImageEnd;
+		tile.leftoverX = leftoverX;
+		tile.leftoverY = leftoverY;
+		tile.leftoverZ = leftoverZ;
+		tile.patchSize = patchSize;
+		tile.frame = t;
+		return tile;
+	}
+}
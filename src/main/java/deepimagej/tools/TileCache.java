@@ -0,0 +1,299 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ * 
+ * Reference: DeepImageJ: A user-friendly environment to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, W. Ouyang, L. Donati, M. Unser, E. Lundberg, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2021.
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ * Science for Life Laboratory, School of Engineering Sciences in Chemistry, Biotechnology and Health, KTH - Royal Institute of Technology, Sweden
+ * 
+ * Authors: Carlos Garcia-Lopez-de-Haro and Estibaliz Gomez-de-Mariscal
+ *
+ */
+
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2019-2021, DeepImageJ
+ * All rights reserved.
+ *	
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *	  this list of conditions and the following disclaimer in the documentation
+ *	  and/or other materials provided with the distribution.
+ *	
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package deepimagej.tools;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+
+/**
+ * Outputs of the model for the tiles already processed, kept on disk in the
+ * 'tile-cache' folder of FileTools.getCacheDir(). The entries are identified by
+ * the checksum of the model, the size of the tile and the SHA-256 of its pixels,
+ * so tiles that did not change between runs are not given to the model again.
+ * When the cache uses more than 'deepimagej.tile_cache.mb' megabytes (1024 by
+ * default) the least recently used entries are deleted.
+ */
+public class TileCache {
+	
+	private static long							maxBytes = SystemUsage.getIntProperty("deepimagej.tile_cache.mb", 1024) * 1024L * 1024L;
+	// Size of each entry, the least recently used first. Null until the folder is read
+	private static LinkedHashMap<String, Long>	entries = null;
+	private static long							totalBytes = 0;
+	// Entries that will be read by the current run and cannot be deleted
+	private static HashSet<String>				pinned = new HashSet<String>();
+	
+	private static File getDir() {
+		File dir = new File(FileTools.getCacheDir(), "tile-cache");
+		if (!dir.isDirectory())
+			dir.mkdirs();
+		return dir;
+	}
+	
+	/*
+	 * Read the entries of the folder, ordered by the last time they were used
+	 */
+	private static void load() {
+		if (entries != null)
+			return;
+		entries = new LinkedHashMap<String, Long>(16, 0.75f, true);
+		File[] files = getDir().listFiles();
+		if (files == null)
+			return;
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				return Long.compare(a.lastModified(), b.lastModified());
+			}
+		});
+		for (File file : files) {
+			// Files left by writes that were interrupted
+			if (file.getName().endsWith(".tmp")) {
+				file.delete();
+				continue;
+			}
+			entries.put(file.getName(), file.length());
+			totalBytes += file.length();
+		}
+	}
+	
+	/**
+	 * Identifier of the outputs of a tile
+	 * @param model: checksum of the model and anything else that changes its outputs
+	 * @param tileSize: size of the tile
+	 * @param patch: the tile as it is given to the model
+	 * @return the identifier, null if it cannot be computed
+	 */
+	public static String key(String model, int[] tileSize, ImagePlus patch) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update((model + "|" + Arrays.toString(tileSize)).getBytes("UTF-8"));
+			ImageStack stack = patch.getStack();
+			ByteBuffer bytes = ByteBuffer.allocate(patch.getWidth() * patch.getHeight() * 4).order(ByteOrder.LITTLE_ENDIAN);
+			for (int i = 1; i <= stack.getSize(); i ++) {
+				bytes.clear();
+				bytes.asFloatBuffer().put((float[]) stack.getPixels(i));
+				digest.update(bytes.array());
+			}
+			return FileTools.bytesToHex(digest.digest());
+		} catch (NoSuchAlgorithmException | IOException ex) {
+			ex.printStackTrace();
+			return null;
+		}
+	}
+	
+	/**
+	 * Look for the outputs of a tile in the cache. The tile gets its identifier, so
+	 * its outputs can be read with {@link #get(String)} if they are in the cache or
+	 * saved after running the model. An entry found cannot be deleted until it is
+	 * read or {@link #unpin(List)} is called
+	 * @param tile: the tile, not a background tile (see TileSkip)
+	 * @param model: checksum of the model
+	 * @param tileSize: size of the tile
+	 * @param patch: the tile as it is given to the model
+	 * @return true if the outputs of the tile are in the cache
+	 */
+	public static boolean find(Tile tile, String model, int[] tileSize, ImagePlus patch) {
+		tile.cacheKey = key(model, tileSize, patch);
+		return tile.cacheKey != null && pin(tile.cacheKey);
+	}
+	
+	/*
+	 * Protect an entry from being deleted until it is read. False if it is not in the cache
+	 */
+	private static synchronized boolean pin(String key) {
+		load();
+		if (entries.get(key) == null)
+			return false;
+		pinned.add(key);
+		return true;
+	}
+	
+	/*
+	 * Allow the entries of the tiles to be deleted again, for the tiles found in
+	 * the cache that were not read because the run stopped
+	 */
+	public static synchronized void unpin(List<Tile> tiles) {
+		for (Tile tile : tiles) {
+			if (tile.cacheKey != null)
+				pinned.remove(tile.cacheKey);
+		}
+	}
+	
+	/**
+	 * Read the outputs of a tile, the pixel arrays come from the BufferPool
+	 * @param key: identifier of the tile
+	 * @return the outputs or null if they are not in the cache
+	 */
+	public static ImagePlus[] get(String key) {
+		File file = new File(getDir(), key);
+		ImagePlus[] outputs = null;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new InflaterInputStream(new FileInputStream(file))))) {
+			outputs = new ImagePlus[in.readInt()];
+			for (int i = 0; i < outputs.length; i ++) {
+				int[] dims = new int[5];
+				for (int d = 0; d < dims.length; d ++)
+					dims[d] = in.readInt();
+				outputs[i] = BufferPool.createImage("tile", dims[0], dims[1], dims[2], dims[3], dims[4]);
+				byte[] bytes = new byte[dims[0] * dims[1] * 4];
+				for (int n = 1; n <= outputs[i].getStackSize(); n ++) {
+					in.readFully(bytes);
+					ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer().get((float[]) outputs[i].getStack().getPixels(n));
+				}
+			}
+			file.setLastModified(System.currentTimeMillis());
+		} catch (IOException ex) {
+			ex.printStackTrace();
+			if (outputs != null) {
+				for (ImagePlus im : outputs)
+					BufferPool.releaseImage(im);
+			}
+			outputs = null;
+			remove(key);
+		}
+		synchronized (TileCache.class) {
+			pinned.remove(key);
+			// Mark the entry as the most recently used
+			if (outputs != null && entries != null)
+				entries.get(key);
+		}
+		return outputs;
+	}
+	
+	/**
+	 * Save the outputs of a tile
+	 * @param key: identifier of the tile
+	 * @param outputs: images produced by the model for the tile
+	 */
+	public static void put(String key, ImagePlus[] outputs) {
+		File dir = getDir();
+		File tmp = new File(dir, key + "." + Thread.currentThread().getId() + ".tmp");
+		try {
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+					new DeflaterOutputStream(new FileOutputStream(tmp), new Deflater(1))))) {
+				out.writeInt(outputs.length);
+				for (ImagePlus im : outputs) {
+					int[] dims = im.getDimensions();
+					for (int d : dims)
+						out.writeInt(d);
+					ByteBuffer bytes = ByteBuffer.allocate(dims[0] * dims[1] * 4).order(ByteOrder.LITTLE_ENDIAN);
+					for (int n = 1; n <= im.getStackSize(); n ++) {
+						bytes.clear();
+						bytes.asFloatBuffer().put((float[]) im.getStack().getProcessor(n).convertToFloat().getPixels());
+						out.write(bytes.array());
+					}
+				}
+			}
+			Files.move(tmp.toPath(), new File(dir, key).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException ex) {
+			ex.printStackTrace();
+			tmp.delete();
+			return;
+		}
+		synchronized (TileCache.class) {
+			load();
+			Long old = entries.put(key, new File(dir, key).length());
+			totalBytes += entries.get(key) - (old == null ? 0 : old);
+			evict();
+		}
+	}
+	
+	/*
+	 * Delete the least recently used entries until the cache fits in its maximum size
+	 */
+	private static void evict() {
+		Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+		while (totalBytes > maxBytes && it.hasNext()) {
+			Map.Entry<String, Long> entry = it.next();
+			if (pinned.contains(entry.getKey()))
+				continue;
+			new File(getDir(), entry.getKey()).delete();
+			totalBytes -= entry.getValue();
+			it.remove();
+		}
+	}
+	
+	private static synchronized void remove(String key) {
+		new File(getDir(), key).delete();
+		if (entries != null && entries.containsKey(key))
+			totalBytes -= entries.remove(key);
+	}
+	
+	/*
+	 * Delete every entry of the cache
+	 */
+	public static synchronized void clear() {
+		load();
+		for (String key : new ArrayList<String>(entries.keySet())) {
+			if (!pinned.contains(key))
+				remove(key);
+		}
+	}
+}
@@ -0,0 +1,347 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ * 
+ * Reference: DeepImageJ: A user-friendly environment to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, W. Ouyang, L. Donati, M. Unser, E. Lundberg, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2021.
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ * Science for Life Laboratory, School of Engineering Sciences in Chemistry, Biotechnology and Health, KTH - Royal Institute of Technology, Sweden
+ * 
+ * Authors: Carlos Garcia-Lopez-de-Haro and Estibaliz Gomez-de-Mariscal
+ *
+ */
+
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2019-2021, DeepImageJ
+ * All rights reserved.
+ *	
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *	  this list of conditions and the following disclaimer in the documentation
+ *	  and/or other materials provided with the distribution.
+ *	
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package deepimagej.tools;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import deepimagej.RunnerProgress;
+
+/**
+ * Pipeline that processes the batches of tiles of an image in three stages that
+ * run at the same time: while the model runs on one batch, the next batch is
+ * extracted and converted into tensors and the previous one is stitched into
+ * the output images. The stages communicate through bounded queues so only a
+ * few batches are in memory at the same time.
+ * 
+ * The inference runs in the thread that calls {@link #run(List)}, the other
+ * two stages run in their own threads. Several batches can be given to the
+ * model at the same time using more inference workers, in that case the
+ * batches may be stitched in a different order than they were extracted.
+ *
+ * @param <I> type of the inputs of the model (for example the input tensors)
+ * @param <O> type of the outputs of the model
+ */
+public class TilePipeline<I, O> {
+	
+	/**
+	 * Work done at each of the stages of the pipeline. Returning null
+	 * (or false) from any stage stops the pipeline without throwing an
+	 * exception, for example when the error has already been shown to the user
+	 */
+	public interface Stages<I, O> {
+		/*
+		 * Extract the tiles from the image and create the inputs of the model. The
+		 * tiles that do not need the model can be removed from the batch, if none
+		 * is left the stage returns null and the batch is not processed further
+		 */
+		I prepare(List<Tile> batch) throws Exception;
+		/*
+		 * Run the model on the inputs
+		 */
+		O infer(List<Tile> batch, I inputs) throws Exception;
+		/*
+		 * Write the outputs of the model into the final outputs
+		 */
+		boolean stitch(List<Tile> batch, O outputs) throws Exception;
+		/*
+		 * Free the resources of the inputs or outputs that could not be processed
+		 * because the pipeline was stopped. One of the arguments is always null
+		 */
+		void discard(I inputs, O outputs);
+	}
+	
+	/*
+	 * Element of the queues of the pipeline
+	 */
+	private static class Item<T> {
+		List<Tile> batch;
+		T data;
+		Item(List<Tile> batch, T data) {
+			this.batch = batch;
+			this.data = data;
+		}
+	}
+	
+	// Marks the end of the batches in the queues
+	private final Item<I> endOfInputs = new Item<I>(null, null);
+	private final Item<O> endOfOutputs = new Item<O>(null, null);
+	
+	private Stages<I, O>				stages;
+	private RunnerProgress				rp;
+	private BlockingQueue<Item<I>>		prepared;
+	private BlockingQueue<Item<O>>		inferred;
+	private int							workers;
+	// Inference workers that have not finished yet
+	private AtomicInteger				activeWorkers;
+	private volatile boolean			aborted = false;
+	private AtomicReference<Throwable>	failure = new AtomicReference<Throwable>();
+	
+	/**
+	 * Create the pipeline
+	 * @param stages: work done at each stage
+	 * @param rp: progress window used to check if the user stopped the execution, can be null
+	 * @param queueSize: maximum number of batches waiting between two stages
+	 */
+	public TilePipeline(Stages<I, O> stages, RunnerProgress rp, int queueSize) {
+		this(stages, rp, queueSize, 1);
+	}
+	
+	/**
+	 * Create the pipeline
+	 * @param stages: work done at each stage, {@link Stages#infer(List, Object)} has to
+	 * 	be thread safe if there is more than one worker
+	 * @param rp: progress window used to check if the user stopped the execution, can be null
+	 * @param queueSize: maximum number of batches waiting between two stages
+	 * @param workers: number of batches given to the model at the same time
+	 */
+	public TilePipeline(Stages<I, O> stages, RunnerProgress rp, int queueSize, int workers) {
+		this.stages = stages;
+		this.rp = rp;
+		this.workers = Math.max(1, workers);
+		this.prepared = new ArrayBlockingQueue<Item<I>>(Math.max(1, queueSize));
+		this.inferred = new ArrayBlockingQueue<Item<O>>(Math.max(1, queueSize));
+		this.activeWorkers = new AtomicInteger(this.workers);
+	}
+	
+	/**
+	 * Process all the batches of tiles
+	 * @param batches: groups of tiles that are given to the model at the same time
+	 * @return true if every batch was processed, false if the execution was stopped
+	 * 	by the user or by one of the stages
+	 * @throws Exception the first exception thrown by any of the stages. Errors
+	 * 	(for example OutOfMemoryError or the errors loading the native libraries)
+	 * 	stop the pipeline the same way and are thrown as they are
+	 */
+	public boolean run(List<List<Tile>> batches) throws Exception {
+		ExecutorService threads = Executors.newFixedThreadPool(1 + workers);
+		try {
+			threads.submit(() -> prepareAll(batches));
+			threads.submit(() -> stitchAll());
+			for (int i = 1; i < workers; i ++)
+				threads.submit(() -> inferAll());
+			inferAll();
+		} finally {
+			threads.shutdown();
+			try {
+				// Wait until the last batches are stitched
+				while (!threads.awaitTermination(100, TimeUnit.MILLISECONDS)) {
+					if (isStopped())
+						threads.shutdownNow();
+				}
+			} catch (InterruptedException ex) {
+				aborted = true;
+				threads.shutdownNow();
+				Thread.currentThread().interrupt();
+			}
+			discardPending();
+		}
+		Throwable ex = failure.get();
+		if (ex instanceof Error)
+			throw (Error) ex;
+		else if (ex != null)
+			throw (Exception) ex;
+		return !aborted;
+	}
+	
+	/*
+	 * First stage: create the inputs of each of the batches
+	 */
+	private void prepareAll(List<List<Tile>> batches) {
+		try {
+			for (List<Tile> batch : batches) {
+				if (isStopped())
+					break;
+				I inputs = stages.prepare(batch);
+				if (inputs == null && batch.isEmpty())
+					continue;
+				if (inputs == null) {
+					aborted = true;
+					break;
+				}
+				if (!put(prepared, new Item<I>(batch, inputs))) {
+					stages.discard(inputs, null);
+					break;
+				}
+			}
+		} catch (Throwable ex) {
+			fail(ex);
+		} finally {
+			put(prepared, endOfInputs);
+		}
+	}
+	
+	/*
+	 * Second stage: run the model on each of the batches. Every inference
+	 * worker takes the next batch available
+	 */
+	private void inferAll() {
+		try {
+			while (true) {
+				Item<I> item = take(prepared);
+				if (item == null)
+					break;
+				if (item == endOfInputs) {
+					// Leave the mark for the rest of inference workers
+					put(prepared, endOfInputs);
+					break;
+				}
+				if (isStopped()) {
+					stages.discard(item.data, null);
+					break;
+				}
+				O outputs = stages.infer(item.batch, item.data);
+				if (outputs == null) {
+					aborted = true;
+					break;
+				}
+				if (!put(inferred, new Item<O>(item.batch, outputs))) {
+					stages.discard(null, outputs);
+					break;
+				}
+			}
+		} catch (Throwable ex) {
+			fail(ex);
+		} finally {
+			// The last worker tells the stitching stage that there are no more outputs
+			if (activeWorkers.decrementAndGet() == 0)
+				put(inferred, endOfOutputs);
+		}
+	}
+	
+	/*
+	 * Third stage: stitch the outputs of each batch into the final outputs
+	 */
+	private void stitchAll() {
+		try {
+			while (true) {
+				Item<O> item = take(inferred);
+				if (item == null || item == endOfOutputs)
+					break;
+				if (isStopped()) {
+					stages.discard(null, item.data);
+					break;
+				}
+				if (!stages.stitch(item.batch, item.data)) {
+					aborted = true;
+					break;
+				}
+			}
+		} catch (Throwable ex) {
+			fail(ex);
+		}
+	}
+	
+	/*
+	 * Free the resources of the batches that were left in the queues
+	 * when the pipeline was stopped
+	 */
+	private void discardPending() {
+		Item<I> in;
+		while ((in = prepared.poll()) != null) {
+			if (in != endOfInputs)
+				stages.discard(in.data, null);
+		}
+		Item<O> out;
+		while ((out = inferred.poll()) != null) {
+			if (out != endOfOutputs)
+				stages.discard(null, out.data);
+		}
+	}
+	
+	private boolean isStopped() {
+		if (rp != null && rp.isStopped())
+			aborted = true;
+		return aborted || Thread.currentThread().isInterrupted();
+	}
+	
+	private void fail(Throwable ex) {
+		failure.compareAndSet(null, ex);
+		aborted = true;
+	}
+	
+	/*
+	 * Put an element in the queue waiting while it is full. If the pipeline
+	 * is stopped waiting is over: the next stage will also stop as soon as it
+	 * finishes its current batch, so it does not need the end mark either
+	 */
+	private <T> boolean put(BlockingQueue<Item<T>> queue, Item<T> item) {
+		try {
+			while (!queue.offer(item, 100, TimeUnit.MILLISECONDS)) {
+				if (isStopped())
+					return false;
+			}
+			return true;
+		} catch (InterruptedException ex) {
+			aborted = true;
+			return false;
+		}
+	}
+	
+	/*
+	 * Take an element from the queue, null if the pipeline is stopped or interrupted.
+	 * The inference workers might run in the thread that called the pipeline, which
+	 * is not interrupted when the pipeline stops, so do not wait forever
+	 */
+	private <T> Item<T> take(BlockingQueue<Item<T>> queue) {
+		try {
+			Item<T> item;
+			while ((item = queue.poll(100, TimeUnit.MILLISECONDS)) == null) {
+				if (isStopped())
+					return null;
+			}
+			return item;
+		} catch (InterruptedException ex) {
+			aborted = true;
+			return null;
+		}
+	}
+}
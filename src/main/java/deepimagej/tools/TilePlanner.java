@@ -0,0 +1,264 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ * 
+ * Reference: DeepImageJ: A user-friendly environment to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, W. Ouyang, L. Donati, M. Unser, E. Lundberg, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2021.
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ * Science for Life Laboratory, School of Engineering Sciences in Chemistry, Biotechnology and Health, KTH - Royal Institute of Technology, Sweden
+ * 
+ * Authors: Carlos Garcia-Lopez-de-Haro and Estibaliz Gomez-de-Mariscal
+ *
+ */
+
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2019-2021, DeepImageJ
+ * All rights reserved.
+ *	
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *	  this list of conditions and the following disclaimer in the documentation
+ *	  and/or other materials provided with the distribution.
+ *	
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package deepimagej.tools;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Chooses how an image is divided in tiles. Every tile costs a fixed overhead per
+ * call to the model plus the voxels it computes, halo included, so the planner looks
+ * for the number of tiles and tile sizes per axis that minimize
+ * 		tiles * callOverhead + computed voxels
+ * Tile sizes always have the form minimum_size + step * n, are bigger than 2 times
+ * the halo and are not bigger than the maximum tile. The tiles of an axis can have
+ * different sizes: all of them have the same size except the last one, which can
+ * be smaller to avoid computing pixels outside of the image.
+ * All the arrays follow the order [x, y, c, z]. The channels are never divided.
+ */
+public class TilePlanner {
+	
+	// Default cost of a call to the model, in voxels
+	public static final int		DEFAULT_CALL_OVERHEAD = 128 * 128;
+	// Maximum number of tile counts tried per axis
+	private static final int	MAX_COUNTS = 32;
+	
+	private int[]		size;
+	private int[]		halo;
+	private int[]		min;
+	private int[]		step;
+	private int[]		maxTile;
+	private boolean		uniform;
+	private double		callOverhead;
+	
+	// Result of the last plan
+	public int			nTiles;
+	public long			usefulVoxels;
+	public long			computedVoxels;
+	public double		predictedCost;
+	
+	/**
+	 * @param size: size of the image
+	 * @param halo: pixels discarded at each side of a tile
+	 * @param min: minimum size of a tile
+	 * @param step: step of the tile size, 0 if the size is fixed
+	 * @param maxTile: biggest tile allowed, normally the tile size selected by the user
+	 * @param uniform: whether all the tiles need to have the same size, for example
+	 * 	to process them in batches
+	 * @param callOverhead: cost of a call to the model, in voxels
+	 */
+	public TilePlanner(int[] size, int[] halo, int[] min, int[] step, int[] maxTile, boolean uniform, double callOverhead) {
+		this.size = size;
+		this.halo = halo;
+		this.min = min;
+		this.step = step;
+		this.maxTile = maxTile;
+		this.uniform = uniform;
+		this.callOverhead = callOverhead;
+	}
+	
+	/**
+	 * Plan the tiles. The mirror positions of the tiles refer to the image extended
+	 * with 'halo' pixels at each side
+	 * @return list of tiles, with the tiles of the same size next to each other,
+	 * 	or null if no valid tile size exists for some axis
+	 */
+	public List<Tile> plan() {
+		int[] axes = {0, 1, 3};
+		List<List<AxisPlan>> options = new ArrayList<List<AxisPlan>>();
+		for (int a : axes) {
+			List<AxisPlan> axisOptions = planAxis(size[a], halo[a], min[a], step[a], maxTile[a], uniform);
+			if (axisOptions.size() == 0)
+				return null;
+			options.add(axisOptions);
+		}
+		AxisPlan[] best = null;
+		predictedCost = Double.MAX_VALUE;
+		for (AxisPlan px : options.get(0)) {
+			for (AxisPlan py : options.get(1)) {
+				for (AxisPlan pz : options.get(2)) {
+					double tiles = (double) px.sizes.length * py.sizes.length * pz.sizes.length;
+					double cost = tiles * callOverhead + (double) px.computed * py.computed * pz.computed;
+					if (cost < predictedCost) {
+						predictedCost = cost;
+						best = new AxisPlan[] {px, py, pz};
+					}
+				}
+			}
+		}
+		nTiles = best[0].sizes.length * best[1].sizes.length * best[2].sizes.length;
+		usefulVoxels = (long) size[0] * size[1] * size[3];
+		computedVoxels = (long) best[0].computed * best[1].computed * best[2].computed;
+		return createTiles(best[0], best[1], best[2]);
+	}
+	
+	/**
+	 * Fraction of the computed voxels that end up in the output image
+	 */
+	public double getPredictedEfficiency() {
+		return computedVoxels == 0 ? 0 : (double) usefulVoxels / computedVoxels;
+	}
+	
+	/*
+	 * Tiles of one axis: all of them have the size of the first one except the last
+	 */
+	private static class AxisPlan {
+		int[]	sizes;
+		int[]	imageStarts;
+		int[]	imageEnds;
+		long	computed;
+		
+		private AxisPlan(int n, int halo, int k, int tile, int lastTile) {
+			sizes = new int[k];
+			imageStarts = new int[k];
+			imageEnds = new int[k];
+			int start = 0;
+			for (int i = 0; i < k; i ++) {
+				sizes[i] = i == k - 1 ? lastTile : tile;
+				imageStarts[i] = start;
+				imageEnds[i] = Math.min(n, start + sizes[i] - 2 * halo);
+				start = imageEnds[i];
+				computed += sizes[i];
+			}
+		}
+	}
+	
+	/*
+	 * Best plan of an axis for each number of tiles, from the least number of tiles
+	 * possible up to MAX_COUNTS more
+	 */
+	private static List<AxisPlan> planAxis(int n, int halo, int min, int step, int maxTile, boolean uniform) {
+		List<AxisPlan> plans = new ArrayList<AxisPlan>();
+		// Valid tile sizes, from smaller to bigger
+		List<Integer> valid = new ArrayList<Integer>();
+		if (step == 0) {
+			if (maxTile > 2 * halo)
+				valid.add(maxTile);
+		} else {
+			for (int t = min; t <= maxTile; t += step) {
+				if (t > 2 * halo)
+					valid.add(t);
+			}
+		}
+		if (valid.size() == 0)
+			return plans;
+		int biggestRoi = valid.get(valid.size() - 1) - 2 * halo;
+		int smallestRoi = valid.get(0) - 2 * halo;
+		int kMin = (int) Math.ceil((double) n / biggestRoi);
+		int kMax = Math.min((int) Math.ceil((double) n / smallestRoi), kMin + MAX_COUNTS);
+		for (int k = kMin; k <= kMax; k ++) {
+			AxisPlan best = null;
+			// Same size for all the tiles: the smallest one that covers the axis
+			for (int t : valid) {
+				if ((long) k * (t - 2 * halo) >= n) {
+					// Unless the last tile would be empty
+					if ((long) (k - 1) * (t - 2 * halo) < n)
+						best = new AxisPlan(n, halo, k, t, t);
+					break;
+				}
+			}
+			// Last tile smaller than the rest
+			for (int t = 0; !uniform && k > 1 && t < valid.size(); t ++) {
+				int tile = valid.get(t);
+				int remaining = n - (k - 1) * (tile - 2 * halo);
+				if (remaining <= 0)
+					break;
+				int lastTile = -1;
+				for (int l = 0; l <= t; l ++) {
+					if (valid.get(l) - 2 * halo >= remaining) {
+						lastTile = valid.get(l);
+						break;
+					}
+				}
+				if (lastTile == -1)
+					continue;
+				long computed = (long) (k - 1) * tile + lastTile;
+				if (best == null || computed < best.computed)
+					best = new AxisPlan(n, halo, k, tile, lastTile);
+			}
+			if (best != null)
+				plans.add(best);
+		}
+		return plans;
+	}
+	
+	/*
+	 * Combine the plans of each axis. Tiles of the same size are consecutive so they
+	 * can be grouped in batches
+	 */
+	private List<Tile> createTiles(AxisPlan px, AxisPlan py, AxisPlan pz) {
+		List<Tile> tiles = new ArrayList<Tile>();
+		// First the tiles that are not the last one of any axis, then the rest
+		for (int pass = 0; pass < 2; pass ++) {
+			for (int i = 0; i < px.sizes.length; i ++) {
+				for (int j = 0; j < py.sizes.length; j ++) {
+					for (int z = 0; z < pz.sizes.length; z ++) {
+						boolean border = i == px.sizes.length - 1 || j == py.sizes.length - 1 || z == pz.sizes.length - 1;
+						if ((pass == 0) == border)
+							continue;
+						Tile tile = new Tile();
+						tile.gridPosition = new int[] {i, j, z};
+						tile.patchSize = new int[] {px.sizes[i], py.sizes[j], maxTile[2], pz.sizes[z]};
+						tile.xImageStart = px.imageStarts[i];
+						tile.xImageEnd = px.imageEnds[i];
+						tile.xMirrorStart = tile.xImageStart + halo[0];
+						tile.leftoverX = halo[0];
+						tile.yImageStart = py.imageStarts[j];
+						tile.yImageEnd = py.imageEnds[j];
+						tile.yMirrorStart = tile.yImageStart + halo[1];
+						tile.leftoverY = halo[1];
+						tile.zImageStart = pz.imageStarts[z];
+						tile.zImageEnd = pz.imageEnds[z];
+						tile.zMirrorStart = tile.zImageStart + halo[3];
+						tile.leftoverZ = halo[3];
+						tiles.add(tile);
+					}
+				}
+			}
+		}
+		return tiles;
+	}
+}
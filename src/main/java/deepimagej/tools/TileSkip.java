@@ -0,0 +1,295 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ * 
+ * Reference: DeepImageJ: A user-friendly environment to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, W. Ouyang, L. Donati, M. Unser, E. Lundberg, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2021.
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ * Science for Life Laboratory, School of Engineering Sciences in Chemistry, Biotechnology and Health, KTH - Royal Institute of Technology, Sweden
+ * 
+ * Authors: Carlos Garcia-Lopez-de-Haro and Estibaliz Gomez-de-Mariscal
+ *
+ */
+
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2019-2021, DeepImageJ
+ * All rights reserved.
+ *	
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *	  this list of conditions and the following disclaimer in the documentation
+ *	  and/or other materials provided with the distribution.
+ *	
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package deepimagej.tools;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.List;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.WindowManager;
+import ij.gui.Roi;
+import ij.measure.Calibration;
+import ij.process.ImageProcessor;
+
+/**
+ * Condition that decides whether a tile can be skipped, for example because
+ * it only contains background, so the model is not run on it. New conditions
+ * can be created extending this class and setting them in Parameters.tileSkip.
+ */
+public abstract class TileSkip {
+	
+	/**
+	 * Whether the model does not need to be run on the tile
+	 * @param patch: the tile with its halo, as it would be given to the model.
+	 * 	Null if {@link #needsPixels()} is false
+	 * @param tile: position of the tile in the image
+	 * @return true if the tile can be skipped
+	 */
+	public abstract boolean skip(ImagePlus patch, Tile tile);
+	
+	/*
+	 * Whether the tile has to be extracted to evaluate the condition
+	 */
+	public boolean needsPixels() {
+		return true;
+	}
+	
+	/**
+	 * Create the condition from its text form:
+	 * 'max<value': the maximum intensity of the tile is smaller than value.
+	 * 'var<value': the variance of the tile is smaller than value.
+	 * 'mask=title': the image 'title' is 0 in the whole tile.
+	 * @param spec: text form of the condition
+	 * @return the condition or null if the text is not valid
+	 */
+	public static TileSkip parse(String spec) {
+		spec = spec.trim();
+		try {
+			if (spec.startsWith("max<")) {
+				return new MaxBelow(Double.parseDouble(spec.substring(4).trim()));
+			} else if (spec.startsWith("var<")) {
+				return new VarianceBelow(Double.parseDouble(spec.substring(4).trim()));
+			} else if (spec.startsWith("mask=")) {
+				ImagePlus mask = WindowManager.getImage(spec.substring(5).trim());
+				if (mask == null) {
+					IJ.error("The mask image '" + spec.substring(5).trim() + "' used to skip tiles is not open.");
+					return null;
+				}
+				return new MaskEmpty(mask);
+			}
+		} catch (NumberFormatException ex) {
+		}
+		IJ.error("Invalid condition to skip tiles: '" + spec + "'.\n"
+				+ "Use 'max<value', 'var<value' or 'mask=image title'.");
+		return null;
+	}
+	
+	/**
+	 * Remove from the list the tiles that can be skipped, without giving any of
+	 * them to the model. Only for conditions that do not need the pixels
+	 * @param tiles: tiles of the image, the tiles skipped are removed from the list
+	 * @param condition: condition that decides which tiles are removed
+	 * @return number of tiles removed
+	 */
+	public static int remove(List<Tile> tiles, TileSkip condition) {
+		List<Tile> kept = new ArrayList<Tile>();
+		for (Tile tile : tiles) {
+			if (!condition.skip(null, tile))
+				kept.add(tile);
+		}
+		int removed = tiles.size() - kept.size();
+		tiles.clear();
+		tiles.addAll(kept);
+		return removed;
+	}
+	
+	/**
+	 * Rectangle that contains all the regions, inside the image
+	 * @param rois: regions
+	 * @param nx: width of the image
+	 * @param ny: height of the image
+	 * @return the rectangle as {x, y, width, height}
+	 */
+	public static int[] getBounds(Roi[] rois, int nx, int ny) {
+		Rectangle bounds = rois[0].getBounds();
+		for (Roi roi : rois)
+			bounds = bounds.union(roi.getBounds());
+		bounds = bounds.intersection(new Rectangle(0, 0, nx, ny));
+		return new int[] {bounds.x, bounds.y, Math.max(0, bounds.width), Math.max(0, bounds.height)};
+	}
+	
+	/*
+	 * Set the origin of the calibration of images cropped from the rectangle
+	 * 'crop' ({x, y, width, height}), so they keep the position of the crop
+	 * in the original image
+	 */
+	public static void setCropOrigin(ImagePlus[] images, int[] crop) {
+		for (ImagePlus im : images) {
+			if (im == null)
+				continue;
+			Calibration cal = im.getCalibration();
+			cal.xOrigin = -crop[0] * (double) im.getWidth() / crop[2];
+			cal.yOrigin = -crop[1] * (double) im.getHeight() / crop[3];
+		}
+	}
+	
+	/*
+	 * Skip the tiles whose maximum intensity is smaller than a threshold
+	 */
+	public static class MaxBelow extends TileSkip {
+		private double threshold;
+		
+		public MaxBelow(double threshold) {
+			this.threshold = threshold;
+		}
+		
+		@Override
+		public boolean skip(ImagePlus patch, Tile tile) {
+			ImageStack stack = patch.getStack();
+			for (int i = 1; i <= stack.getSize(); i ++) {
+				float[] pixels = (float[]) stack.getPixels(i);
+				for (float v : pixels) {
+					if (v >= threshold)
+						return false;
+				}
+			}
+			return true;
+		}
+	}
+	
+	/*
+	 * Skip the tiles whose variance is smaller than a threshold (almost constant tiles)
+	 */
+	public static class VarianceBelow extends TileSkip {
+		private double epsilon;
+		
+		public VarianceBelow(double epsilon) {
+			this.epsilon = epsilon;
+		}
+		
+		@Override
+		public boolean skip(ImagePlus patch, Tile tile) {
+			ImageStack stack = patch.getStack();
+			// Shift by the first value so the sums do not lose precision
+			double shift = ((float[]) stack.getPixels(1))[0];
+			double sum = 0;
+			double sum2 = 0;
+			long n = 0;
+			for (int i = 1; i <= stack.getSize(); i ++) {
+				float[] pixels = (float[]) stack.getPixels(i);
+				for (float v : pixels) {
+					double d = v - shift;
+					sum += d;
+					sum2 += d * d;
+				}
+				n += pixels.length;
+			}
+			double mean = sum / n;
+			return sum2 / n - mean * mean < epsilon;
+		}
+	}
+	
+	/*
+	 * Skip the tiles where a mask image is 0. The mask has the size of the
+	 * input image, a mask with only one slice is used for every slice
+	 */
+	public static class MaskEmpty extends TileSkip {
+		private ImagePlus mask;
+		
+		public MaskEmpty(ImagePlus mask) {
+			this.mask = mask;
+		}
+		
+		@Override
+		public boolean needsPixels() {
+			return false;
+		}
+		
+		@Override
+		public boolean skip(ImagePlus patch, Tile tile) {
+			ImageStack stack = mask.getStack();
+			int nz = mask.getNSlices();
+			int xEnd = Math.min(tile.xImageEnd, mask.getWidth());
+			int yEnd = Math.min(tile.yImageEnd, mask.getHeight());
+			for (int z = tile.zImageStart; z < tile.zImageEnd; z ++) {
+				ImageProcessor ip = stack.getProcessor(mask.getStackIndex(1, nz == 1 ? 1 : Math.min(z, nz - 1) + 1, 1));
+				for (int y = tile.yImageStart; y < yEnd; y ++) {
+					for (int x = tile.xImageStart; x < xEnd; x ++) {
+						if (ip.getf(x, y) != 0)
+							return false;
+					}
+				}
+				if (nz == 1)
+					break;
+			}
+			return true;
+		}
+	}
+	
+	/*
+	 * Skip the tiles that do not touch any of the regions selected by the user
+	 */
+	public static class OutsideSelection extends TileSkip {
+		private Roi[] rois;
+		// Masks of the regions that are not rectangles, null for rectangles
+		private ImageProcessor[] masks;
+		
+		public OutsideSelection(Roi[] rois) {
+			this.rois = rois;
+			this.masks = new ImageProcessor[rois.length];
+			for (int i = 0; i < rois.length; i ++)
+				masks[i] = rois[i].getMask();
+		}
+		
+		@Override
+		public boolean needsPixels() {
+			return false;
+		}
+		
+		@Override
+		public boolean skip(ImagePlus patch, Tile tile) {
+			Rectangle region = new Rectangle(tile.xImageStart, tile.yImageStart, tile.xImageEnd - tile.xImageStart,
+												tile.yImageEnd - tile.yImageStart);
+			for (int i = 0; i < rois.length; i ++) {
+				Rectangle bounds = rois[i].getBounds();
+				Rectangle common = bounds.intersection(region);
+				if (common.isEmpty())
+					continue;
+				if (masks[i] == null)
+					return false;
+				for (int y = common.y; y < common.y + common.height; y ++) {
+					for (int x = common.x; x < common.x + common.width; x ++) {
+						if (masks[i].get(x - bounds.x, y - bounds.y) != 0)
+							return false;
+					}
+				}
+			}
+			return true;
+		}
+	}
+}
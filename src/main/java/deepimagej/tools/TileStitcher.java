@@ -0,0 +1,447 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ * 
+ * Reference: DeepImageJ: A user-friendly environment to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, W. Ouyang, L. Donati, M. Unser, E. Lundberg, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2021.
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ * Science for Life Laboratory, School of Engineering Sciences in Chemistry, Biotechnology and Health, KTH - Royal Institute of Technology, Sweden
+ * 
+ * Authors: Carlos Garcia-Lopez-de-Haro and Estibaliz Gomez-de-Mariscal
+ *
+ */
+
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2019-2021, DeepImageJ
+ * All rights reserved.
+ *	
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *	  this list of conditions and the following disclaimer in the documentation
+ *	  and/or other materials provided with the distribution.
+ *	
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package deepimagej.tools;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import deepimagej.Parameters;
+import deepimagej.RunnerProgress;
+import ij.IJ;
+import ij.ImagePlus;
+
+/**
+ * Reconstruction of the output images of a model from the outputs of each of
+ * the tiles, shared by the Tensorflow and Pytorch runners. The runners only
+ * convert the tensors produced by the model into images, the outputs are
+ * written in memory or on disk (see Parameters.outOfCoreDir), copied into
+ * chunked stores (see Parameters.zarrDir) and filled for the tiles found in
+ * the TileCache or skipped by TileSkip here.
+ */
+public class TileStitcher {
+	
+	private Parameters					params;
+	private MirroredImageView			mirrorImage;
+	private int[]						patchSize;
+	private int[]						size;
+	// Offset of each image output in XYCZ
+	private int[][]						offsets;
+	private Log							log;
+	private boolean						show;
+	public ImagePlus[]					outputImages;
+	public String[]						outputTitles;
+	// Outputs stitched on disk instead of in memory, see Parameters.outOfCoreDir
+	private DiskImageStore[]			outputStores;
+	// Chunked copies of the outputs, see Parameters.zarrDir
+	private ZarrStore[]					zarrStores;
+	// Outputs of the background tiles for each tile size, used for the skipped tiles
+	private HashMap<String, ImagePlus[]>	background = new HashMap<String, ImagePlus[]>();
+	// Rectangle {x, y, width, height} of the input covered by the outputs, null for the whole image
+	public int[]						crop = null;
+	// Frames of the outputs, see Tile.frame
+	public int							frames = 1;
+	// Reason why the outputs could not be stitched
+	public String						error = "";
+	
+	/**
+	 * Create the stitcher of the outputs of a run
+	 * @param params: parameters of the model
+	 * @param mirrorImage: input image extended by the mirrored borders
+	 * @param patchSize: size (XYCZ) of the tiles that do not have their own size
+	 * @param size: size (XYCZ) of the input image
+	 * @param offsets: offset (XYCZ) of each of the image outputs
+	 * @param outputImages: array filled with the output images
+	 * @param outputTitles: title of each of the outputs of the model
+	 * @param log: log of the run
+	 * @param show: whether the outputs are shown as they are created
+	 */
+	public TileStitcher(Parameters params, MirroredImageView mirrorImage, int[] patchSize, int[] size, int[][] offsets,
+						ImagePlus[] outputImages, String[] outputTitles, Log log, boolean show) {
+		this.params = params;
+		this.mirrorImage = mirrorImage;
+		this.patchSize = patchSize;
+		this.size = size;
+		this.offsets = offsets;
+		this.outputImages = outputImages;
+		this.outputTitles = outputTitles;
+		this.log = log;
+		this.show = show;
+		this.outputStores = new DiskImageStore[outputImages.length];
+		this.zarrStores = new ZarrStore[outputImages.length];
+	}
+	
+	/*
+	 * Size (XYCZ) of the whole output 'counter' for an input of size 'inpSize'
+	 * processed with tiles whose output has the size 'patchSize'
+	 */
+	protected float[] outputSize(int counter, int[] inpSize, int[] patchSize) {
+		DijTensor outTensor = params.outputList.get(counter);
+		DijTensor refTensor = DijTensor.retrieveByName(outTensor.referenceImage, params.inputList);
+		float[] outSize = new float[inpSize.length];
+		String[] standarForm = "XYCZ".split("");
+		for (int i = 0; i < outSize.length; i ++) {
+			int indOut = Index.indexOf(outTensor.form.split(""), standarForm[i]);
+			int indInp = Index.indexOf(refTensor.form.split(""), standarForm[i]);
+			if (indOut != -1 && indInp != -1) {
+				if (standarForm[i].toLowerCase().equals("c"))
+					outSize[i] = inpSize[i] * outTensor.scale[indOut] + 2*outTensor.offset[indOut];
+				else
+					outSize[i] = inpSize[i] * outTensor.scale[indOut];
+			} else if (indOut != -1 && indInp == -1) {
+				outSize[i] = patchSize[i];
+			} else {
+				outSize[i] = 1;
+			}
+		}
+		return outSize;
+	}
+	
+	/*
+	 * Keep the output 'imCounter' of the model when it is not tiled (pyramidal
+	 * networks or models that do not allow patching)
+	 */
+	public void setWholeOutput(int counter, int imCounter, ImagePlus output) {
+		outputImages[imCounter] = output;
+		outputImages[imCounter].setTitle(outputTitles[counter]);
+		if (show)
+			outputImages[imCounter].show();
+	}
+	
+	/*
+	 * Write the outputs of one batch of tiles. 'impatch' contains, for each image
+	 * output, the image produced for each of the tiles of the batch. Returns false
+	 * if the run was stopped or the outputs do not have the expected size
+	 */
+	public boolean stitchBatch(List<Tile> batch, ImagePlus[][] impatch, RunnerProgress rp) throws IOException {
+		// Save the outputs of the tiles that were not in the tile cache
+		for (int b = 0; b < batch.size(); b ++) {
+			if (batch.get(b).cacheKey == null)
+				continue;
+			ImagePlus[] tileOutputs = new ImagePlus[impatch.length];
+			for (int i = 0; i < impatch.length; i ++)
+				tileOutputs[i] = impatch[i][b];
+			TileCache.put(batch.get(b).cacheKey, tileOutputs);
+		}
+		for (int b = 0; b < batch.size(); b ++) {
+			Tile tile = batch.get(b);
+			int imCounter = 0;
+			for (int counter = 0; counter < params.outputList.size(); counter++) {
+				// TODO decide what to do when pyramidal && !allowPatching
+				if (params.outputList.get(counter).tensorType.contains("image") && !params.pyramidalNetwork && params.allowPatching) {
+					placeTile(tile, counter, imCounter, impatch[imCounter][b]);
+					// The outputs of the background tiles are reused for the skipped tiles
+					if (tile.background)
+						keepBackground(tile, imCounter, impatch[imCounter][b]);
+					else
+						BufferPool.releaseImage(impatch[imCounter][b]);
+					if (outputImages[imCounter] != null)
+						outputImages[imCounter].getProcessor().resetMinAndMax();
+					if (rp != null && rp.isStopped()) {
+						return false;
+					}
+					imCounter ++;
+				} else if (params.outputList.get(counter).tensorType.contains("image") && params.pyramidalNetwork) {
+					// TODO improve
+					int[] outPatchDims = outputImages[imCounter].getDimensions();
+					String[] ijForm = "XYCZB".split("");
+					String dijForm = params.outputList.get(counter).form;
+					int[] pyramidOut = params.outputList.get(counter).sizeOutputPyramid;
+					for (int dd = 0; dd < ijForm.length; dd ++) {
+						int idx = dijForm.indexOf(ijForm[dd]);
+						if (idx == -1 && outPatchDims[dd] == 1) {
+							continue;
+						} else if (idx != -1 && outPatchDims[dd] == pyramidOut[idx]) {
+							continue;
+						}
+						IJ.error("The dimensions of the output image do not coincide\n"
+								+ "with the dimensions specified previously:\n"
+								+ "Specified output dimensions: dimension order -> " + dijForm + ", dimension size -> " + Arrays.toString(pyramidOut) 
+								+ "Actual output dimensions: dimension order -> XYCZB, dimension size -> " + Arrays.toString(outPatchDims));
+						error = "Error specifying output dimensions.";
+						return false;
+					}
+					if (rp != null && rp.isStopped()) {
+						return false;
+					}
+					imCounter ++;
+				} else if (params.outputList.get(counter).tensorType.contains("image") && !params.pyramidalNetwork && !params.allowPatching) {
+					// TODO improve
+					int[] outPatchDims = outputImages[imCounter].getDimensions();
+					String[] ijForm = "XYCZB".split("");
+					String dijForm = params.outputList.get(counter).form;
+					float[] scale = params.outputList.get(counter).scale;
+					int[] offset = params.outputList.get(counter).offset;
+					// TODO adapt for more inputs
+					// We take the mirrored image as the reference, because that is what ends
+					// up going into the model
+					int[] refSize = mirrorImage.getDimensions();
+					String thSizeStr = "[";
+					for (int dd = 0; dd < ijForm.length; dd ++) {
+						int idx = dijForm.indexOf(ijForm[dd]);
+						if (idx == -1 && outPatchDims[dd] == scale[idx]) {
+							thSizeStr += scale[idx] + ",";
+							continue;
+						} else if (idx != -1 && outPatchDims[dd] == (int)(refSize[dd] * scale[idx]) + 2 * offset[idx]) {
+							thSizeStr += ((int)(refSize[dd] * scale[idx]) + 2 * offset[idx]) + ",";
+							continue;
+						}
+						for (dd ++; dd < ijForm.length;) {
+							idx = dijForm.indexOf(ijForm[dd]);
+							if (idx == -1) {
+								thSizeStr += scale[idx] + ",";
+							} else if (idx != -1) {
+								thSizeStr += ((int)(refSize[dd] * scale[idx]) + 2 * offset[idx]) + ",";
+							}
+						}
+						thSizeStr = thSizeStr.substring(0, thSizeStr.length() - 1) + "]";
+						IJ.error("The dimensions of the output image do not coincide\n"
+								+ "with the dimensions specified previously:\n"
+								+ "Specified output dimensions: dimension order -> XYCZB, dimension size -> " + thSizeStr 
+								+ "Actual output dimensions: dimension order -> XYCZB, dimension size -> " + Arrays.toString(outPatchDims));
+						error = "Error specifying output dimensions.";
+						return false;
+					}
+					if (rp != null && rp.isStopped()) {
+						return false;
+					}
+					imCounter ++;
+				}
+			}
+		}
+		return true;
+	}
+	
+	/*
+	 * Write the useful part of the output 'patch' of a tile into the output image
+	 * 'imCounter', that corresponds to the output tensor 'counter'. The output
+	 * images are created with the first tile
+	 */
+	private void placeTile(Tile tile, int counter, int imCounter, ImagePlus patch) throws IOException {
+		// Part of the input image covered by the outputs and its position
+		int[] region = crop == null ? size : new int[] {crop[2], crop[3], size[2], size[3]};
+		int x0 = crop == null ? 0 : crop[0]; int y0 = crop == null ? 0 : crop[1];
+		int nx = region[0]; int ny = region[1]; int nz = region[3];
+		float[] outSize = outputSize(counter, region, patch.getDimensions());
+		if (outputImages[imCounter] == null && outputStores[imCounter] == null) {
+			if (params.outOfCoreDir != null) {
+				// The output is written on disk tile by tile
+				outputStores[imCounter] = new DiskImageStore(params.outOfCoreDir, outputTitles[counter], (int)outSize[0], (int)outSize[1], (int)outSize[2], (int)outSize[3], frames);
+				if (log.getLevel() >= 1)
+					log.print("Writing output on disk: " + outputStores[imCounter].getFile().getAbsolutePath());
+			} else {
+				outputImages[imCounter] = IJ.createHyperStack(outputTitles[counter], (int)outSize[0], (int)outSize[1], (int)outSize[2], (int)outSize[3], frames, 32);
+				outputImages[imCounter].getProcessor().resetMinAndMax();
+				if (show)
+					outputImages[imCounter].show();
+			}
+		}
+		float scaleX = outSize[0] / nx; float scaleY = outSize[1] / ny; float scaleZ = outSize[3] / nz;
+		// Part of the output image produced by the tile and position of its first useful voxel in the tile
+		int xStart = (int) ((tile.xImageStart - x0) * scaleX); int xEnd = (int) ((tile.xImageEnd - x0) * scaleX);
+		int yStart = (int) ((tile.yImageStart - y0) * scaleY); int yEnd = (int) ((tile.yImageEnd - y0) * scaleY);
+		int zStart = (int) (tile.zImageStart * scaleZ); int zEnd = (int) (tile.zImageEnd * scaleZ);
+		int leftoverX = (int) (tile.leftoverX * scaleX) + offsets[imCounter][0];
+		int leftoverY = (int) (tile.leftoverY * scaleY) + offsets[imCounter][1];
+		int leftoverZ = (int) (tile.leftoverZ * scaleZ) + offsets[imCounter][3];
+		// Only the part of the tile inside the cropped outputs is written
+		if (xStart < 0) {
+			leftoverX -= xStart;
+			xStart = 0;
+		}
+		if (yStart < 0) {
+			leftoverY -= yStart;
+			yStart = 0;
+		}
+		xEnd = Math.min(xEnd, (int) outSize[0]);
+		yEnd = Math.min(yEnd, (int) outSize[1]);
+		if (xEnd <= xStart || yEnd <= yStart)
+			return;
+		if (outputStores[imCounter] != null) {
+			outputStores[imCounter].writeRegion(patch, xStart, xEnd, yStart, yEnd, zStart, zEnd,
+												leftoverX, leftoverY, leftoverZ, tile.frame);
+		} else {
+			ArrayOperations.imagePlusReconstructor(outputImages[imCounter], patch, xStart, xEnd,
+													yStart, yEnd, zStart, zEnd, leftoverX, leftoverY, leftoverZ, tile.frame);
+		}
+		if (params.zarrDir != null) {
+			// Chunked copy of the output, written while the next tiles are processed
+			if (zarrStores[imCounter] == null) {
+				zarrStores[imCounter] = new ZarrStore(params.zarrDir, outputTitles[counter], (int)outSize[0], (int)outSize[1], (int)outSize[2],
+														(int)outSize[3], frames, params.zarrLevels);
+				if (log.getLevel() >= 1)
+					log.print("Writing output chunks in: " + zarrStores[imCounter].getRoot().getAbsolutePath());
+			}
+			zarrStores[imCounter].writeRegion(patch, xStart, xEnd, yStart, yEnd, zStart, zEnd,
+												leftoverX, leftoverY, leftoverZ, tile.frame);
+		}
+	}
+	
+	/*
+	 * Keep the output of a background tile for the skipped tiles of the same size
+	 */
+	private void keepBackground(Tile tile, int imCounter, ImagePlus patch) {
+		String key = Arrays.toString(tile.patchSize != null ? tile.patchSize : patchSize);
+		ImagePlus[] outputs = background.get(key);
+		if (outputs == null) {
+			outputs = new ImagePlus[outputImages.length];
+			background.put(key, outputs);
+		}
+		outputs[imCounter] = patch;
+	}
+	
+	/*
+	 * Write the outputs of the tiles found in the TileCache. Returns the tiles whose
+	 * outputs could not be read (evicted or damaged entries), they have to be given
+	 * to the model like the rest of the tiles
+	 */
+	public List<Tile> stitchCached(List<Tile> cached) throws IOException {
+		List<Tile> missed = new ArrayList<Tile>();
+		for (Tile tile : cached) {
+			ImagePlus[] outputs = TileCache.get(tile.cacheKey);
+			if (outputs == null || outputs.length != outputImages.length) {
+				for (int i = 0; outputs != null && i < outputs.length; i ++)
+					BufferPool.releaseImage(outputs[i]);
+				missed.add(tile);
+				continue;
+			}
+			int imCounter = 0;
+			for (int counter = 0; counter < params.outputList.size(); counter++) {
+				if (params.outputList.get(counter).tensorType.contains("image"))
+					placeTile(tile, counter, imCounter, outputs[imCounter ++]);
+			}
+			for (ImagePlus im : outputs)
+				BufferPool.releaseImage(im);
+		}
+		if (!missed.isEmpty())
+			IJ.log("The outputs of " + missed.size() + " tile(s) could not be read from the tile cache, they are processed again.");
+		return missed;
+	}
+	
+	/*
+	 * Write the outputs of the tiles that were not given to the model: the output
+	 * of the background tile of the same size or a constant (Parameters.tileSkipFill).
+	 * Returns the tiles whose background tile was not stitched, they have to be
+	 * given to the model like the rest of the tiles
+	 */
+	public List<Tile> stitchSkipped(List<Tile> skipped) throws IOException {
+		List<Tile> unfilled = new ArrayList<Tile>();
+		// Image written for each output and tile size
+		HashMap<String, ImagePlus[]> fills = new HashMap<String, ImagePlus[]>();
+		for (Tile tile : skipped) {
+			String key = Arrays.toString(tile.patchSize != null ? tile.patchSize : patchSize);
+			ImagePlus[] fill = fills.get(key);
+			if (fill == null) {
+				ImagePlus[] outputs = background.get(key);
+				if (outputs == null || Arrays.asList(outputs).contains(null)) {
+					unfilled.add(tile);
+					continue;
+				}
+				fill = outputs.clone();
+				for (int i = 0; i < fill.length && !Float.isNaN(params.tileSkipFill); i ++) {
+					int[] dims = fill[i].getDimensions();
+					fill[i] = BufferPool.createImage("fill", dims[0], dims[1], dims[2], dims[3], dims[4]);
+					for (int n = 1; n <= fill[i].getStackSize(); n ++)
+						Arrays.fill((float[]) fill[i].getStack().getPixels(n), params.tileSkipFill);
+				}
+				fills.put(key, fill);
+			}
+			int imCounter = 0;
+			for (int counter = 0; counter < params.outputList.size(); counter++) {
+				if (params.outputList.get(counter).tensorType.contains("image"))
+					placeTile(tile, counter, imCounter, fill[imCounter ++]);
+			}
+		}
+		for (ImagePlus im : outputImages) {
+			if (im != null)
+				im.getProcessor().resetMinAndMax();
+		}
+		for (ImagePlus[] outputs : background.values()) {
+			for (ImagePlus im : outputs)
+				BufferPool.releaseImage(im);
+		}
+		background.clear();
+		for (ImagePlus[] outputs : fills.values()) {
+			for (int i = 0; i < outputs.length && !Float.isNaN(params.tileSkipFill); i ++)
+				BufferPool.releaseImage(outputs[i]);
+		}
+		return unfilled;
+	}
+
+	/*
+	 * Open the outputs written on disk as virtual stacks
+	 */
+	public void openStoredOutputs() {
+		for (int i = 0; i < outputStores.length; i ++) {
+			if (outputStores[i] == null)
+				continue;
+			outputImages[i] = outputStores[i].open();
+			if (outputImages[i] == null)
+				IJ.log("Could not open the output written in " + outputStores[i].getFile().getAbsolutePath());
+			else if (show)
+				outputImages[i].show();
+		}
+	}
+	
+	/*
+	 * Close the files of the outputs written on disk and wait for the chunks
+	 * that are still being written
+	 */
+	public void closeStoredOutputs() {
+		for (DiskImageStore store : outputStores) {
+			if (store != null)
+				store.close();
+		}
+		for (ZarrStore store : zarrStores) {
+			if (store == null)
+				continue;
+			String zarrError = store.close();
+			if (zarrError != null)
+				IJ.log(zarrError);
+		}
+	}
+}
@@ -0,0 +1,791 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ * 
+ * Reference: DeepImageJ: A user-friendly environment to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, W. Ouyang, L. Donati, M. Unser, E. Lundberg, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2021.
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ * Science for Life Laboratory, School of Engineering Sciences in Chemistry, Biotechnology and Health, KTH - Royal Institute of Technology, Sweden
+ * 
+ * Authors: Carlos Garcia-Lopez-de-Haro and Estibaliz Gomez-de-Mariscal
+ *
+ */
+
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2019-2021, DeepImageJ
+ * All rights reserved.
+ *	
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *	  this list of conditions and the following disclaimer in the documentation
+ *	  and/or other materials provided with the distribution.
+ *	
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package deepimagej.tools;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.tensorflow.Tensor;
+
+import ai.djl.ndarray.NDArray;
+import deepimagej.DeepImageJ;
+import deepimagej.ImagePlus2Tensor;
+import deepimagej.Parameters;
+import deepimagej.RunnerProgress;
+import deepimagej.exceptions.BatchSizeBiggerThanOne;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.measure.ResultsTable;
+
+/**
+ * Application of a model tile by tile, shared by the Tensorflow and Pytorch
+ * runners: reading of the inputs, choice of the tiles, selection, frames,
+ * TileSkip and TileCache, the TilePipeline and the reconstruction of the
+ * outputs with the TileStitcher. The runners only create the tensors of each
+ * batch, run the model and convert its outputs, see {@link ModelStages}.
+ */
+public class TiledInference {
+	
+	/**
+	 * Work that depends on the framework of the model. The inputs and outputs of
+	 * a batch are freed by {@link #infer(Object)} and {@link #close(Object, Object)}
+	 *
+	 * @param <I> type of the inputs of the model
+	 * @param <O> type of the outputs of the model
+	 */
+	public interface ModelStages<I, O> {
+		/*
+		 * Create the inputs of the model for the patches of a batch, null if
+		 * they cannot be created. The patches are released afterwards
+		 */
+		I createInputs(ImagePlus[] patches) throws Exception;
+		/*
+		 * Run the model and free its inputs
+		 */
+		O infer(I inputs) throws Exception;
+		/*
+		 * Image of the output 'index' for each of the 'nTiles' tiles of the batch.
+		 * Throws BatchSizeBiggerThanOne if there is not one image per tile
+		 */
+		ImagePlus[] toImages(O outputs, int index, DijTensor tensor, int nTiles) throws Exception;
+		/*
+		 * Output 'index' of a model that is not applied by tiles
+		 */
+		ImagePlus toImage(O outputs, int index, DijTensor tensor) throws Exception;
+		ResultsTable toTable(O outputs, int index, DijTensor tensor) throws Exception;
+		/*
+		 * Free the inputs or outputs of a batch, one of the arguments can be null
+		 */
+		void close(I inputs, O outputs);
+		/*
+		 * Explain in the log an exception thrown while applying the model. Returns
+		 * the error of the run, null to keep the one already set
+		 */
+		String reportError(Exception ex);
+	}
+	
+	private DeepImageJ				dp;
+	private RunnerProgress			rp;
+	private Log						log;
+	// Whether the outputs are displayed, otherwise they are only returned in the map
+	private boolean					show;
+	// Input image and position of its tensor in the input list
+	private ImagePlus				imp = null;
+	private int						inputImageInd = 0;
+	// Input tensors that are not images
+	private HashMap<String, Object>	parameterMap = new HashMap<String, Object>();
+	private volatile int			currentPatch = 0;
+	private volatile int			totalPatch = 0;
+	public String					error = "";
+	
+	public TiledInference(DeepImageJ dp, RunnerProgress rp, Log log, boolean show) {
+		this.dp = dp;
+		this.rp = rp;
+		this.log = log;
+		this.show = show;
+	}
+	
+	/*
+	 * Read the input image and the parameter tensors from the map given by the
+	 * preprocessing. Returns false if any of them is missing
+	 */
+	public boolean readInputs(HashMap<String, Object> inputMap) {
+		Parameters params = dp.params;
+		int c = 0;
+		for (DijTensor tensor : params.inputList) {
+			if (tensor.tensorType.contains("image")) {
+				imp = getImageFromMap(inputMap, tensor);
+				if (imp == null) {
+					// TODO maybe we should allow running models without images
+					error = "No image provided.";
+					return false;
+				}
+				String inputPixelSizeX = ((float) imp.getCalibration().pixelWidth) + " " + imp.getCalibration().getUnit();
+				String inputPixelSizeY = ((float) imp.getCalibration().pixelHeight) + " " + imp.getCalibration().getUnit();
+				String inputPixelSizeZ = ((float) imp.getCalibration().pixelDepth) + " " + imp.getCalibration().getUnit();
+				int[] dims = imp.getDimensions();
+				params.inputList.get(c).inputTestSize = Integer.toString(dims[0]) + " x " + Integer.toString(dims[1]) + " x " + Integer.toString(dims[2]) + " x " + Integer.toString(dims[3]);
+				params.inputList.get(c).inputPixelSizeX = inputPixelSizeX;
+				params.inputList.get(c).inputPixelSizeY = inputPixelSizeY;
+				params.inputList.get(c).inputPixelSizeZ = inputPixelSizeZ;
+				inputImageInd = c;
+			} else if (tensor.tensorType.contains("parameter")){
+				Object tensorVal = getTensorFromMap(inputMap, tensor);
+				if (tensorVal == null) {
+					error = "The input tensor '" + tensor.name + "' should be given by"
+							+ "the preprocessing but it is not.";
+					IJ.error(error);
+					return false;
+				} else if (tensorVal instanceof Tensor<?> || tensorVal instanceof NDArray) {
+					parameterMap.put(tensor.name, tensorVal);
+				} else  {
+					// TODO improve error message and review what can be a preprocessing output
+					error = "Output of the preprocessing should be either a Tensor object"
+							+ " or a NDArray object";
+					IJ.error(error);
+					return false;
+				}
+			}
+			c ++;
+		}
+		if (imp == null) {
+			// TODO maybe we should allow running models without images
+			error = "No image provided.";
+			return false;
+		}
+		return true;
+	}
+	
+	public ImagePlus getInputImage() {
+		return imp;
+	}
+	
+	/*
+	 * Tensor of the input image in the input list of the model
+	 */
+	public DijTensor getInputTensor() {
+		return dp.params.inputList.get(inputImageInd);
+	}
+	
+	/*
+	 * Input tensors that are not images, by name
+	 */
+	public HashMap<String, Object> getParameters() {
+		return parameterMap;
+	}
+	
+	public int getCurrentPatch() {
+		return currentPatch;
+	}
+
+	public int getTotalPatch() {
+		return totalPatch;
+	}
+	
+	/*
+	 * Create the object that writes the outputs of the tiles into the output images
+	 */
+	protected TileStitcher createStitcher(MirroredImageView mirrorImage, int[] patchSize, int[] size,
+											ImagePlus[] outputImages, String[] outputTitles) {
+		return new TileStitcher(dp.params, mirrorImage, patchSize, size, findOutputOffset(dp.params.outputList),
+								outputImages, outputTitles, log, show);
+	}
+	
+	/**
+	 * Apply the model to the input image read by {@link #readInputs(HashMap)}
+	 * @param model: the work that depends on the framework of the model
+	 * @return the outputs of the model by name, null if the model could not be
+	 * 	applied or the execution was stopped, see {@link #error}
+	 */
+	public <I, O> HashMap<String, Object> run(ModelStages<I, O> model) {
+		Parameters params = dp.params;
+		DijTensor inputTensor = getInputTensor();
+		int outputImagesCount = 0;
+		for (DijTensor tensor : params.outputList) {
+			if (tensor.tensorType.contains("image"))
+				outputImagesCount ++;
+		}
+		ImagePlus[] outputImages = new ImagePlus[outputImagesCount];
+		List<ResultsTable> outputTables = new ArrayList<ResultsTable>();
+		
+		int nx = imp.getWidth();
+		int ny = imp.getHeight();
+		int nc = imp.getNChannels();
+		int nz = imp.getNSlices();
+		int nt = imp.getNFrames();
+		
+		if (log.getLevel() >= 1)
+			log.print("image size " + nx + "x" + ny + "x" + nz + (nt > 1 ? ", " + nt + " frames" : ""));
+		
+		int[] indices = new int[4];
+		String[] dimLetters = "XYCZ".split("");
+		for  (int i = 0; i < dimLetters.length; i ++)
+			indices[i] = Index.indexOf(inputTensor.form.split(""), dimLetters[i]);
+
+		int[] patchSize = {1, 1, 1, 1};
+		int[] step = {1, 1, 1, 1};
+		int[] minSize = {1, 1, 1, 1};
+		for (int i = 0; i < indices.length; i ++) {
+			if (indices[i] != -1) {
+				patchSize[i] = inputTensor.recommended_patch[indices[i]];
+				step[i] = inputTensor.step[indices[i]];
+				minSize[i] = inputTensor.minimum_size[indices[i]];
+			}
+		}
+		
+		// TODO improve
+		if (params.pyramidalNetwork || !params.allowPatching) {
+			for (int c = 0; c < patchSize.length; c ++) {
+				if (step[c] != 0 && patchSize[c] != imp.getDimensions()[c]) {
+					patchSize[c] = (int) Math.ceil((double) (imp.getDimensions()[c] - minSize[c]) / step[c]) * step[c] + minSize[c];
+				} else if (patchSize[c] < imp.getDimensions()[c] && step[c] == 0) {
+					String errorMsg = "This model only accepts images with input size smaller or equal to:";
+					for (int i = 0; i < dimLetters.length; i ++) {
+						errorMsg += "\n" + dimLetters[i] + " : " + patchSize[i];
+					}
+					IJ.error(errorMsg);
+					return null;
+				}
+			}
+		}
+		
+		int px = patchSize[0]; int py = patchSize[1]; int pc = patchSize[2]; int pz = patchSize[3]; 
+		
+		if (!ArrayOperations.isImageSizeAcceptable(new int[] {nx, ny, nc, nz}, patchSize, inputTensor.form)) {
+			if (rp != null)
+				rp.stop();
+			return null;
+		}
+		
+		if (log.getLevel() >= 1)
+			log.print("patch size " + "X: " +  px + ", Y: " +  py + ", Z: " +  pz + ", C: " +  pc);
+		
+		// To define the runtime for config.xml. Starting time
+		long startingTime = System.nanoTime();
+		
+		String[] outputTitles = new String[params.outputList.size()];
+		int c = 0;
+		int extensionInd = imp.getTitle().lastIndexOf('.');
+		String imName = extensionInd  == -1 ? imp.getTitle() : imp.getTitle().substring(0, extensionInd);
+		for (DijTensor outName: params.outputList) 
+			outputTitles[c++] = dp.getName() + "_" + outName.name  + "_" + imName;
+
+		// Get the padding in case the image needs any
+		int[] padding = new int[4];
+		if (!params.pyramidalNetwork) {
+			padding = findTotalPadding(params.outputList);
+		}
+		int roiX = px - padding[0] * 2;
+		int roiY = py - padding[1] * 2;
+		int roiZ = pz - padding[3] * 2;
+		int roiC = pc - padding[2] * 2;
+		int npx = (int) Math.ceil((double)nx / (double)roiX);
+		int npy = (int) Math.ceil((double)ny / (double)roiY);
+		int npc = (int) Math.ceil((double)nc / (double)roiC);
+		int npz = (int) Math.ceil((double)nz / (double)roiZ);
+		if (!params.allowPatching) {
+			npx = 1; npy = 1; npz = 1; npc = 1;
+		}
+		currentPatch = 0;
+		totalPatch = npx * npy * npz * npc;
+
+		int[] roi = {roiX, roiY, roiC, roiZ};
+		int[] size = {nx, ny, nc, nz};
+		// Choose the number and size of the tiles that compute less voxels
+		TilePlanner planner = null;
+		List<Tile> tiles = null;
+		if (params.allowPatching && !params.pyramidalNetwork) {
+			// Tiles of different sizes cannot go in the same batch
+			boolean uniform = findBatchSize(params, inputTensor, Integer.MAX_VALUE) > 1;
+			planner = new TilePlanner(size, padding, minSize, step, patchSize, uniform, params.tileCallOverhead);
+			tiles = planner.plan();
+		}
+		// The tiles of the planner read the image extended by the halo at every side
+		int[][] mirrorPixels = tiles != null ? new int[][] {padding.clone(), padding.clone()} : ArrayOperations.findAddedPixels(size, padding, roi);
+		// Tiles read the mirrored borders on the fly instead of copying the whole extended image
+		MirroredImageView mirrorImage = new MirroredImageView(imp, mirrorPixels[0][0], mirrorPixels[1][0],
+														  	   mirrorPixels[0][1], mirrorPixels[1][1],
+														       mirrorPixels[0][3], mirrorPixels[1][3]);
+		if (log.getLevel() == 2 && show) {
+			ImagePlus extendedImage = mirrorImage.materialize();
+			extendedImage.setTitle("Extended image");
+			extendedImage.getProcessor().resetMinAndMax();
+			extendedImage.show();
+		}
+		
+		// If the roi of the patch is bigger than the actual image wanted, consider all the
+		// remaining pixels as overlap (padding). Consider that now there might be then different
+		// padding for X and Y
+		int overlapX = mirrorPixels[0][0];
+		if (tiles == null && roiX > nx) {
+			roiX = nx;
+			padding[0] = (px - nx) / 2;
+			overlapX = (px - nx) / 2;
+		}
+		
+		int overlapY = mirrorPixels[0][1];
+		if (tiles == null && roiY > ny) {
+			roiY = ny;
+			padding[1] = (py - ny) / 2;
+			overlapY = (py - ny) / 2;
+		}
+		
+		int overlapZ = mirrorPixels[0][3];
+		if (tiles == null && roiZ > nz) {
+			roiZ = nz;
+			padding[3] = (pz - nz) / 2;
+			overlapZ = (pz - nz) / 2;
+		}
+		int[] overlap = {overlapX, overlapY, 0, overlapZ};
+
+		if (tiles == null)
+			tiles = Tile.createGrid(size, new int[] {roiX, roiY, roiC, roiZ}, padding, overlap, new int[] {npx, npy, npc, npz});
+		// Outputs written on disk are stitched slab by slab, so the planes of the
+		// input are only read once
+		if (params.outOfCoreDir != null)
+			Tile.sortBySlices(tiles);
+		// Only the tiles that cover the selection of the user, see Parameters.selection
+		int[] crop = null;
+		if (params.selection != null && params.allowPatching && !params.pyramidalNetwork) {
+			int removed = TileSkip.remove(tiles, new TileSkip.OutsideSelection(params.selection));
+			if (tiles.size() == 0) {
+				error = "The selection does not cover any part of the image.";
+				IJ.error(error);
+				return null;
+			}
+			if (params.selectionCrop)
+				crop = TileSkip.getBounds(params.selection, nx, ny);
+			if (log.getLevel() >= 1)
+				log.print("Selection: " + tiles.size() + " of " + (tiles.size() + removed) + " tiles cover the selected regions");
+		}
+		// Every frame of a time-lapse is processed with the same tiles, the tiles of
+		// consecutive frames share the batches and workers and the model is loaded once
+		int frames = 1;
+		if (nt > 1 && params.allowPatching && !params.pyramidalNetwork) {
+			tiles = Tile.forEachFrame(tiles, nt);
+			frames = nt;
+		} else if (nt > 1 && log.getLevel() >= 1) {
+			log.print("Only the first of the " + nt + " frames is processed, the model does not allow tiling");
+		}
+		totalPatch = tiles.size();
+		// Number of tiles that are processed by the model at the same time
+		int batchSize = findBatchSize(params, inputTensor, tiles.size());
+		if (planner != null && log.getLevel() >= 1)
+			log.print("Tiling plan: " + planner.nTiles + " tiles, predicted efficiency " + Math.round(100 * planner.getPredictedEfficiency())
+						+ "% (useful/computed voxels), uniform grid: " + npx * npy * npz + " tiles");
+		
+		if (log.getLevel() >= 1)
+			log.print("start " + tiles.size() + " tile(s), " + batchSize + " tile(s) per model call, " + params.inferenceWorkers + " concurrent call(s)");
+		
+		// Extract the next tiles and stitch the previous ones while the model runs
+		TileStitcher stitcher = createStitcher(mirrorImage, patchSize, size, outputImages, outputTitles);
+		stitcher.crop = crop;
+		stitcher.frames = frames;
+		PipelineStages<I, O> stages = new PipelineStages<I, O>(model, mirrorImage, patchSize, overlap, stitcher, outputTables);
+		// The tiles that can be skipped (see Parameters.tileSkip) and the tiles whose outputs
+		// were computed in a previous run are found while the model runs
+		if (params.tileSkip != null && params.allowPatching && !params.pyramidalNetwork)
+			stages.skip = params.tileSkip;
+		if (params.tileCache && params.allowPatching && !params.pyramidalNetwork)
+			stages.cacheModel = ModelCache.getChecksum(dp) + "|" + params.framework;
+		TilePipeline<I, O> pipeline = new TilePipeline<I, O>(stages, rp, Math.max(2, params.inferenceWorkers), params.inferenceWorkers);
+		long pipelineStart = System.nanoTime();
+		long pipelineTime = 0;
+		try {
+			if (!pipeline.run(Tile.groupInBatches(tiles, batchSize))) {
+				if (rp != null && rp.isStopped())
+					rp.stop();
+				return null;
+			}
+			pipelineTime = System.nanoTime() - pipelineStart;
+			// The tiles whose cached outputs could not be read and the skipped tiles
+			// without the output of a background tile are given to the model
+			List<Tile> missedTiles = stitcher.stitchCached(stages.cachedTiles);
+			stages.cachedTiles.removeAll(missedTiles);
+			stages.cacheMisses += missedTiles.size();
+			List<Tile> unfilledTiles = stitcher.stitchSkipped(stages.skippedTiles);
+			stages.skippedTiles.removeAll(unfilledTiles);
+			missedTiles.addAll(unfilledTiles);
+			if (!missedTiles.isEmpty()) {
+				totalPatch += missedTiles.size();
+				stages.select = false;
+				pipeline = new TilePipeline<I, O>(stages, rp, Math.max(2, params.inferenceWorkers), params.inferenceWorkers);
+				if (!pipeline.run(Tile.groupInBatches(missedTiles, batchSize))) {
+					if (rp != null && rp.isStopped())
+						rp.stop();
+					return null;
+				}
+			}
+		} catch (Exception ex) {
+			ex.printStackTrace();
+			IJ.log("Error applying the model");
+			if (ex instanceof BatchSizeBiggerThanOne) {
+				error = "The batch size of the output tensor '" + ((BatchSizeBiggerThanOne) ex).getName() + "' does not correspond\n"
+						+ "to the number of tiles processed at the same time (" + batchSize + ").";
+				IJ.log(error);
+				IJ.log(ex.toString());
+			}
+			String reason = model.reportError(ex);
+			if (reason != null)
+				error = reason;
+			return null;
+		} finally {
+			// The cached tiles that were not read if the run stopped
+			TileCache.unpin(stages.cachedTiles);
+			stitcher.closeStoredOutputs();
+			if (log.getLevel() >= 1)
+				log.print("Buffers allocated by the pool: " + BufferPool.getAllocations());
+		}
+		if (!stages.skippedTiles.isEmpty() && log.getLevel() >= 1)
+			log.print("Skipped " + stages.skippedTiles.size() + " of " + tiles.size() + " tiles, estimated time saved: "
+						+ NumFormat.seconds(pipelineTime / Math.max(1, stages.givenTiles) * stages.skippedTiles.size()));
+		if (params.tileCache && log.getLevel() >= 1)
+			log.print("Tile cache: " + stages.cachedTiles.size() + " hit(s), " + stages.cacheMisses + " miss(es)");
+		stitcher.openStoredOutputs();
+		// The cropped outputs keep the position of the selection in their calibration
+		if (crop != null)
+			TileSkip.setCropOrigin(outputImages, crop);
+		// The plan covers one frame
+		if (planner != null && log.getLevel() >= 1)
+			logTilingEfficiency(planner, stages.computedVoxels.get() / frames, (System.nanoTime() - startingTime) / frames);
+		
+		// To define the runtime. End time
+		long endTime = System.nanoTime();
+		params.runtime = NumFormat.seconds(endTime - startingTime);
+		// Set Parameter params.memoryPeak
+		if (rp != null)
+			params.memoryPeak = NumFormat.bytes(rp.getPeakmem());
+		HashMap<String, Object> outputMap = new HashMap<String, Object>();
+		int imageCount = 0;
+		int tableCount = 0;
+		for (DijTensor tensor : params.outputList) {
+			if (tensor.tensorType.contains("image")) {
+				// Add the image to the output map
+				outputMap.put(tensor.name, outputImages[imageCount ++]);
+			} else if (tensor.tensorType.contains("list")) {
+				// Add the results table to the output map
+				outputMap.put(tensor.name, outputTables.get(tableCount ++));
+			}
+		}
+		return outputMap;
+	}
+	
+	private static ImagePlus getImageFromMap(HashMap<String, Object> inputMap, DijTensor tensor) {
+		if (!inputMap.containsKey(tensor.name)){
+			IJ.error("Preprocessing should provide a HashMap with\n"
+					+ "the key " + tensor.name);
+			return null;
+		} else if (!(inputMap.get(tensor.name) instanceof ImagePlus)) {
+			IJ.error("The input " + tensor.name + " should"
+					+ " be an instance of an ImagePlus.");
+			return null;
+		}
+		ImagePlus imp = (ImagePlus) inputMap.get(tensor.name);
+		return imp;
+	}
+	
+	private static Object getTensorFromMap(HashMap<String, Object> inputMap, DijTensor tensor){
+		if (!inputMap.containsKey(tensor.name)){
+			IJ.error("Preprocessing should provide a HashMap with\n"
+					+ "the key " + tensor.name);
+			return null;
+		} else if (!(inputMap.get(tensor.name) instanceof Tensor<?>)) {
+			IJ.error("The input " + tensor.name + " should"
+					+ " be an instance of a Tensor.");
+			return null;
+		}
+		return inputMap.get(tensor.name);
+	}
+	
+	/*
+	 * Find how many tiles can be stacked along the batch dimension and processed
+	 * in the same call to the model. Batching is only possible if the model allows
+	 * tiling and every input and output is an image with a batch dimension. DJL
+	 * Pytorch versions older than 1.7.0 do not allow defining the batch dimension
+	 */
+	public static int findBatchSize(Parameters params, DijTensor inputImage, int nTiles) {
+		if (params.batchSize <= 1 || params.pyramidalNetwork || !params.allowPatching || inputImage.form.indexOf("B") == -1)
+			return 1;
+		if (params.framework.equals("pytorch") && ImagePlus2Tensor.olderThanPytorch170(params.pytorchVersion))
+			return 1;
+		for (DijTensor tensor : params.inputList) {
+			if (!tensor.tensorType.contains("image"))
+				return 1;
+		}
+		for (DijTensor tensor : params.outputList) {
+			if (tensor.tensorType.contains("image") && tensor.form.indexOf("B") == -1)
+				return 1;
+			else if (tensor.tensorType.contains("list"))
+				return 1;
+		}
+		return Math.min(params.batchSize, nTiles);
+	}
+	
+	public static int[] findTotalPadding(List<DijTensor> outputs) {
+		// Create an object of int[] that contains the output dimensions
+		// of each patch.
+		// This dimensions are always of the form [x, y, c, d]
+		int[] padding = {0, 0, 0, 0};
+		String[] form = "XYCZ".split("");
+		for (DijTensor out: outputs) {
+			if (!out.tensorType.equals("image"))
+				continue;
+			for (int i = 0; i < form.length; i ++) {
+				int ind = Index.indexOf(out.form.split(""), form[i]);
+				if (out.tensorType.contains("image") && ind != -1 && !form[i].equals("B") && !form[i].equals("C")) {
+					double totalPad = Math.ceil(-1 * (double)out.offset[ind] / (double)out.scale[ind]) + Math.ceil((double)out.halo[ind] / (double)out.scale[ind]);
+					if ((int) totalPad > padding[i]) {
+						padding[i] = (int) totalPad;
+					}
+				}
+			}
+		}
+		return padding;
+	}
+	
+	// TODO clean up method (line 559) Make it stable for pyramidal
+	public static int[][] findOutputOffset(List<DijTensor> outputs) {
+		// Create an object of int[] that contains the output dimensions
+		// of each patch.
+		// This dimensions are always of the form [x, y, c, d]
+		int[][] offsets = new int[outputs.size()][4];
+		String[] form = "XYCZ".split("");
+		int c1 = 0;
+		for (DijTensor out: outputs) {
+			if (!out.tensorType.toLowerCase().equals("image"))
+				continue;
+			int c2 = 0;
+			for (int i = 0; i < offsets[0].length; i ++) {
+				int ind = Index.indexOf(out.form.split(""), form[i]);
+				if (ind != -1 && out.offset != null) {
+					offsets[c1][c2] = out.offset[ind];
+				}
+				c2 ++;
+			}
+			c1 ++;
+		}
+		return offsets;
+	}
+	
+	/*
+	 * Work done at each of the stages of the tile pipeline: extraction of the
+	 * tiles, inference and reconstruction of the output images
+	 */
+	private class PipelineStages<I, O> implements TilePipeline.Stages<I, O> {
+		private ModelStages<I, O>		model;
+		private MirroredImageView		mirrorImage;
+		private int[]					patchSize;
+		private int[]					overlap;
+		// Reconstruction of the output images from the outputs of the tiles
+		private TileStitcher			stitcher;
+		private List<ResultsTable>		outputTables;
+		// Voxels of all the tiles given to the model
+		private AtomicLong				computedVoxels = new AtomicLong();
+		// Number of tiles given to the model by the first pass
+		private int						givenTiles = 0;
+		// Whether the tiles are checked against 'skip' and looked for in the TileCache
+		// before giving them to the model
+		private boolean					select = true;
+		// Condition of the tiles that are not given to the model, null to give all of them
+		private TileSkip				skip = null;
+		// Tiles skipped and sizes of the tiles that already have a background tile
+		private List<Tile>				skippedTiles = new ArrayList<Tile>();
+		private HashSet<String>			sizesWithBackground = new HashSet<String>();
+		// Checksum of the model used in the TileCache, null if the cache is not used
+		private String					cacheModel = null;
+		// Tiles found in the TileCache and tiles that were not, see prepare
+		private List<Tile>				cachedTiles = new ArrayList<Tile>();
+		private int						cacheMisses = 0;
+		
+		private PipelineStages(ModelStages<I, O> model, MirroredImageView mirrorImage, int[] patchSize, int[] overlap,
+								TileStitcher stitcher, List<ResultsTable> outputTables) {
+			this.model = model;
+			this.mirrorImage = mirrorImage;
+			this.patchSize = patchSize;
+			this.overlap = overlap;
+			this.stitcher = stitcher;
+			this.outputTables = outputTables;
+		}
+
+		/*
+		 * Extract the tiles of the batch. The tiles skipped and the tiles found in
+		 * the TileCache are removed from the batch. Both are decided on the tile
+		 * already extracted, while the model runs on the previous batch
+		 */
+		@Override
+		public I prepare(List<Tile> batch) throws Exception {
+			List<ImagePlus> extracted = new ArrayList<ImagePlus>();
+			Iterator<Tile> it = batch.iterator();
+			while (it.hasNext()) {
+				Tile tile = it.next();
+				currentPatch++;
+				if (log.getLevel() >= 1)
+					log.print("currentPatch " + currentPatch);
+				// TODO mirar en profundidad. Que pasa cuando el mirror no es igual de grande que le patch
+				// Observé que se compensaba erroneamente
+				int[] tileSize = tile.patchSize != null ? tile.patchSize : patchSize;
+				// Conditions that do not need the pixels are checked before extracting the tile
+				if (select && skip != null && !skip.needsPixels() && isSkipped(tile, tileSize, null)) {
+					it.remove();
+					continue;
+				}
+				ImagePlus patch = ArrayOperations.extractPatch(mirrorImage, tileSize, tile.xMirrorStart, tile.yMirrorStart,
+															tile.zMirrorStart, overlap[0], overlap[1], overlap[3], tile.frame);
+				if (select && ((skip != null && skip.needsPixels() && isSkipped(tile, tileSize, patch)) || isCached(tile, tileSize, patch))) {
+					BufferPool.releaseImage(patch);
+					it.remove();
+					continue;
+				}
+				if (select)
+					givenTiles ++;
+				computedVoxels.addAndGet((long) tileSize[0] * tileSize[1] * tileSize[3]);
+				if (log.getLevel() >= 1)
+					log.print("Extract Patch (" + (tile.gridPosition[0] + 1) + ", " + (tile.gridPosition[1] + 1) + ") patch size: " + patch.getWidth() + "x" + patch.getHeight() + " pixels");
+				if (log.getLevel() == 2) {
+					patch.setTitle("Patch (" + tile.gridPosition[0] + "," + tile.gridPosition[1] + ")");
+					patch.getProcessor().resetMinAndMax();
+				}
+				extracted.add(patch);
+			}
+			if (batch.isEmpty())
+				return null;
+			ImagePlus[] patches = extracted.toArray(new ImagePlus[extracted.size()]);
+			I inputs;
+			try {
+				inputs = model.createInputs(patches);
+			} finally {
+				// The tensors have their own copy of the data, the patches can be reused
+				for (ImagePlus patch : patches)
+					BufferPool.releaseImage(patch);
+			}
+			if (inputs == null) {
+				error = "Error retrieving inputs to tensors for the model.";
+				IJ.error(error);
+			}
+			return inputs;
+		}
+
+		/*
+		 * Whether the tile can be skipped. The first tile of each size that could be
+		 * skipped is given to the model and marked as background, its outputs are
+		 * used for the skipped tiles and the output images exist even if every tile
+		 * is skipped
+		 */
+		private boolean isSkipped(Tile tile, int[] tileSize, ImagePlus patch) {
+			if (!skip.skip(patch, tile))
+				return false;
+			if (sizesWithBackground.add(Arrays.toString(tileSize))) {
+				tile.background = true;
+				return false;
+			}
+			skippedTiles.add(tile);
+			return true;
+		}
+		
+		/*
+		 * Whether the outputs of the tile are in the TileCache. The background tiles
+		 * (see TileSkip) are always given to the model
+		 */
+		private boolean isCached(Tile tile, int[] tileSize, ImagePlus patch) {
+			if (cacheModel == null || tile.background)
+				return false;
+			if (TileCache.find(tile, cacheModel, tileSize, patch)) {
+				cachedTiles.add(tile);
+				return true;
+			}
+			cacheMisses ++;
+			return false;
+		}
+
+		@Override
+		public O infer(List<Tile> batch, I inputs) throws Exception {
+			// The thread cannot be stopped while running the model, thus block the button
+			// while executing the task
+			if (rp != null)
+				rp.allowStopping(false);
+			try {
+				return model.infer(inputs);
+			} finally {
+				if (rp != null)
+					rp.allowStopping(true);
+			}
+		}
+
+		@Override
+		public boolean stitch(List<Tile> batch, O outputs) throws Exception {
+			Parameters params = dp.params;
+			// Images produced by the model for each of the tiles of the batch
+			ImagePlus[][] impatch = new ImagePlus[stitcher.outputImages.length][];
+			try {
+				int c = 0;
+				int imCounter = 0;
+				for (DijTensor outTensor : params.outputList) {
+					if (log.getLevel() >= 1)
+						log.print("Session run " + (c+1) + "/"  + params.outputList.size());
+					if (outTensor.tensorType.contains("image") && !params.pyramidalNetwork && params.allowPatching) {
+						impatch[imCounter ++] = model.toImages(outputs, c, outTensor, batch.size());
+					} else if (outTensor.tensorType.contains("image")) {
+						stitcher.setWholeOutput(c, imCounter ++, model.toImage(outputs, c, outTensor));
+					} else if (outTensor.tensorType.contains("list")){
+						ResultsTable table = model.toTable(outputs, c, outTensor);
+						outputTables.add(table);
+						if (show)
+							table.show(stitcher.outputTitles[c]);
+					}
+					c ++;
+				}
+			} finally {
+				model.close(null, outputs);
+			}
+			if (!stitcher.stitchBatch(batch, impatch, rp)) {
+				error = stitcher.error;
+				return false;
+			}
+			if (log.getLevel() >= 1)
+				log.print("Create Output ");
+			return true;
+		}
+
+		@Override
+		public void discard(I inputs, O outputs) {
+			model.close(inputs, outputs);
+		}
+	}
+	
+	/*
+	 * Compare the efficiency predicted by the tiling planner with the voxels
+	 * actually computed and the time it took
+	 */
+	private void logTilingEfficiency(TilePlanner planner, long computed, long nanos) {
+		double actual = computed == 0 ? 0 : (double) planner.usefulVoxels / computed;
+		log.print("Tiling efficiency: predicted " + Math.round(100 * planner.getPredictedEfficiency()) + "%, actual "
+					+ Math.round(100 * actual) + "%, " + Math.round(planner.usefulVoxels / (nanos / 1e9)) + " useful voxels/s");
+	}
+}
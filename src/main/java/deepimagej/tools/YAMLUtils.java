@@ -201,12 +201,14 @@ public class YAMLUtils {
 		// For Tensorflow, if upload to biozoo is selected, calculate checksum
 		// For Pytorch, always calculate checksum
 		if (params.framework.equals("pytorch")) {
-			format_info.put("sha256", FileTools.createSHA256(params.saveDir + File.separator + "pytorch_script.pt"));
+			format_info.put("sha256", ModelIndex.sha256(params.saveDir + File.separator + "pytorch_script.pt"));
 		} else if (params.framework.equals("tensorflow") && params.biozoo) {
-			format_info.put("sha256", FileTools.createSHA256(params.saveDir + File.separator + "tensorflow_saved_model_bundle.zip"));
+			format_info.put("sha256", ModelIndex.sha256(params.saveDir + File.separator + "tensorflow_saved_model_bundle.zip"));
 		} else if (params.framework.equals("tensorflow") && !params.biozoo) {
 			format_info.put("sha256", null);
 		}
+		// The model does not have to be read again when it is listed
+		ModelIndex.save();
 		// Add the preprocessing attachments to the weights, as they are part of the model
 		ArrayList<String> aux = new ArrayList<String>();
 		for (String str : params.attachments) {
@@ -0,0 +1,451 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ * 
+ * Reference: DeepImageJ: A user-friendly environment to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, W. Ouyang, L. Donati, M. Unser, E. Lundberg, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2021.
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ * Science for Life Laboratory, School of Engineering Sciences in Chemistry, Biotechnology and Health, KTH - Royal Institute of Technology, Sweden
+ * 
+ * Authors: Carlos Garcia-Lopez-de-Haro and Estibaliz Gomez-de-Mariscal
+ *
+ */
+
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2019-2021, DeepImageJ
+ * All rights reserved.
+ *	
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *	  this list of conditions and the following disclaimer in the documentation
+ *	  and/or other materials provided with the distribution.
+ *	
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package deepimagej.tools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+
+/*
+ * Chunked output written on the local disk with the layout of a Zarr (v2)
+ * multiscale image (OME-NGFF 0.4): one folder per resolution level and one
+ * zlib compressed file per chunk. The tiles are written as soon as they are
+ * stitched. A chunk is compressed and saved, in a background thread, once all
+ * its voxels have been received, and its 2x2 downsampled version is sent to
+ * the next level, so the lower resolutions are built at the same time.
+ * Only the chunks that are still incomplete are kept in memory.
+ */
+public class ZarrStore {
+	
+	/*
+	 * Size of the chunks along X and Y. Must be even so the chunks of a level
+	 * give complete voxels of the next one
+	 */
+	public static int	CHUNK_XY = 2 * (SystemUsage.getIntProperty("deepimagej.zarr.chunk", 256) / 2);
+	// Maximum size of the chunks along Z
+	public static int	CHUNK_Z = 16;
+	
+	private File		root;
+	private int			nc;
+	private int			nt;
+	private Level[]		levels;
+	private ThreadPoolExecutor writers;
+	// First error found while writing a chunk
+	public volatile String	error = null;
+	
+	/*
+	 * One of the resolutions of the image
+	 */
+	private class Level {
+		private File		dir;
+		private int			nx;
+		private int			ny;
+		private int			nz;
+		private int			cx;
+		private int			cy;
+		private int			cz;
+		private int			nChunksX;
+		private int			nChunksY;
+		private int			nChunksZ;
+		// Chunks that have received part of their voxels
+		private HashMap<Long, Chunk> pending = new HashMap<Long, Chunk>();
+	}
+	
+	private class Chunk {
+		private long	key;
+		private int		ix;
+		private int		iy;
+		private int		iz;
+		private int		c;
+		private int		t;
+		private float[]	data;
+		// Voxels of the image inside the chunk that have not been written yet
+		private long	remaining;
+	}
+	
+	/*
+	 * Create the store 'title'.zarr in the folder 'dir' for an image of nx*ny*nc*nz*nt
+	 * voxels. 'nLevels' is the number of resolutions, 0 to add levels until the
+	 * image fits in one chunk
+	 */
+	public ZarrStore(String dir, String title, int nx, int ny, int nc, int nz, int nt, int nLevels) throws IOException {
+		String name = title.replaceAll("[^A-Za-z0-9._-]", "_");
+		if (name.contains("."))
+			name = name.substring(0, name.lastIndexOf("."));
+		this.root = new File(dir, name + ".zarr");
+		// The chunks of a previous run that are not written again would be mixed with
+		// the new ones, so an existing store is replaced. Other folders are not touched
+		if (root.exists()) {
+			String reason = null;
+			if (!new File(root, ".zgroup").isFile())
+				reason = "Cannot write the output chunks in " + root.getAbsolutePath() + ", the folder exists and is not a Zarr store.";
+			else if (!FileTools.deleteDir(root))
+				reason = "Cannot replace the Zarr store " + root.getAbsolutePath();
+			if (reason != null) {
+				IJ.log(reason);
+				throw new IOException(reason);
+			}
+		}
+		this.nc = nc;
+		this.nt = nt;
+		if (nLevels <= 0) {
+			nLevels = 1;
+			for (int size = Math.max(nx, ny); size > CHUNK_XY && nLevels < 8; size = (size + 1) / 2)
+				nLevels ++;
+		}
+		levels = new Level[nLevels];
+		for (int l = 0; l < nLevels; l ++) {
+			Level lv = new Level();
+			lv.dir = new File(root, "" + l);
+			lv.nx = l == 0 ? nx : (levels[l - 1].nx + 1) / 2;
+			lv.ny = l == 0 ? ny : (levels[l - 1].ny + 1) / 2;
+			lv.nz = nz;
+			lv.cx = Math.min(CHUNK_XY, lv.nx);
+			lv.cy = Math.min(CHUNK_XY, lv.ny);
+			lv.cz = Math.min(CHUNK_Z, nz);
+			// Keep the chunks even, except when the whole axis is one pixel
+			lv.cx += lv.cx % 2 == 1 && lv.cx > 1 ? 1 : 0;
+			lv.cy += lv.cy % 2 == 1 && lv.cy > 1 ? 1 : 0;
+			lv.nChunksX = (lv.nx + lv.cx - 1) / lv.cx;
+			lv.nChunksY = (lv.ny + lv.cy - 1) / lv.cy;
+			lv.nChunksZ = (lv.nz + lv.cz - 1) / lv.cz;
+			levels[l] = lv;
+		}
+		writeMetadata();
+		int nThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+		// When the queue is full the stitching thread compresses the chunk itself,
+		// so the chunks waiting to be written are bounded
+		writers = new ThreadPoolExecutor(nThreads, nThreads, 0, TimeUnit.SECONDS,
+										new ArrayBlockingQueue<Runnable>(4 * nThreads), new ThreadPoolExecutor.CallerRunsPolicy());
+	}
+	
+	public File getRoot() {
+		return root;
+	}
+	
+	public int getNLevels() {
+		return levels.length;
+	}
+	
+	private void writeMetadata() throws IOException {
+		root.mkdirs();
+		write(new File(root, ".zgroup"), "{\n    \"zarr_format\": 2\n}\n");
+		String datasets = "";
+		for (int l = 0; l < levels.length; l ++) {
+			Level lv = levels[l];
+			lv.dir.mkdirs();
+			write(new File(lv.dir, ".zarray"), "{\n"
+					+ "    \"chunks\": [1, 1, " + lv.cz + ", " + lv.cy + ", " + lv.cx + "],\n"
+					+ "    \"compressor\": {\"id\": \"zlib\", \"level\": 1},\n"
+					+ "    \"dimension_separator\": \"/\",\n"
+					+ "    \"dtype\": \"<f4\",\n"
+					+ "    \"fill_value\": 0.0,\n"
+					+ "    \"filters\": null,\n"
+					+ "    \"order\": \"C\",\n"
+					+ "    \"shape\": [" + nt + ", " + nc + ", " + lv.nz + ", " + lv.ny + ", " + lv.nx + "],\n"
+					+ "    \"zarr_format\": 2\n}\n");
+			datasets += (l == 0 ? "" : ",\n") + "            {\"path\": \"" + l + "\", \"coordinateTransformations\": "
+					+ "[{\"type\": \"scale\", \"scale\": [1.0, 1.0, 1.0, " + (1 << l) + ".0, " + (1 << l) + ".0]}]}";
+		}
+		write(new File(root, ".zattrs"), "{\n    \"multiscales\": [{\n"
+				+ "        \"version\": \"0.4\",\n"
+				+ "        \"axes\": [{\"name\": \"t\", \"type\": \"time\"}, {\"name\": \"c\", \"type\": \"channel\"}, "
+				+ "{\"name\": \"z\", \"type\": \"space\"}, {\"name\": \"y\", \"type\": \"space\"}, {\"name\": \"x\", \"type\": \"space\"}],\n"
+				+ "        \"datasets\": [\n" + datasets + "\n        ]\n    }]\n}\n");
+	}
+	
+	private static void write(File file, String text) throws IOException {
+		Files.write(file.toPath(), text.getBytes(StandardCharsets.UTF_8));
+	}
+	
+	/*
+	 * Write the useful part of a tile of the full resolution image. The arguments
+	 * are the same as in ArrayOperations.imagePlusReconstructor. 't' is the
+	 * frame of the image (0-based)
+	 */
+	public synchronized void writeRegion(ImagePlus patch, int xImageStartPatch, int xImageEndPatch,
+										int yImageStartPatch, int yImageEndPatch,
+										int zImageStartPatch, int zImageEndPatch,
+										int leftoverX, int leftoverY, int leftoverZ, int t) {
+		Level lv = levels[0];
+		int channels = Math.min(patch.getNChannels(), nc);
+		int pw = patch.getWidth();
+		int roiX = Math.min(xImageEndPatch, lv.nx) - xImageStartPatch;
+		int roiY = Math.min(yImageEndPatch, lv.ny) - yImageStartPatch;
+		int roiZ = Math.min(zImageEndPatch, lv.nz) - zImageStartPatch;
+		if (roiX <= 0 || roiY <= 0 || roiZ <= 0)
+			return;
+		ImageStack stack = patch.getStack();
+		for (int z = 0; z < roiZ; z ++) {
+			for (int c = 0; c < channels; c ++) {
+				float[] pixels = (float[]) stack.getProcessor(patch.getStackIndex(c + 1, leftoverZ + z + 1, 1)).convertToFloat().getPixels();
+				for (int y = 0; y < roiY; y ++)
+					putRow(0, c, t, zImageStartPatch + z, yImageStartPatch + y, xImageStartPatch,
+							pixels, (leftoverY + y) * pw + leftoverX, roiX);
+			}
+		}
+	}
+	
+	/*
+	 * Copy 'len' voxels of a row of the level 'l' starting at x0 into the chunks
+	 * that contain them. Chunks that are completed are saved
+	 */
+	private void putRow(int l, int c, int t, int z, int y, int x0, float[] src, int pos, int len) {
+		Level lv = levels[l];
+		while (len > 0) {
+			int ix = x0 / lv.cx;
+			int n = Math.min(len, (ix + 1) * lv.cx - x0);
+			Chunk ch = getChunk(lv, c, t, ix, y / lv.cy, z / lv.cz);
+			System.arraycopy(src, pos, ch.data, ((z % lv.cz) * lv.cy + y % lv.cy) * lv.cx + x0 % lv.cx, n);
+			ch.remaining -= n;
+			if (ch.remaining <= 0)
+				flush(l, ch);
+			x0 += n;
+			pos += n;
+			len -= n;
+		}
+	}
+	
+	private Chunk getChunk(Level lv, int c, int t, int ix, int iy, int iz) {
+		long key = ((((long) t * nc + c) * lv.nChunksZ + iz) * lv.nChunksY + iy) * lv.nChunksX + ix;
+		Chunk ch = lv.pending.get(key);
+		if (ch == null) {
+			ch = new Chunk();
+			ch.key = key;
+			ch.ix = ix; ch.iy = iy; ch.iz = iz; ch.c = c; ch.t = t;
+			ch.data = new float[lv.cx * lv.cy * lv.cz];
+			ch.remaining = (long) Math.min(lv.cx, lv.nx - ix * lv.cx) * Math.min(lv.cy, lv.ny - iy * lv.cy)
+							* Math.min(lv.cz, lv.nz - iz * lv.cz);
+			lv.pending.put(key, ch);
+		}
+		return ch;
+	}
+	
+	/*
+	 * Save a chunk in the background and send its downsampled version to the next level
+	 */
+	private void flush(int l, final Chunk ch) {
+		final Level lv = levels[l];
+		lv.pending.remove(ch.key);
+		if (l + 1 < levels.length) {
+			int w = Math.min(lv.cx, lv.nx - ch.ix * lv.cx);
+			int h = Math.min(lv.cy, lv.ny - ch.iy * lv.cy);
+			int d = Math.min(lv.cz, lv.nz - ch.iz * lv.cz);
+			float[] row = new float[(w + 1) / 2];
+			for (int z = 0; z < d; z ++) {
+				for (int y = 0; y < h; y += 2) {
+					for (int x = 0; x < w; x += 2) {
+						float sum = 0;
+						int n = 0;
+						for (int yy = y; yy < Math.min(y + 2, h); yy ++) {
+							for (int xx = x; xx < Math.min(x + 2, w); xx ++) {
+								sum += ch.data[(z * lv.cy + yy) * lv.cx + xx];
+								n ++;
+							}
+						}
+						row[x / 2] = sum / n;
+					}
+					putRow(l + 1, ch.c, ch.t, ch.iz * lv.cz + z, (ch.iy * lv.cy + y) / 2, ch.ix * lv.cx / 2, row, 0, row.length);
+				}
+			}
+		}
+		writers.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					saveChunk(lv, ch);
+				} catch (IOException ex) {
+					ex.printStackTrace();
+					if (error == null)
+						error = "Error writing " + lv.dir.getAbsolutePath() + ": " + ex.getMessage();
+				}
+			}
+		});
+	}
+	
+	private static void saveChunk(Level lv, Chunk ch) throws IOException {
+		ByteBuffer raw = ByteBuffer.allocate(ch.data.length * 4).order(ByteOrder.LITTLE_ENDIAN);
+		raw.asFloatBuffer().put(ch.data);
+		Deflater deflater = new Deflater(1);
+		deflater.setInput(raw.array());
+		deflater.finish();
+		ByteArrayOutputStream out = new ByteArrayOutputStream(raw.capacity() / 2);
+		byte[] buffer = new byte[64 * 1024];
+		while (!deflater.finished())
+			out.write(buffer, 0, deflater.deflate(buffer));
+		deflater.end();
+		File dir = new File(lv.dir, ch.t + File.separator + ch.c + File.separator + ch.iz + File.separator + ch.iy);
+		dir.mkdirs();
+		Files.write(new File(dir, "" + ch.ix).toPath(), out.toByteArray());
+	}
+	
+	/*
+	 * Save the chunks that are not complete (only happens if the processing
+	 * was stopped) and wait until every chunk has been written.
+	 * Returns the error found while writing, or null
+	 */
+	public synchronized String close() {
+		if (writers.isShutdown())
+			return error;
+		for (int l = 0; l < levels.length; l ++) {
+			for (Chunk ch : new ArrayList<Chunk>(levels[l].pending.values()))
+				flush(l, ch);
+		}
+		writers.shutdown();
+		try {
+			writers.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+		return error;
+	}
+	
+	/*
+	 * Read a block of a level of a store written with this class, for example
+	 * to process the image tile by tile. Chunks that were not written are
+	 * read as 0. Returns null if the store cannot be read
+	 * @param path: folder of the store (.zarr)
+	 * @param level: resolution level, 0 is the full resolution
+	 * @param c, t: channel and frame (0-based)
+	 * @param x0, y0, z0: start of the block
+	 * @param w, h, d: size of the block
+	 */
+	public static ImagePlus readRegion(String path, int level, int c, int t, int x0, int y0, int z0, int w, int h, int d) {
+		File dir = new File(path, "" + level);
+		int[] shape;
+		int[] chunks;
+		boolean compressed;
+		try {
+			String zarray = new String(Files.readAllBytes(new File(dir, ".zarray").toPath()), StandardCharsets.UTF_8);
+			shape = readArray(zarray, "shape");
+			chunks = readArray(zarray, "chunks");
+			compressed = zarray.contains("\"zlib\"");
+		} catch (IOException ex) {
+			IJ.log("Cannot read the Zarr array " + dir.getAbsolutePath());
+			return null;
+		}
+		if (shape == null || chunks == null || shape.length != 5 || chunks.length != 5) {
+			IJ.log("Unsupported Zarr array " + dir.getAbsolutePath());
+			return null;
+		}
+		int cz = chunks[2]; int cy = chunks[3]; int cx = chunks[4];
+		ImagePlus imp = IJ.createImage(new File(path).getName() + "_" + level, "32-bit", w, h, 1, d, 1);
+		ImageStack stack = imp.getStack();
+		int zEnd = Math.min(z0 + d, shape[2]); int yEnd = Math.min(y0 + h, shape[3]); int xEnd = Math.min(x0 + w, shape[4]);
+		for (int iz = z0 / cz; iz * cz < zEnd; iz ++) {
+			for (int iy = y0 / cy; iy * cy < yEnd; iy ++) {
+				for (int ix = x0 / cx; ix * cx < xEnd; ix ++) {
+					File file = new File(dir, t + File.separator + c + File.separator + iz + File.separator + iy + File.separator + ix);
+					if (!file.isFile())
+						continue;
+					float[] data;
+					try {
+						data = readChunk(file, cx * cy * cz, compressed);
+					} catch (Exception ex) {
+						IJ.log("Cannot read the Zarr chunk " + file.getAbsolutePath());
+						return null;
+					}
+					for (int z = Math.max(z0, iz * cz); z < Math.min(zEnd, (iz + 1) * cz); z ++) {
+						float[] plane = (float[]) stack.getPixels(z - z0 + 1);
+						for (int y = Math.max(y0, iy * cy); y < Math.min(yEnd, (iy + 1) * cy); y ++) {
+							int xs = Math.max(x0, ix * cx);
+							int n = Math.min(xEnd, (ix + 1) * cx) - xs;
+							System.arraycopy(data, ((z - iz * cz) * cy + y - iy * cy) * cx + xs - ix * cx, plane, (y - y0) * w + xs - x0, n);
+						}
+					}
+				}
+			}
+		}
+		imp.getProcessor().resetMinAndMax();
+		return imp;
+	}
+	
+	private static float[] readChunk(File file, int size, boolean compressed) throws IOException, DataFormatException {
+		byte[] bytes = Files.readAllBytes(file.toPath());
+		if (compressed) {
+			Inflater inflater = new Inflater();
+			inflater.setInput(bytes);
+			byte[] raw = new byte[size * 4];
+			int n = 0;
+			while (n < raw.length && !inflater.finished())
+				n += inflater.inflate(raw, n, raw.length - n);
+			inflater.end();
+			bytes = raw;
+		}
+		float[] data = new float[size];
+		ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer().get(data);
+		return data;
+	}
+	
+	private static int[] readArray(String json, String key) {
+		Matcher m = Pattern.compile("\"" + key + "\"\\s*:\\s*\\[([^\\]]*)\\]").matcher(json);
+		if (!m.find())
+			return null;
+		String[] values = m.group(1).split(",");
+		int[] array = new int[values.length];
+		for (int i = 0; i < values.length; i ++)
+			array[i] = Integer.parseInt(values[i].trim());
+		return array;
+	}
+}
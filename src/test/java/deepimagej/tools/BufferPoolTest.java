@@ -0,0 +1,121 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ * 
+ * Reference: DeepImageJ: A user-friendly environment to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, W. Ouyang, L. Donati, M. Unser, E. Lundberg, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2021.
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ * Science for Life Laboratory, School of Engineering Sciences in Chemistry, Biotechnology and Health, KTH - Royal Institute of Technology, Sweden
+ * 
+ * Authors: Carlos Garcia-Lopez-de-Haro and Estibaliz Gomez-de-Mariscal
+ *
+ */
+
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2019-2021, DeepImageJ
+ * All rights reserved.
+ *	
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *	  this list of conditions and the following disclaimer in the documentation
+ *	  and/or other materials provided with the distribution.
+ *	
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package deepimagej.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import ij.ImagePlus;
+
+public class BufferPoolTest {
+	
+	@Before
+	public void emptyPool() {
+		BufferPool.clear();
+	}
+	
+	@Test
+	public void releasedBufferIsReused() {
+		long[] shape = {1, 64, 64, 1};
+		ByteBuffer first = BufferPool.acquire("float32", shape);
+		assertEquals(4 * 64 * 64, first.capacity());
+		BufferPool.release(first);
+		long allocations = BufferPool.getAllocations();
+		ByteBuffer second = BufferPool.acquire("float32", shape);
+		assertSame(first, second);
+		assertEquals(allocations, BufferPool.getAllocations());
+		BufferPool.release(second);
+	}
+	
+	@Test
+	public void otherShapeIsAllocated() {
+		ByteBuffer first = BufferPool.acquire("float32", new long[] {1, 64, 64, 1});
+		BufferPool.release(first);
+		long allocations = BufferPool.getAllocations();
+		ByteBuffer second = BufferPool.acquire("float32", new long[] {1, 32, 64, 1});
+		assertNotSame(first, second);
+		assertEquals(allocations + 1, BufferPool.getAllocations());
+		BufferPool.release(second);
+	}
+	
+	@Test
+	public void bufferReleasedTwiceIsKeptOnce() {
+		long[] shape = {1, 16, 16, 1};
+		ByteBuffer data = BufferPool.acquire("float32", shape);
+		BufferPool.release(data);
+		BufferPool.release(data);
+		assertEquals(4 * 16 * 16, BufferPool.getFreeBytes());
+	}
+	
+	@Test
+	public void imagePixelsAreReused() {
+		ImagePlus imp = BufferPool.createImage("tile", 32, 32, 1, 4, 1);
+		BufferPool.releaseImage(imp);
+		assertEquals(4 * 4 * 32 * 32, BufferPool.getFreeBytes());
+		long allocations = BufferPool.getAllocations();
+		ImagePlus other = BufferPool.createImage("tile", 32, 32, 2, 2, 1);
+		assertEquals(allocations, BufferPool.getAllocations());
+		assertEquals(0, BufferPool.getFreeBytes());
+		BufferPool.releaseImage(other);
+	}
+	
+	@Test
+	public void clearFreesTheMemory() {
+		float[] pixels = BufferPool.acquireSlice(100);
+		BufferPool.releaseSlice(pixels);
+		assertEquals(400, BufferPool.getFreeBytes());
+		BufferPool.clear();
+		assertEquals(0, BufferPool.getFreeBytes());
+		long allocations = BufferPool.getAllocations();
+		assertNotSame(pixels, BufferPool.acquireSlice(100));
+		assertEquals(allocations + 1, BufferPool.getAllocations());
+	}
+}
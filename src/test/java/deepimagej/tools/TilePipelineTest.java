@@ -0,0 +1,186 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ * 
+ * Reference: DeepImageJ: A user-friendly environment to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, W. Ouyang, L. Donati, M. Unser, E. Lundberg, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2021.
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ * Science for Life Laboratory, School of Engineering Sciences in Chemistry, Biotechnology and Health, KTH - Royal Institute of Technology, Sweden
+ * 
+ * Authors: Carlos Garcia-Lopez-de-Haro and Estibaliz Gomez-de-Mariscal
+ *
+ */
+
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2019-2021, DeepImageJ
+ * All rights reserved.
+ *	
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *	  this list of conditions and the following disclaimer in the documentation
+ *	  and/or other materials provided with the distribution.
+ *	
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package deepimagej.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/*
+ * Every batch given to the pipeline has to be either stitched or discarded, this is
+ * what lets RunnerPt check that all the NDArrays of a run were closed
+ */
+public class TilePipelineTest {
+	
+	/*
+	 * Stages that count the batches whose inputs or outputs have not been freed
+	 */
+	private static class CountingStages implements TilePipeline.Stages<Integer, Integer> {
+		AtomicInteger	live = new AtomicInteger();
+		AtomicInteger	stitched = new AtomicInteger();
+		// Batch whose inference fails, -1 for none
+		int				failAt = -1;
+		// Batch whose stitching stops the pipeline, -1 for none
+		int				stopAt = -1;
+		// Batch whose stitching throws an error, -1 for none
+		int				errorAt = -1;
+		// Batches whose tiles are all handled by the preparation, 0 for none
+		int				handledEvery = 0;
+		
+		@Override
+		public Integer prepare(List<Tile> batch) {
+			int frame = batch.get(0).frame;
+			if (handledEvery > 0 && frame % handledEvery == 0) {
+				batch.clear();
+				return null;
+			}
+			live.incrementAndGet();
+			return frame;
+		}
+
+		@Override
+		public Integer infer(List<Tile> batch, Integer inputs) throws Exception {
+			if (inputs == failAt) {
+				// Like the runners, the stage frees the inputs it could not process
+				live.decrementAndGet();
+				throw new IllegalStateException("inference failed");
+			}
+			return inputs;
+		}
+
+		@Override
+		public boolean stitch(List<Tile> batch, Integer outputs) {
+			live.decrementAndGet();
+			stitched.incrementAndGet();
+			if (outputs == errorAt)
+				throw new OutOfMemoryError("stitching failed");
+			return outputs != stopAt;
+		}
+
+		@Override
+		public void discard(Integer inputs, Integer outputs) {
+			live.decrementAndGet();
+		}
+	}
+	
+	private static List<List<Tile>> batches(int n) {
+		List<Tile> tiles = new ArrayList<Tile>();
+		for (int i = 0; i < n; i ++) {
+			Tile tile = new Tile();
+			tile.frame = i;
+			tiles.add(tile);
+		}
+		return Tile.groupInBatches(tiles, 1);
+	}
+	
+	@Test
+	public void everyBatchIsStitched() throws Exception {
+		CountingStages stages = new CountingStages();
+		assertTrue(new TilePipeline<Integer, Integer>(stages, null, 2).run(batches(20)));
+		assertEquals(20, stages.stitched.get());
+		assertEquals(0, stages.live.get());
+	}
+	
+	@Test
+	public void batchesHandledInPreparation() throws Exception {
+		CountingStages stages = new CountingStages();
+		stages.handledEvery = 3;
+		assertTrue(new TilePipeline<Integer, Integer>(stages, null, 2, 2).run(batches(30)));
+		assertEquals(20, stages.stitched.get());
+		assertEquals(0, stages.live.get());
+	}
+	
+	@Test
+	public void severalWorkers() throws Exception {
+		CountingStages stages = new CountingStages();
+		assertTrue(new TilePipeline<Integer, Integer>(stages, null, 2, 4).run(batches(50)));
+		assertEquals(50, stages.stitched.get());
+		assertEquals(0, stages.live.get());
+	}
+	
+	@Test
+	public void stoppedByAStage() throws Exception {
+		CountingStages stages = new CountingStages();
+		stages.stopAt = 5;
+		assertFalse(new TilePipeline<Integer, Integer>(stages, null, 2, 2).run(batches(50)));
+		assertTrue(stages.stitched.get() < 50);
+		assertEquals(0, stages.live.get());
+	}
+	
+	@Test
+	public void failedInference() {
+		CountingStages stages = new CountingStages();
+		stages.failAt = 7;
+		Exception failure = null;
+		try {
+			new TilePipeline<Integer, Integer>(stages, null, 2, 2).run(batches(50));
+		} catch (Exception ex) {
+			failure = ex;
+		}
+		assertSame(IllegalStateException.class, failure.getClass());
+		assertEquals(0, stages.live.get());
+	}
+	
+	@Test
+	public void errorInAStage() throws Exception {
+		CountingStages stages = new CountingStages();
+		stages.errorAt = 3;
+		Throwable failure = null;
+		try {
+			new TilePipeline<Integer, Integer>(stages, null, 2, 2).run(batches(50));
+		} catch (OutOfMemoryError ex) {
+			failure = ex;
+		}
+		assertSame(OutOfMemoryError.class, failure.getClass());
+		assertEquals(0, stages.live.get());
+	}
+}
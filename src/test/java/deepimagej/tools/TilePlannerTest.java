@@ -0,0 +1,131 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ * 
+ * Reference: DeepImageJ: A user-friendly environment to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, W. Ouyang, L. Donati, M. Unser, E. Lundberg, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2021.
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ * Science for Life Laboratory, School of Engineering Sciences in Chemistry, Biotechnology and Health, KTH - Royal Institute of Technology, Sweden
+ * 
+ * Authors: Carlos Garcia-Lopez-de-Haro and Estibaliz Gomez-de-Mariscal
+ *
+ */
+
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2019-2021, DeepImageJ
+ * All rights reserved.
+ *	
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *	  this list of conditions and the following disclaimer in the documentation
+ *	  and/or other materials provided with the distribution.
+ *	
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package deepimagej.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.List;
+
+import org.junit.Test;
+
+public class TilePlannerTest {
+	
+	/*
+	 * Tiles of 16 to 64 pixels in X for an image of 100x16 pixels
+	 */
+	private static TilePlanner planner(int[] size, int[] halo, boolean uniform) {
+		return new TilePlanner(size, halo, new int[] {16, 16, 1, 1}, new int[] {16, 16, 0, 0},
+								new int[] {64, 16, 1, 1}, uniform, TilePlanner.DEFAULT_CALL_OVERHEAD);
+	}
+	
+	@Test
+	public void lastTileIsSmaller() {
+		TilePlanner planner = planner(new int[] {100, 16, 1, 1}, new int[4], false);
+		List<Tile> tiles = planner.plan();
+		assertNotNull(tiles);
+		assertEquals(2, tiles.size());
+		assertEquals(64, tiles.get(0).patchSize[0]);
+		// 36 pixels are left, the smallest valid tile that covers them
+		assertEquals(48, tiles.get(1).patchSize[0]);
+		assertEquals(64, tiles.get(1).xImageStart);
+		assertEquals(100, tiles.get(1).xImageEnd);
+		assertEquals(112 * 16, planner.computedVoxels);
+	}
+	
+	@Test
+	public void uniformTilesHaveTheSameSize() {
+		TilePlanner planner = planner(new int[] {100, 16, 1, 1}, new int[4], true);
+		List<Tile> tiles = planner.plan();
+		assertNotNull(tiles);
+		assertEquals(2, tiles.size());
+		for (Tile tile : tiles)
+			assertEquals(64, tile.patchSize[0]);
+		// The last tile computes pixels outside of the image, but only writes the image
+		assertEquals(100, tiles.get(1).xImageEnd);
+		assertEquals(128 * 16, planner.computedVoxels);
+	}
+	
+	@Test
+	public void haloBiggerThanTheImage() {
+		int[] halo = {20, 0, 0, 0};
+		TilePlanner planner = planner(new int[] {10, 16, 1, 1}, halo, false);
+		List<Tile> tiles = planner.plan();
+		assertNotNull(tiles);
+		assertEquals(1, tiles.size());
+		Tile tile = tiles.get(0);
+		// The smallest tile bigger than 2 times the halo that covers the 10 pixels
+		assertEquals(64, tile.patchSize[0]);
+		assertEquals(0, tile.xImageStart);
+		assertEquals(10, tile.xImageEnd);
+		assertEquals(halo[0], tile.leftoverX);
+	}
+	
+	@Test
+	public void noValidTileSize() {
+		// A fixed tile of 64 pixels cannot have a halo of 32 pixels, the runners
+		// use Tile.createGrid instead
+		TilePlanner planner = new TilePlanner(new int[] {100, 100, 1, 1}, new int[] {32, 0, 0, 0}, new int[] {64, 64, 1, 1},
+												new int[] {0, 0, 0, 0}, new int[] {64, 64, 1, 1}, false, TilePlanner.DEFAULT_CALL_OVERHEAD);
+		assertNull(planner.plan());
+	}
+	
+	@Test
+	public void tilesCoverTheImage() {
+		for (int n = 1; n <= 300; n += 7) {
+			for (int h = 0; h <= 8; h += 4) {
+				List<Tile> tiles = planner(new int[] {n, 16, 1, 1}, new int[] {h, 0, 0, 0}, false).plan();
+				assertNotNull(tiles);
+				int covered = 0;
+				for (Tile tile : tiles) {
+					assertEquals(covered, tile.xImageStart);
+					covered = tile.xImageEnd;
+				}
+				assertEquals(n, covered);
+			}
+		}
+	}
+}